@@ -0,0 +1,84 @@
+package com.outofoctopus.benchmarks;
+
+import com.google.api.services.cloudkms.v1.CloudKMS;
+import com.google.cloud.Timestamp;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Provides;
+import com.google.inject.util.Modules;
+import com.outofoctopus.client.TwitterClient;
+import com.outofoctopus.client.TwitterClientModule;
+import com.outofoctopus.client.TwitterClientModule.TwitterTokenEncryption;
+import com.outofoctopus.db.MediumDAO;
+import com.outofoctopus.db.RepliedMentionDAO;
+import com.outofoctopus.db.ScanCheckpointDAO;
+import com.outofoctopus.db.TwitterDAO;
+import com.outofoctopus.encryption.EncryptionModule;
+import com.outofoctopus.encryption.EnvelopeEncryptionClient;
+import com.outofoctopus.metrics.MetricsModule;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import com.outofoctopus.scanner.ScannerModule;
+import com.outofoctopus.scanner.ScannerModule.MaxReplyLatency;
+import com.outofoctopus.scanner.ScannerModule.SweepInterval;
+import java.io.IOException;
+import java.time.Duration;
+import twitter4j.Twitter;
+
+// Swaps the Datastore, Twitter and KMS for in-memory fakes, leaving everything in between as it
+// runs in production
+class FakeBackendsModule extends AbstractModule {
+    private final TwitterDAO twitterDAO;
+    private final int mentionsPerCall;
+
+    private FakeBackendsModule(TwitterDAO twitterDAO, int mentionsPerCall) {
+        this.twitterDAO = twitterDAO;
+        this.mentionsPerCall = mentionsPerCall;
+    }
+
+    static Injector newInjector(TwitterDAO twitterDAO, int mentionsPerCall) {
+        return Guice.createInjector(Modules
+                .override(new EncryptionModule(), new MetricsModule(), new TwitterClientModule(), new ScannerModule())
+                .with(new FakeBackendsModule(twitterDAO, mentionsPerCall)));
+    }
+
+    // An active account whose tokens are sealed the way the scanner leaves them
+    static TwitterAccount newAccount(Injector injector, String handle) throws IOException {
+        EnvelopeEncryptionClient tokenEncryption =
+                injector.getInstance(Key.get(EnvelopeEncryptionClient.class, TwitterTokenEncryption.class));
+        return TwitterAccount.newBuilder()
+                .setHandle(handle)
+                .setActive(true)
+                .setActiveFrom(Timestamp.MIN_VALUE.toProto())
+                .setActiveUntil(Timestamp.ofTimeSecondsAndNanos(Timestamp.MAX_VALUE.getSeconds(), 0).toProto())
+                .setAccessToken(tokenEncryption.encrypt(handle, TwitterClient.ACCESS_TOKEN, "token-" + handle))
+                .setAccessTokenSecret(
+                        tokenEncryption.encrypt(handle, TwitterClient.ACCESS_TOKEN_SECRET, "secret-" + handle))
+                .setLastProcessedMentionId(1000)
+                .setLocale("en-GB")
+                .setTimezone("Europe/London")
+                .build();
+    }
+
+    @Override
+    protected void configure() {
+        // Every account is due for polling on every sweep, so each sweep does the same work
+        bind(Duration.class).annotatedWith(SweepInterval.class).toInstance(Duration.ZERO);
+        bind(Duration.class).annotatedWith(MaxReplyLatency.class).toInstance(Duration.ZERO);
+        bind(TwitterDAO.class).toInstance(twitterDAO);
+        bind(MediumDAO.class).toInstance(new InMemoryMediumDAO());
+        bind(RepliedMentionDAO.class).toInstance(new InMemoryRepliedMentionDAO());
+        bind(ScanCheckpointDAO.class).toInstance(new InMemoryScanCheckpointDAO());
+    }
+
+    @Provides
+    CloudKMS provideKms() {
+        return FakeCloudKMS.create();
+    }
+
+    @Provides
+    Twitter provideTwitter() {
+        return FakeTwitter.create(mentionsPerCall);
+    }
+}
@@ -0,0 +1,24 @@
+package com.outofoctopus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import twitter4j.RateLimitStatus;
+import twitter4j.ResponseList;
+
+// A response with no rate limit headers, as if Twitter hadn't sent any
+class FakeResponseList<T> extends ArrayList<T> implements ResponseList<T> {
+
+    FakeResponseList(Collection<T> items) {
+        super(items);
+    }
+
+    @Override
+    public RateLimitStatus getRateLimitStatus() {
+        return null;
+    }
+
+    @Override
+    public int getAccessLevel() {
+        return NONE;
+    }
+}
@@ -0,0 +1,101 @@
+package com.outofoctopus.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import twitter4j.Paging;
+import twitter4j.Status;
+import twitter4j.StatusUpdate;
+import twitter4j.Twitter;
+import twitter4j.User;
+
+// An in-memory Twitter that answers the handful of calls the scanner makes. Every account always
+// has mentionsPerCall mentions newer than whatever it asks for, and every reply succeeds.
+final class FakeTwitter {
+    private static final ImmutableMap<Class<?>, Object> PRIMITIVE_DEFAULTS = ImmutableMap.<Class<?>, Object>builder()
+            .put(boolean.class, false)
+            .put(int.class, 0)
+            .put(long.class, 0L)
+            .put(double.class, 0.0)
+            .put(float.class, 0.0f)
+            .put(short.class, (short) 0)
+            .put(byte.class, (byte) 0)
+            .put(char.class, '\0')
+            .build();
+
+    private static final AtomicLong SENT_IDS = new AtomicLong(Long.MAX_VALUE / 2);
+
+    private FakeTwitter() {}
+
+    static Twitter create(int mentionsPerCall) {
+        return proxy(Twitter.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMentionsTimeline":
+                    return mentions(args == null ? new Paging() : (Paging) args[0], mentionsPerCall);
+                case "getUserTimeline":
+                    return new FakeResponseList<Status>(new ArrayList<>());
+                case "updateStatus":
+                    return status(SENT_IDS.incrementAndGet(), "oooctopus");
+                default:
+                    return null;
+            }
+        });
+    }
+
+    // Newest first, between the paging's since_id and max_id
+    private static FakeResponseList<Status> mentions(Paging paging, int mentionsPerCall) {
+        long sinceId = Math.max(paging.getSinceId(), 0);
+        long newest = sinceId + mentionsPerCall;
+        if (paging.getMaxId() > 0) {
+            newest = Math.min(newest, paging.getMaxId());
+        }
+        int count = paging.getCount() > 0 ? paging.getCount() : 20;
+        List<Status> page = new ArrayList<>();
+        for (long id = newest; id > sinceId && page.size() < count; id--) {
+            page.add(status(id, "fan" + (id % 100)));
+        }
+        return new FakeResponseList<>(page);
+    }
+
+    static Status status(long id, String screenName) {
+        User user = proxy(User.class, (proxy, method, args) ->
+                method.getName().equals("getScreenName") ? screenName : null);
+        return proxy(Status.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getId":
+                    return id;
+                case "getUser":
+                    return user;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    // Methods the handler doesn't answer return null, or zero for primitives
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args);
+            }
+            Object result = handler.invoke(proxy, method, args);
+            return result == null ? PRIMITIVE_DEFAULTS.get(method.getReturnType()) : result;
+        });
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return proxy.getClass().getName();
+        }
+    }
+}
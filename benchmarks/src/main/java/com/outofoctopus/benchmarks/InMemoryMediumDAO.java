@@ -0,0 +1,29 @@
+package com.outofoctopus.benchmarks;
+
+import com.outofoctopus.db.ConsumerCredentials;
+import com.outofoctopus.db.MediumDAO;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Consumer credentials that pass straight through the fake KMS, and data keys held in memory
+class InMemoryMediumDAO implements MediumDAO {
+    private final Map<MediumName, String> dataKeys = new ConcurrentHashMap<>();
+
+    @Override
+    public Optional<ConsumerCredentials> getConsumerCredentials(MediumName name) {
+        return Optional.of(new ConsumerCredentials(
+                "Y29uc3VtZXJLZXk", // base64 of "consumerKey"
+                "Y29uc3VtZXJTZWNyZXQ")); // base64 of "consumerSecret"
+    }
+
+    @Override
+    public Optional<String> getDataKey(MediumName name) {
+        return Optional.ofNullable(dataKeys.get(name));
+    }
+
+    @Override
+    public boolean setDataKeyIfAbsent(MediumName name, String wrappedDataKey) {
+        return dataKeys.putIfAbsent(name, wrappedDataKey) == null;
+    }
+}
@@ -0,0 +1,56 @@
+package com.outofoctopus.benchmarks;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableSet;
+import com.outofoctopus.db.RepliedMentionDAO;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Expiry times of replied mentions, keyed by handle and mention id
+class InMemoryRepliedMentionDAO implements RepliedMentionDAO {
+    private final Map<String, Map<Long, Timestamp>> replied = new ConcurrentHashMap<>();
+
+    @Override
+    public ImmutableSet<Long> getAllReplied(String handle) {
+        return ImmutableSet.copyOf(forAccount(handle).keySet());
+    }
+
+    @Override
+    public ImmutableSet<Long> getReplied(String handle, Iterable<Long> mentionIds, Timestamp now) {
+        Map<Long, Timestamp> records = forAccount(handle);
+        ImmutableSet.Builder<Long> found = ImmutableSet.builder();
+        for (Long id : mentionIds) {
+            Timestamp expiresAt = records.get(id);
+            if (expiresAt != null && expiresAt.compareTo(now) > 0) {
+                found.add(id);
+            }
+        }
+        return found.build();
+    }
+
+    @Override
+    public void recordReplied(String handle, Iterable<Long> mentionIds, Timestamp expiresAt) {
+        Map<Long, Timestamp> records = forAccount(handle);
+        mentionIds.forEach(id -> records.put(id, expiresAt));
+    }
+
+    @Override
+    public int deleteExpired(Timestamp now) {
+        int deleted = 0;
+        for (Map<Long, Timestamp> records : replied.values()) {
+            Iterator<Timestamp> expiries = records.values().iterator();
+            while (expiries.hasNext()) {
+                if (expiries.next().compareTo(now) < 0) {
+                    expiries.remove();
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private Map<Long, Timestamp> forAccount(String handle) {
+        return replied.computeIfAbsent(handle, key -> new ConcurrentHashMap<>());
+    }
+}
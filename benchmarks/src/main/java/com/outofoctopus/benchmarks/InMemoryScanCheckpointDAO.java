@@ -0,0 +1,22 @@
+package com.outofoctopus.benchmarks;
+
+import com.outofoctopus.db.ScanCheckpoint;
+import com.outofoctopus.db.ScanCheckpointDAO;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The latest checkpoint of each scanner
+class InMemoryScanCheckpointDAO implements ScanCheckpointDAO {
+    private final Map<String, ScanCheckpoint> checkpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public Optional<ScanCheckpoint> get(String scannerId) {
+        return Optional.ofNullable(checkpoints.get(scannerId));
+    }
+
+    @Override
+    public void save(String scannerId, ScanCheckpoint checkpoint) {
+        checkpoints.put(scannerId, checkpoint);
+    }
+}
@@ -0,0 +1,202 @@
+package com.outofoctopus.benchmarks;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.outofoctopus.db.AccountPage;
+import com.outofoctopus.db.TwitterDAO;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+// Accounts held in a sorted map, paged through in handle order with the last handle as the cursor
+class InMemoryTwitterDAO implements TwitterDAO {
+    private final ConcurrentSkipListMap<String, TwitterAccount> accounts = new ConcurrentSkipListMap<>();
+
+    @Override
+    public ImmutableList<TwitterAccount> getActiveAccounts() {
+        return matching(AccountQuery.ACTIVE, accounts, Integer.MAX_VALUE, Function.identity());
+    }
+
+    @Override
+    public ImmutableList<TwitterAccount> getAccountsToActivate() {
+        return matching(AccountQuery.TO_ACTIVATE, accounts, Integer.MAX_VALUE, Function.identity());
+    }
+
+    @Override
+    public Optional<TwitterAccount> getAccount(String handle) {
+        return Optional.ofNullable(accounts.get(handle));
+    }
+
+    @Override
+    public AccountPage getAccountPage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return page(query, startCursor, pageSize, Function.identity());
+    }
+
+    @Override
+    public AccountPage getSchedulePage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return page(query, startCursor, pageSize, account -> {
+            TwitterAccount.Builder schedule = TwitterAccount.newBuilder()
+                    .setHandle(account.getHandle())
+                    .setActive(account.getActive())
+                    .setActiveFrom(account.getActiveFrom())
+                    .setActiveUntil(account.getActiveUntil());
+            if (account.hasNextPollAt()) {
+                schedule.setNextPollAt(account.getNextPollAt());
+            }
+            return schedule.build();
+        });
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterAccount> getAccounts(Iterable<String> handles) {
+        ImmutableMap.Builder<String, TwitterAccount> found = ImmutableMap.builder();
+        for (String handle : handles) {
+            TwitterAccount account = accounts.get(handle);
+            if (account != null) {
+                found.put(handle, account);
+            }
+        }
+        return found.build();
+    }
+
+    @Override
+    public TwitterDAOResult insert(TwitterAccount newAccount) {
+        return accounts.putIfAbsent(newAccount.getHandle(), newAccount.toBuilder().setVersion(1).build()) == null
+                ? TwitterDAOResult.SUCCESS
+                : TwitterDAOResult.ALREADY_EXISTS;
+    }
+
+    @Override
+    public TwitterDAOResult delete(String handle) {
+        accounts.remove(handle);
+        return TwitterDAOResult.SUCCESS;
+    }
+
+    @Override
+    public TwitterDAOResult update(TwitterAccount updatedAccount) {
+        return modify(updatedAccount, current -> updatedAccount);
+    }
+
+    @Override
+    public TwitterDAOResult patch(TwitterAccount changes) {
+        return modify(changes, current -> {
+            TwitterAccount.Builder patched = current.toBuilder();
+            changes.toBuilder().clearVersion().build().getAllFields().forEach(patched::setField);
+            return patched.build();
+        });
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> insertAll(Iterable<TwitterAccount> newAccounts) {
+        return forEach(newAccounts, TwitterAccount::getHandle, this::insert);
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> updateAll(Iterable<TwitterAccount> updatedAccounts) {
+        return forEach(updatedAccounts, TwitterAccount::getHandle, this::update);
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> patchAll(Iterable<TwitterAccount> changes) {
+        return forEach(changes, TwitterAccount::getHandle, this::patch);
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> deleteAll(Iterable<String> handles) {
+        return forEach(handles, Function.identity(), this::delete);
+    }
+
+    @Override
+    public TwitterDAOResult updateMentionCursor(String handle, long lastProcessedMentionId) {
+        return modify(TwitterAccount.newBuilder().setHandle(handle).build(), account ->
+                account.hasLastProcessedMentionId() && account.getLastProcessedMentionId() >= lastProcessedMentionId
+                        ? account
+                        : account.toBuilder().setLastProcessedMentionId(lastProcessedMentionId).build());
+    }
+
+    @Override
+    public TwitterDAOResult updatePollSchedule(String handle, TwitterAccount schedule) {
+        return modify(TwitterAccount.newBuilder().setHandle(handle).build(), account -> account.toBuilder()
+                .setMentionRate(schedule.getMentionRate())
+                .setPollIntervalSeconds(schedule.getPollIntervalSeconds())
+                .setLastPolledAt(schedule.getLastPolledAt())
+                .setNextPollAt(schedule.getNextPollAt())
+                .build());
+    }
+
+    // Applies the change atomically, bumping the version, unless the write carries a version that
+    // is no longer the stored one
+    private TwitterDAOResult modify(TwitterAccount write, UnaryOperator<TwitterAccount> change) {
+        TwitterDAOResult[] result = {TwitterDAOResult.NOT_FOUND};
+        accounts.computeIfPresent(write.getHandle(), (handle, current) -> {
+            if (write.hasVersion() && write.getVersion() != current.getVersion()) {
+                result[0] = TwitterDAOResult.CONFLICT;
+                return current;
+            }
+            result[0] = TwitterDAOResult.SUCCESS;
+            return change.apply(current).toBuilder().setVersion(current.getVersion() + 1).build();
+        });
+        return result[0];
+    }
+
+    private static <T> ImmutableMap<String, TwitterDAOResult> forEach(
+            Iterable<T> items, Function<T, String> handle, Function<T, TwitterDAOResult> write) {
+        Map<String, TwitterDAOResult> results = new LinkedHashMap<>();
+        for (T item : items) {
+            results.put(handle.apply(item), write.apply(item));
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    private AccountPage page(
+            AccountQuery query,
+            Optional<String> startCursor,
+            int pageSize,
+            Function<TwitterAccount, TwitterAccount> projection) {
+        NavigableMap<String, TwitterAccount> remaining =
+                startCursor.isPresent() ? accounts.tailMap(startCursor.get(), false) : accounts;
+        ImmutableList<TwitterAccount> page = matching(query, remaining, pageSize, projection);
+        return page.size() < pageSize
+                ? AccountPage.last(page)
+                : AccountPage.of(page, Optional.of(page.get(page.size() - 1).getHandle()));
+    }
+
+    private static ImmutableList<TwitterAccount> matching(
+            AccountQuery query,
+            Map<String, TwitterAccount> accounts,
+            int limit,
+            Function<TwitterAccount, TwitterAccount> projection) {
+        Timestamp now = Timestamp.now();
+        ImmutableList.Builder<TwitterAccount> matches = ImmutableList.builder();
+        int count = 0;
+        for (TwitterAccount account : accounts.values()) {
+            if (count == limit) {
+                break;
+            }
+            if (matches(query, account, now)) {
+                matches.add(projection.apply(account));
+                count++;
+            }
+        }
+        return matches.build();
+    }
+
+    private static boolean matches(AccountQuery query, TwitterAccount account, Timestamp now) {
+        switch (query) {
+            case ACTIVE:
+                return account.getActive();
+            case TO_ACTIVATE:
+                return !account.getActive()
+                        && Timestamp.fromProto(account.getActiveFrom()).compareTo(now) <= 0
+                        && Timestamp.fromProto(account.getActiveUntil()).compareTo(now) > 0;
+            default:
+                return true;
+        }
+    }
+}
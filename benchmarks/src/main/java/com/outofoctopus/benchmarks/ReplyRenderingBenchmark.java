@@ -0,0 +1,59 @@
+package com.outofoctopus.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Injector;
+import com.outofoctopus.client.TwitterClient;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import twitter4j.StatusUpdate;
+
+// Preparing one page of replies: fetching the mentions from the fake and rendering a reply to each
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReplyRenderingBenchmark {
+    private static final int MENTIONS_PER_PAGE = 200;
+
+    // The default message, a short custom one, and one long enough to need truncating
+    private static final ImmutableMap<String, String> MESSAGES = ImmutableMap.of(
+            "short", "Out until {END_DATE}, {USER}",
+            "long", "Sorry {USER}! I am off between {START_DATE} and {END_DATE}, somewhere with no signal at all. "
+                    + "Anything urgent can go to my colleagues, who will be glad to help you out in the meantime.");
+
+    @Param({ "default", "short", "long" })
+    public String message;
+
+    private TwitterClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Injector injector = FakeBackendsModule.newInjector(new InMemoryTwitterDAO(), MENTIONS_PER_PAGE);
+        TwitterAccount account = FakeBackendsModule.newAccount(injector, "oooctopus");
+        if (MESSAGES.containsKey(message)) {
+            account = account.toBuilder().setMessage(MESSAGES.get(message)).build();
+        }
+        client = injector.getInstance(TwitterClient.class);
+        client.authenticate(account);
+    }
+
+    @Benchmark
+    public ImmutableList<StatusUpdate> prepareReplies() throws Exception {
+        return client.makeReplies();
+    }
+}
@@ -0,0 +1,86 @@
+package com.outofoctopus.benchmarks;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.outofoctopus.db.TwitterDAO;
+import com.outofoctopus.db.TwitterLocalDAO;
+import com.outofoctopus.metrics.MetricsRegistry;
+import com.outofoctopus.scanner.ScannerModule.ReplyExecutor;
+import com.outofoctopus.scanner.ScannerModule.ScanExecutor;
+import com.outofoctopus.scanner.twitter.TwitterScanner;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full sweep over every account: schedule paging, account lookup, token decryption, fetching
+// mentions, rendering and posting replies, and moving the mention cursors on
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class ScanBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int accounts;
+
+    @Param({ "3" })
+    public int mentionsPerAccount;
+
+    // Accounts in a plain in-memory map, or in the local log-backed store
+    @Param({ "memory", "local" })
+    public String backend;
+
+    private Path localStore;
+    private Injector injector;
+    private TwitterScanner scanner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        TwitterDAO twitterDAO;
+        if (backend.equals("local")) {
+            localStore = Files.createTempDirectory("scan-benchmark").resolve("twitter.log");
+            twitterDAO = new TwitterLocalDAO(localStore, new MetricsRegistry());
+        } else {
+            twitterDAO = new InMemoryTwitterDAO();
+        }
+        injector = FakeBackendsModule.newInjector(twitterDAO, mentionsPerAccount);
+        for (int i = 0; i < accounts; i++) {
+            twitterDAO.insert(FakeBackendsModule.newAccount(injector, String.format("user%06d", i)));
+        }
+        scanner = injector.getInstance(TwitterScanner.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        injector.getInstance(Key.get(ExecutorService.class, ScanExecutor.class)).shutdown();
+        injector.getInstance(Key.get(ScheduledExecutorService.class, ReplyExecutor.class)).shutdown();
+        if (localStore != null) {
+            ((TwitterLocalDAO) injector.getInstance(TwitterDAO.class)).close();
+            Files.delete(localStore);
+            Files.delete(localStore.getParent());
+        }
+    }
+
+    @Benchmark
+    public void scan() throws Exception {
+        scanner.scan();
+    }
+}
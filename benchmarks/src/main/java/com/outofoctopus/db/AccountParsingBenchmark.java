@@ -0,0 +1,68 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.KeyFactory;
+import com.outofoctopus.metrics.MetricsRegistry;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Converting accounts to and from Datastore entities, which happens for every account read or
+// written. Lives in the db package to reach the package-private parsing methods.
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AccountParsingBenchmark {
+    // The entity layout parsed to and from
+    @Param({ "1", "2" })
+    private int schemaVersion;
+    private TwitterDatastoreDAO dao;
+    private TwitterAccount account;
+    private FullEntity entity;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Parsing never touches the Datastore itself
+        dao = new TwitterDatastoreDAO(
+                null,
+                new KeyFactory("outofoctopus").setKind("twitter"),
+                "outofoctopus",
+                schemaVersion,
+                new MetricsRegistry());
+        account = TwitterAccount.newBuilder()
+                .setHandle("oooctopus")
+                .setActive(true)
+                .setActiveFrom(Timestamp.ofTimeSecondsAndNanos(1504256400L, 0).toProto())
+                .setActiveUntil(Timestamp.ofTimeSecondsAndNanos(1504688400L, 0).toProto())
+                .setAccessToken("env2:c2VhbGVkIGFjY2VzcyB0b2tlbiBmb3IgdGhlIGJlbmNobWFyaw")
+                .setAccessTokenSecret("env2:c2VhbGVkIGFjY2VzcyB0b2tlbiBzZWNyZXQgZm9yIHRoZSBiZW5jaA")
+                .setLastProcessedMentionId(904283146210795520L)
+                .build();
+        entity = dao.parseEntityFromTwitterAccount(account);
+    }
+
+    @Benchmark
+    public TwitterAccount parseTwitterAccount() {
+        return dao.parseTwitterAccount(entity);
+    }
+
+    @Benchmark
+    public FullEntity parseEntityFromTwitterAccount() {
+        return dao.parseEntityFromTwitterAccount(account);
+    }
+}
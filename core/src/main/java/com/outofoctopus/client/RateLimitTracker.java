@@ -0,0 +1,117 @@
+package com.outofoctopus.client;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import twitter4j.RateLimitStatus;
+import twitter4j.TwitterException;
+
+// Remembers the rate limit budget Twitter reports for each endpoint and user token, so callers can
+// hold back accounts whose budget is spent until the window resets, rather than have them fail.
+@Singleton
+public class RateLimitTracker {
+
+    public enum Endpoint {
+        MENTIONS_TIMELINE,
+        USER_TIMELINE,
+        UPDATE_STATUS
+    }
+
+    // Used when Twitter reports we are over the limit but not when the window resets
+    private static final Duration DEFAULT_WINDOW = Duration.ofMinutes(15);
+
+    private final Clock clock;
+    private final Map<WindowKey, Window> windows;
+
+    @Inject
+    public RateLimitTracker() {
+        this(Clock.systemUTC());
+    }
+
+    public RateLimitTracker(Clock clock) {
+        this.clock = clock;
+        this.windows = new ConcurrentHashMap<>();
+    }
+
+    // Records the budget reported alongside a response. Does nothing if there wasn't one.
+    public void record(String handle, Endpoint endpoint, RateLimitStatus status) {
+        if (status == null) {
+            return;
+        }
+        Instant resetAt = Instant.ofEpochSecond(status.getResetTimeInSeconds());
+        windows.put(new WindowKey(handle, endpoint), new Window(status.getRemaining(), resetAt));
+    }
+
+    // Records a failed call, marking the endpoint spent if Twitter said we are over the limit
+    public void record(String handle, Endpoint endpoint, TwitterException e) {
+        if (!e.exceededRateLimitation()) {
+            return;
+        }
+        RateLimitStatus status = e.getRateLimitStatus();
+        Instant resetAt = status != null
+                ? Instant.ofEpochSecond(status.getResetTimeInSeconds())
+                : clock.instant().plus(DEFAULT_WINDOW);
+        windows.put(new WindowKey(handle, endpoint), new Window(0, resetAt));
+    }
+
+    // Earliest time at which every endpoint of the account has budget again
+    public Instant availableAt(String handle) {
+        Instant now = clock.instant();
+        Instant available = now;
+        for (Endpoint endpoint : Endpoint.values()) {
+            Window window = windows.get(new WindowKey(handle, endpoint));
+            if (window != null && window.remaining <= 0 && window.resetAt.isAfter(available)) {
+                available = window.resetAt;
+            }
+        }
+        return available;
+    }
+
+    public boolean isAvailable(String handle) {
+        return !availableAt(handle).isAfter(clock.instant());
+    }
+
+    // Drops windows which have reset, so the tracker doesn't grow with every account ever seen
+    public void evictExpired() {
+        Instant now = clock.instant();
+        windows.values().removeIf(window -> !window.resetAt.isAfter(now));
+    }
+
+    private static final class WindowKey {
+        private final String handle;
+        private final Endpoint endpoint;
+
+        private WindowKey(String handle, Endpoint endpoint) {
+            this.handle = handle;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WindowKey)) {
+                return false;
+            }
+            WindowKey other = (WindowKey) o;
+            return handle.equals(other.handle) && endpoint == other.endpoint;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * handle.hashCode() + endpoint.hashCode();
+        }
+    }
+
+    private static final class Window {
+        private final int remaining;
+        private final Instant resetAt;
+
+        private Window(int remaining, Instant resetAt) {
+            this.remaining = remaining;
+            this.resetAt = resetAt;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.outofoctopus.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.Timestamp;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+// An away message compiled into literal text and the placeholders between it, so that rendering a
+// reply is a run of appends into a reused buffer rather than a search and copy per placeholder.
+// Templates are compiled once per distinct message, and date formatters built once per locale.
+final class ReplyTemplate {
+    private static final Locale DEFAULT_LOCALE = new Locale("en-GB");
+    private static final ZoneId DEFAULT_TIMEZONE = ZoneId.of("UTC");
+    private static final String ELLIPSIS = "...";
+    private static final int CACHE_SIZE = 10_000;
+
+    private static final Cache<String, ReplyTemplate> TEMPLATES =
+            CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+    private static final Cache<String, DateTimeFormatter> FORMATTERS =
+            CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+    private static final Cache<String, ZoneId> ZONES =
+            CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    enum Placeholder {
+        USER("{USER}"), // screen name of whoever mentioned the account
+        START_DATE("{START_DATE}"),
+        END_DATE("{END_DATE}");
+
+        private final String token;
+
+        Placeholder(String token) {
+            this.token = token;
+        }
+    }
+
+    // literals.get(i) comes before slots.get(i); the final literal comes after the last slot
+    private final ImmutableList<String> literals;
+    private final ImmutableList<Placeholder> slots;
+
+    private ReplyTemplate(ImmutableList<String> literals, ImmutableList<Placeholder> slots) {
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    static ReplyTemplate forMessage(String message) {
+        return cached(TEMPLATES, message, () -> compile(message));
+    }
+
+    static ReplyTemplate compile(String message) {
+        ImmutableList.Builder<String> literals = ImmutableList.builder();
+        ImmutableList.Builder<Placeholder> slots = ImmutableList.builder();
+        int from = 0;
+        while (true) {
+            int next = -1;
+            Placeholder found = null;
+            for (Placeholder placeholder : Placeholder.values()) {
+                int at = message.indexOf(placeholder.token, from);
+                if (at >= 0 && (next < 0 || at < next)) {
+                    next = at;
+                    found = placeholder;
+                }
+            }
+            if (found == null) {
+                literals.add(message.substring(from));
+                return new ReplyTemplate(literals.build(), slots.build());
+            }
+            literals.add(message.substring(from, next));
+            slots.add(found);
+            from = next + found.token.length();
+        }
+    }
+
+    // Fills in the account's own values, which are the same for every reply it sends
+    Bound bind(TwitterAccount account, int maxLength) {
+        Locale locale = locale(account.getLocale());
+        ZoneId zone = zone(account.getTimezone());
+        return new Bound(
+                formatDate(account.getActiveFrom(), locale, zone),
+                formatDate(account.getActiveUntil(), locale, zone),
+                maxLength);
+    }
+
+    // Not thread-safe: renders into a buffer reused between replies
+    final class Bound {
+        private final String startDate;
+        private final String endDate;
+        private final int maxLength;
+        private final StringBuilder buffer;
+
+        private Bound(String startDate, String endDate, int maxLength) {
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.maxLength = maxLength;
+            this.buffer = new StringBuilder(maxLength + ELLIPSIS.length());
+        }
+
+        // Messages too long for a tweet are cut short and end in an ellipsis
+        String render(String user) {
+            buffer.setLength(0);
+            for (int i = 0; i < slots.size(); i++) {
+                buffer.append(literals.get(i));
+                switch (slots.get(i)) {
+                    case USER:
+                        buffer.append('@').append(user);
+                        break;
+                    case START_DATE:
+                        buffer.append(startDate);
+                        break;
+                    case END_DATE:
+                        buffer.append(endDate);
+                        break;
+                }
+            }
+            buffer.append(literals.get(slots.size()));
+            if (buffer.length() > maxLength) {
+                buffer.setLength(maxLength - ELLIPSIS.length());
+                buffer.append(ELLIPSIS);
+            }
+            return buffer.toString();
+        }
+    }
+
+    private static String formatDate(Timestamp timestamp, Locale locale, ZoneId zone) {
+        DateTimeFormatter formatter = cached(
+                FORMATTERS,
+                locale.toString(),
+                () -> DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM).withLocale(locale));
+        return Instant.ofEpochSecond(timestamp.getSeconds()).atZone(zone).toLocalDate().format(formatter);
+    }
+
+    private static Locale locale(String locale) {
+        try {
+            return new Locale(locale);
+        } catch (Exception e) {
+            return DEFAULT_LOCALE;
+        }
+    }
+
+    // Unknown zones are remembered too, so a bad timezone only costs one failed lookup
+    private static ZoneId zone(String timezone) {
+        return cached(ZONES, timezone, () -> {
+            try {
+                return ZoneId.of(timezone);
+            } catch (Exception e) {
+                return DEFAULT_TIMEZONE;
+            }
+        });
+    }
+
+    private static <V> V cached(Cache<String, V> cache, String key, Callable<V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -2,87 +2,190 @@ package com.outofoctopus.client;
 
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
-import com.outofoctopus.client.TwitterClientModule.TwitterEncryptionKey;
-import com.outofoctopus.encryption.EncryptionClient;
+import com.outofoctopus.client.RateLimitTracker.Endpoint;
+import com.outofoctopus.client.TwitterClientModule.MaxMentionsPerCycle;
+import com.outofoctopus.client.TwitterClientModule.TwitterTokenEncryption;
+import com.outofoctopus.encryption.EnvelopeEncryptionClient;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
 import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
 import java.io.IOException;
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.time.format.FormatStyle;
 import java.util.List;
-import java.util.Locale;
-import org.apache.commons.lang3.StringUtils;
 import twitter4j.Paging;
 import twitter4j.Status;
 import twitter4j.StatusUpdate;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
 import twitter4j.ResponseList;
 import twitter4j.auth.AccessToken;
 
 public class TwitterClient {
 
     private static final String DEFAULT_MESSAGE = "Hi {USER}, I am away with no internet access until {END_DATE} and may not see your tweet.";
-    private static final Locale DEFAULT_LOCALE = new Locale("en-GB");
-    private static final ZoneId DEFAULT_TIMEZONE = ZoneId.of("UTC");
     private static final int TWEET_LENGTH = 140;
+    private static final int MENTIONS_PAGE_SIZE = 200; // most the API returns at once
+    // What each token is sealed for, along with the account's handle
+    public static final String ACCESS_TOKEN = "access_token";
+    public static final String ACCESS_TOKEN_SECRET = "access_token_secret";
 
     private final Twitter twitter;
-    private final EncryptionClient encryptionClient;
-    private final String encryptionKeyName;
+    private final EnvelopeEncryptionClient tokenEncryption;
+    private final int maxMentionsPerCycle;
+    private final RateLimitTracker rateLimits;
+    private final Metrics metrics;
     private TwitterAccount account;
+    private long mentionCursor; // newest mention seen for this account
+    private ReplyTemplate.Bound replyTemplate; // the account's message, ready to render
 
     @Inject
     TwitterClient(
             Twitter twitter,
-            EncryptionClient encryptionClient,
-            @TwitterEncryptionKey String encryptionKeyName
+            @TwitterTokenEncryption EnvelopeEncryptionClient tokenEncryption,
+            @MaxMentionsPerCycle int maxMentionsPerCycle,
+            RateLimitTracker rateLimits,
+            Metrics metrics
     ) throws TwitterException, IOException {
         this.twitter = twitter;
+        this.rateLimits = rateLimits;
+        this.metrics = metrics;
         this.account = TwitterAccount.getDefaultInstance();
-        this.encryptionClient = encryptionClient;
-        this.encryptionKeyName = encryptionKeyName;
+        this.tokenEncryption = tokenEncryption;
+        this.maxMentionsPerCycle = maxMentionsPerCycle;
+    }
+
+    // Receives replies as each page of mentions is fetched
+    public interface ReplyConsumer {
+        void accept(ImmutableList<StatusUpdate> replies) throws TwitterException;
+    }
+
+    private interface TwitterCall<T extends TwitterResponse> {
+        T call() throws TwitterException;
     }
 
     public void authenticate(TwitterAccount account) throws TwitterException, IOException {
         AccessToken accessToken = new AccessToken(
-          encryptionClient.decrypt(encryptionKeyName, account.getAccessToken()),
-          encryptionClient.decrypt(encryptionKeyName, account.getAccessTokenSecret()));
+          tokenEncryption.decrypt(account.getHandle(), ACCESS_TOKEN, account.getAccessToken()),
+          tokenEncryption.decrypt(account.getHandle(), ACCESS_TOKEN_SECRET, account.getAccessTokenSecret()));
         twitter.setOAuthAccessToken(accessToken);
         this.account = account;
+        this.mentionCursor = account.getLastProcessedMentionId();
+    }
+
+    // Returns the account with its tokens sealed under the data key, so that authenticating it
+    // again needs no KMS call. Accounts whose tokens are already sealed are returned unchanged.
+    public TwitterAccount resealTokens(TwitterAccount account) throws IOException {
+        if (!tokenEncryption.needsResealing(account.getAccessToken())
+                && !tokenEncryption.needsResealing(account.getAccessTokenSecret())) {
+            return account;
+        }
+        return account.toBuilder()
+                .setAccessToken(tokenEncryption.reseal(account.getHandle(), ACCESS_TOKEN, account.getAccessToken()))
+                .setAccessTokenSecret(
+                        tokenEncryption.reseal(account.getHandle(), ACCESS_TOKEN_SECRET, account.getAccessTokenSecret()))
+                .build();
     }
 
     public ImmutableList<StatusUpdate> makeReplies() throws TwitterException {
-        return prepareReplies(newMentions(lastTweetSentId()));
+        ImmutableList.Builder<StatusUpdate> replies = ImmutableList.builder();
+        makeReplies(replies::addAll);
+        return replies.build();
+    }
+
+    // Replies to every mention since the account's stored mention cursor, which activating the
+    // account moves up to the start of its away period. Accounts without one fall back to
+    // replying to everything since the user's own last tweet.
+    //
+    // Mentions are fetched newest first, a page at a time, walking back to the cursor. The replies
+    // for each page are passed on before the next page is fetched. At most maxMentionsPerCycle
+    // mentions are dealt with per call; for very busy accounts the oldest mentions beyond that are
+    // skipped, as a late away message is worth less than a timely one.
+    public void makeReplies(ReplyConsumer consumer) throws TwitterException {
+        long sinceId = account.hasLastProcessedMentionId() ? account.getLastProcessedMentionId() : lastTweetSentId();
+        replyTemplate = ReplyTemplate
+                .forMessage(account.hasMessage() ? account.getMessage() : DEFAULT_MESSAGE)
+                .bind(account, TWEET_LENGTH);
+        mentionCursor = sinceId;
+        long maxId = 0;
+        int fetched = 0;
+        while (fetched < maxMentionsPerCycle) {
+            ResponseList<Status> mentions =
+                    mentionsPage(sinceId, maxId, Math.min(MENTIONS_PAGE_SIZE, maxMentionsPerCycle - fetched));
+            if (mentions.isEmpty()) {
+                return;
+            }
+            long oldestId = Long.MAX_VALUE;
+            for (Status mention : mentions) {
+                mentionCursor = Math.max(mentionCursor, mention.getId());
+                oldestId = Math.min(oldestId, mention.getId());
+            }
+            fetched += mentions.size();
+            consumer.accept(prepareReplies(mentions));
+
+            maxId = oldestId - 1;
+            if (maxId <= sinceId) {
+                return;
+            }
+        }
+    }
+
+    // Id of the newest mention returned by makeReplies, or the id it started from if there were
+    // none. Once the replies are sent this is the account's new last processed mention id.
+    public long getMentionCursor() {
+        return mentionCursor;
     }
 
     public ImmutableList<Status> sendReplies(ImmutableList<StatusUpdate> repliesToSend)
             throws TwitterException {
         ImmutableList.Builder<Status> sent = ImmutableList.builder();
         for (StatusUpdate reply : repliesToSend) {
-            sent.add(twitter.updateStatus(reply));
+            sent.add(sendReply(reply));
         }
         return sent.build();
     }
 
+    // Posts a single reply as the authenticated account. Safe to call from other threads once the
+    // account is authenticated, so replies can be posted while the next account is prepared.
+    public Status sendReply(StatusUpdate reply) throws TwitterException {
+        return tracked(Endpoint.UPDATE_STATUS, () -> twitter.updateStatus(reply));
+    }
+
     private long lastTweetSentId() throws TwitterException {
-        ResponseList<Status> latestTweets = twitter.getUserTimeline();
+        ResponseList<Status> latestTweets = tracked(Endpoint.USER_TIMELINE, twitter::getUserTimeline);
         if (latestTweets.isEmpty()) {
             return 0;
         }
         return latestTweets.get(0).getId();
     }
 
-    private ResponseList<Status> newMentions(long sinceId) throws TwitterException {
-        Paging paging = sinceId == 0 ? new Paging() : new Paging(sinceId);
-        return twitter.getMentionsTimeline(paging);
+    private ResponseList<Status> mentionsPage(long sinceId, long maxId, int count) throws TwitterException {
+        Paging paging = new Paging().count(count);
+        if (sinceId != 0) {
+            paging.setSinceId(sinceId);
+        }
+        if (maxId != 0) {
+            paging.setMaxId(maxId);
+        }
+        return tracked(Endpoint.MENTIONS_TIMELINE, () -> twitter.getMentionsTimeline(paging));
     }
 
     private ResponseList<Status> newTweets(long sinceId) throws TwitterException {
         Paging paging = sinceId == 0 ? new Paging() : new Paging(sinceId);
-        return twitter.getUserTimeline(paging);
+        return tracked(Endpoint.USER_TIMELINE, () -> twitter.getUserTimeline(paging));
+    }
+
+    // Makes the call, recording how long it took and the rate limit budget Twitter reports for it
+    private <T extends TwitterResponse> T tracked(Endpoint endpoint, TwitterCall<T> call) throws TwitterException {
+        String metric = "twitter." + endpoint.name().toLowerCase();
+        try (Timer timer = metrics.start(metric)) {
+            T response = call.call();
+            rateLimits.record(account.getHandle(), endpoint, response.getRateLimitStatus());
+            return response;
+        } catch (TwitterException e) {
+            metrics.increment(metric + ".errors");
+            rateLimits.record(account.getHandle(), endpoint, e);
+            throw e;
+        }
     }
 
     private ImmutableList<StatusUpdate> prepareReplies(List<Status> tweetsToReplyTo) {
@@ -94,49 +197,9 @@ public class TwitterClient {
     }
 
     private StatusUpdate prepareReply(Status tweetToReplyTo) {
-        String baseMessage = account.hasMessage() ? account.getMessage() : DEFAULT_MESSAGE;
-        String finalMessage = handleMessageReplacement(baseMessage, tweetToReplyTo);
-        StatusUpdate reply = new StatusUpdate(finalMessage);
+        StatusUpdate reply = new StatusUpdate(replyTemplate.render(tweetToReplyTo.getUser().getScreenName()));
         reply.setInReplyToStatusId(tweetToReplyTo.getId());
         reply.setDisplayCoordinates(false);
         return reply;
     }
-
-    private String handleMessageReplacement(String baseMessage, Status tweetToReplyTo) {
-        String user = tweetToReplyTo.getUser().getScreenName();
-        String endDate = getEndDateString();
-        return replacedMessage(baseMessage, user, endDate);
-    }
-
-    private String replacedMessage(String baseMessage, String user, String endDate) {
-        String newMessage = baseMessage
-                .replace("{USER}", "@" + user)
-                .replace("{END_DATE}", endDate);
-        return StringUtils.abbreviate(newMessage, TWEET_LENGTH);
-    }
-
-    private String getEndDateString() {
-        Instant endMoment = Instant.ofEpochSecond(account.getActiveUntil().getSeconds());
-        LocalDate endDate = endMoment.atZone(getZoneId()).toLocalDate();
-        DateTimeFormatter formatter = DateTimeFormatter
-                .ofLocalizedDate(FormatStyle.MEDIUM)
-                .withLocale(getLocale());
-        return endDate.format(formatter);
-    }
-
-    private Locale getLocale() {
-        try {
-            return new Locale(account.getLocale());
-        } catch (Exception e) {
-            return DEFAULT_LOCALE;
-        }
-    }
-
-    private ZoneId getZoneId() {
-        try {
-            return ZoneId.of(account.getTimezone());
-        } catch (Exception e) {
-            return DEFAULT_TIMEZONE;
-        }
-    }
 }
@@ -7,20 +7,63 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.BindingAnnotation;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.outofoctopus.db.MediumDAO;
+import com.outofoctopus.db.MediumDAO.MediumName;
+import com.outofoctopus.encryption.EncryptionClient;
+import com.outofoctopus.encryption.EnvelopeEncryptionClient;
+import com.outofoctopus.encryption.KmsEncryptionClient;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.util.Optional;
 import twitter4j.Twitter;
 
 public class TwitterClientModule extends AbstractModule {
 
+    private static final int MAX_MENTIONS_PER_CYCLE = 1000;
+
     @Override
     protected void configure() {
         bind(String.class).annotatedWith(TwitterEncryptionKey.class).toInstance("octopus-twitter");
+        bind(Integer.class).annotatedWith(MaxMentionsPerCycle.class).toInstance(MAX_MENTIONS_PER_CYCLE);
         bind(Twitter.class).toProvider(TwitterProvider.class);
     }
 
+    // User tokens are sealed under the twitter data key, which is created on first use
+    @Provides
+    @Singleton
+    @TwitterTokenEncryption
+    EnvelopeEncryptionClient provideTokenEncryption(
+            EncryptionClient encryptionClient,
+            KmsEncryptionClient kms,
+            MediumDAO mediumDAO,
+            @TwitterEncryptionKey String encryptionKeyName) throws IOException {
+        if (!mediumDAO.getDataKey(MediumName.TWITTER).isPresent()) {
+            mediumDAO.setDataKeyIfAbsent(
+                    MediumName.TWITTER,
+                    EnvelopeEncryptionClient.newWrappedDataKey(kms, encryptionKeyName));
+        }
+        // Re-read in case another instance stored its key first
+        Optional<String> wrappedDataKey = mediumDAO.getDataKey(MediumName.TWITTER);
+        return new EnvelopeEncryptionClient(encryptionClient, kms, encryptionKeyName, wrappedDataKey);
+    }
+
     @BindingAnnotation
     @Target({ FIELD, PARAMETER, METHOD })
     @Retention(RUNTIME)
     @interface TwitterEncryptionKey {}
+
+    // Encrypts and decrypts twitter users' access tokens
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface TwitterTokenEncryption {}
+
+    // Most mentions of a single account to reply to in one scan
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface MaxMentionsPerCycle {}
 }
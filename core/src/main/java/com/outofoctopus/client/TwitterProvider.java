@@ -1,47 +1,115 @@
 package com.outofoctopus.client;
 
+import com.google.common.base.Ticker;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
 import com.outofoctopus.client.TwitterClientModule.TwitterEncryptionKey;
+import com.outofoctopus.db.ConsumerCredentials;
 import com.outofoctopus.db.MediumDAO;
 import com.outofoctopus.db.MediumDAO.MediumName;
 import com.outofoctopus.encryption.EncryptionClient;
+import com.outofoctopus.metrics.Metrics;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import twitter4j.Twitter;
 import twitter4j.TwitterFactory;
 import twitter4j.conf.ConfigurationBuilder;
 
+// Hands out a fresh Twitter instance per account from one shared factory. The app's consumer
+// credentials are read and decrypted once, then reloaded every so often in case they've been
+// rotated; if reloading fails, the credentials already loaded carry on being used.
+@Singleton
 public class TwitterProvider implements Provider<Twitter> {
+    private static final Duration REFRESH_INTERVAL = Duration.ofHours(1);
 
     private final MediumDAO mediumDAO;
     private final EncryptionClient encryptionClient;
     private final String encryptionKeyName;
+    private final Metrics metrics;
+    private final Ticker ticker;
+    private final long refreshNanos;
+    private volatile Loaded loaded; // null until first loaded
 
     @Inject
     TwitterProvider(
             MediumDAO mediumDAO,
             EncryptionClient encryptionClient,
-            @TwitterEncryptionKey String encryptionKeyName) {
+            @TwitterEncryptionKey String encryptionKeyName,
+            Metrics metrics) {
+        this(mediumDAO, encryptionClient, encryptionKeyName, metrics, REFRESH_INTERVAL, Ticker.systemTicker());
+    }
+
+    TwitterProvider(
+            MediumDAO mediumDAO,
+            EncryptionClient encryptionClient,
+            String encryptionKeyName,
+            Metrics metrics,
+            Duration refreshInterval,
+            Ticker ticker) {
         this.mediumDAO = mediumDAO;
         this.encryptionClient = encryptionClient;
         this.encryptionKeyName = encryptionKeyName;
+        this.metrics = metrics;
+        this.ticker = ticker;
+        this.refreshNanos = refreshInterval.toNanos();
     }
 
+    // Throws if the credentials have never been loaded successfully
     public Twitter get() {
+        Loaded current = loaded;
+        if (current == null || current.isStale()) {
+            current = refresh();
+        }
+        return current.factory.getInstance();
+    }
+
+    private synchronized Loaded refresh() {
+        // Another thread may have refreshed while this one waited
+        Loaded current = loaded;
+        if (current != null && !current.isStale()) {
+            return current;
+        }
         try {
-            String consumerKey =
-                    encryptionClient.decrypt(encryptionKeyName, mediumDAO.getConsumerKey(MediumName.TWITTER).get());
-            String consumerSecret =
-                    encryptionClient.decrypt(encryptionKeyName, mediumDAO.getConsumerSecret(MediumName.TWITTER).get());
-
-            ConfigurationBuilder cb = new ConfigurationBuilder();
-            cb.setDebugEnabled(true)
-                    .setOAuthConsumerKey(consumerKey)
-                    .setOAuthConsumerSecret(consumerSecret);
-
-            return new TwitterFactory(cb.build()).getInstance();
-        } catch (Exception e) {
-            return null;
+            loaded = new Loaded(load(), ticker.read());
+            metrics.increment("twitter.consumer.refreshes");
+        } catch (RuntimeException e) {
+            metrics.increment("twitter.consumer.refresh_failed");
+            if (current == null) {
+                throw e;
+            }
+            // Failures wait for the next interval too, rather than hitting KMS on every call
+            loaded = new Loaded(current.factory, ticker.read());
+        }
+        return loaded;
+    }
+
+    private TwitterFactory load() {
+        ConsumerCredentials credentials = mediumDAO.getConsumerCredentials(MediumName.TWITTER)
+                .orElseThrow(() -> new IllegalStateException("No consumer credentials stored for twitter"));
+        try {
+            return new TwitterFactory(new ConfigurationBuilder()
+                    .setDebugEnabled(true)
+                    .setOAuthConsumerKey(encryptionClient.decrypt(encryptionKeyName, credentials.getConsumerKey()))
+                    .setOAuthConsumerSecret(encryptionClient.decrypt(encryptionKeyName, credentials.getConsumerSecret()))
+                    .build());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decrypt twitter consumer credentials", e);
+        }
+    }
+
+    private final class Loaded {
+        private final TwitterFactory factory;
+        private final long loadedAt;
+
+        private Loaded(TwitterFactory factory, long loadedAt) {
+            this.factory = factory;
+            this.loadedAt = loadedAt;
+        }
+
+        private boolean isStale() {
+            return ticker.read() - loadedAt >= refreshNanos;
         }
     }
 }
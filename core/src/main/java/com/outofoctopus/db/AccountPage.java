@@ -0,0 +1,33 @@
+package com.outofoctopus.db;
+
+import com.google.common.collect.ImmutableList;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.util.Optional;
+
+// One page of accounts from a paged query, plus the cursor to fetch the page after it
+public final class AccountPage {
+    private final ImmutableList<TwitterAccount> accounts;
+    private final Optional<String> nextCursor;
+
+    private AccountPage(ImmutableList<TwitterAccount> accounts, Optional<String> nextCursor) {
+        this.accounts = accounts;
+        this.nextCursor = nextCursor;
+    }
+
+    public static AccountPage of(ImmutableList<TwitterAccount> accounts, Optional<String> nextCursor) {
+        return new AccountPage(accounts, nextCursor);
+    }
+
+    public static AccountPage last(ImmutableList<TwitterAccount> accounts) {
+        return new AccountPage(accounts, Optional.empty());
+    }
+
+    public ImmutableList<TwitterAccount> getAccounts() {
+        return accounts;
+    }
+
+    // Absent once the query has no more results
+    public Optional<String> getNextCursor() {
+        return nextCursor;
+    }
+}
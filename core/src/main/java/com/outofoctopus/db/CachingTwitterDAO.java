@@ -0,0 +1,241 @@
+package com.outofoctopus.db;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.db.TwitterDAOModule.AccountCacheSize;
+import com.outofoctopus.db.TwitterDAOModule.AccountCacheTtl;
+import com.outofoctopus.db.TwitterDAOModule.MissingAccountCacheTtl;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Remembers accounts looked up by handle, so that the web tier and the scanner asking for the same
+// accounts doesn't cost an entity read each time. Concurrent lookups of the same uncached handle
+// share a single read. Handles with no account are remembered too, for a shorter time, unless
+// that time is zero.
+//
+// Writes made through this DAO drop the accounts they touch. Writes made by other processes are
+// only seen once the cached copy expires, so the TTL bounds how stale an account can be. Writing
+// back a stale copy with its version is a CONFLICT rather than a lost update.
+@Singleton
+public class CachingTwitterDAO implements TwitterDAO {
+    private final TwitterDAO delegate;
+    private final Cache<String, TwitterAccount> accounts;
+    private final Cache<String, Boolean> missing;
+
+    @Inject
+    public CachingTwitterDAO(
+            TwitterDatastoreDAO delegate,
+            @AccountCacheSize long maxSize,
+            @AccountCacheTtl Duration ttl,
+            @MissingAccountCacheTtl Duration missingTtl) {
+        this(delegate, maxSize, ttl, missingTtl, Ticker.systemTicker());
+    }
+
+    CachingTwitterDAO(TwitterDAO delegate, long maxSize, Duration ttl, Duration missingTtl, Ticker ticker) {
+        this.delegate = delegate;
+        this.accounts = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .recordStats()
+                .build();
+        this.missing = CacheBuilder.newBuilder()
+                .maximumSize(missingTtl.isZero() ? 0 : maxSize)
+                .expireAfterWrite(missingTtl.toNanos(), TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public Optional<TwitterAccount> getAccount(String handle) {
+        if (missing.getIfPresent(handle) != null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(accounts.get(handle, () -> delegate.getAccount(handle).orElseThrow(() -> {
+                missing.put(handle, true);
+                return new NoSuchAccountException();
+            })));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof NoSuchAccountException) {
+                return Optional.empty();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Fetches only the handles that aren't cached, in one batch
+    @Override
+    public ImmutableMap<String, TwitterAccount> getAccounts(Iterable<String> handles) {
+        ImmutableSet<String> wanted = ImmutableSet.copyOf(handles);
+        Map<String, TwitterAccount> cached = accounts.getAllPresent(wanted);
+        List<String> toFetch = new ArrayList<>();
+        for (String handle : wanted) {
+            if (!cached.containsKey(handle) && missing.getIfPresent(handle) == null) {
+                toFetch.add(handle);
+            }
+        }
+        ImmutableMap<String, TwitterAccount> fetched =
+                toFetch.isEmpty() ? ImmutableMap.of() : delegate.getAccounts(toFetch);
+        accounts.putAll(fetched);
+        for (String handle : toFetch) {
+            if (!fetched.containsKey(handle)) {
+                missing.put(handle, true);
+            }
+        }
+
+        // In the order asked for
+        ImmutableMap.Builder<String, TwitterAccount> found = ImmutableMap.builder();
+        for (String handle : wanted) {
+            TwitterAccount account = cached.containsKey(handle) ? cached.get(handle) : fetched.get(handle);
+            if (account != null) {
+                found.put(handle, account);
+            }
+        }
+        return found.build();
+    }
+
+    @Override
+    public ImmutableList<TwitterAccount> getActiveAccounts() {
+        return delegate.getActiveAccounts();
+    }
+
+    @Override
+    public ImmutableList<TwitterAccount> getAccountsToActivate() {
+        return delegate.getAccountsToActivate();
+    }
+
+    @Override
+    public AccountPage getAccountPage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return delegate.getAccountPage(query, startCursor, pageSize);
+    }
+
+    @Override
+    public AccountPage getSchedulePage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return delegate.getSchedulePage(query, startCursor, pageSize);
+    }
+
+    @Override
+    public TwitterDAOResult insert(TwitterAccount newAccount) {
+        try {
+            return delegate.insert(newAccount);
+        } finally {
+            invalidate(newAccount.getHandle());
+        }
+    }
+
+    @Override
+    public TwitterDAOResult delete(String handle) {
+        try {
+            return delegate.delete(handle);
+        } finally {
+            invalidate(handle);
+        }
+    }
+
+    @Override
+    public TwitterDAOResult update(TwitterAccount updatedAccount) {
+        try {
+            return delegate.update(updatedAccount);
+        } finally {
+            invalidate(updatedAccount.getHandle());
+        }
+    }
+
+    @Override
+    public TwitterDAOResult patch(TwitterAccount changes) {
+        try {
+            return delegate.patch(changes);
+        } finally {
+            invalidate(changes.getHandle());
+        }
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> insertAll(Iterable<TwitterAccount> newAccounts) {
+        try {
+            return delegate.insertAll(newAccounts);
+        } finally {
+            newAccounts.forEach(account -> invalidate(account.getHandle()));
+        }
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> updateAll(Iterable<TwitterAccount> updatedAccounts) {
+        try {
+            return delegate.updateAll(updatedAccounts);
+        } finally {
+            updatedAccounts.forEach(account -> invalidate(account.getHandle()));
+        }
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> patchAll(Iterable<TwitterAccount> changes) {
+        try {
+            return delegate.patchAll(changes);
+        } finally {
+            changes.forEach(account -> invalidate(account.getHandle()));
+        }
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> deleteAll(Iterable<String> handles) {
+        try {
+            return delegate.deleteAll(handles);
+        } finally {
+            handles.forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public TwitterDAOResult updateMentionCursor(String handle, long lastProcessedMentionId) {
+        try {
+            return delegate.updateMentionCursor(handle, lastProcessedMentionId);
+        } finally {
+            invalidate(handle);
+        }
+    }
+
+    @Override
+    public TwitterDAOResult updatePollSchedule(String handle, TwitterAccount schedule) {
+        try {
+            return delegate.updatePollSchedule(handle, schedule);
+        } finally {
+            invalidate(handle);
+        }
+    }
+
+    // Hit, miss and eviction counts for accounts found since the DAO was created
+    public CacheStats getStats() {
+        return accounts.stats();
+    }
+
+    private void invalidate(String handle) {
+        accounts.invalidate(handle);
+        missing.invalidate(handle);
+    }
+
+    // Thrown from a cache load to say there's no account, without caching anything for it
+    private static final class NoSuchAccountException extends RuntimeException {
+        private NoSuchAccountException() {
+            super(null, null, false, false);
+        }
+    }
+}
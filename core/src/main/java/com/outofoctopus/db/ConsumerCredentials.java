@@ -0,0 +1,20 @@
+package com.outofoctopus.db;
+
+// A medium's app credentials, as stored (i.e. still encrypted)
+public final class ConsumerCredentials {
+    private final String consumerKey;
+    private final String consumerSecret;
+
+    public ConsumerCredentials(String consumerKey, String consumerSecret) {
+        this.consumerKey = consumerKey;
+        this.consumerSecret = consumerSecret;
+    }
+
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+
+    public String getConsumerSecret() {
+        return consumerSecret;
+    }
+}
@@ -7,7 +7,12 @@ public interface MediumDAO {
         TWITTER
     }
 
-    Optional<String> getConsumerKey(MediumName name);
+    // Both consumer credentials from a single read
+    Optional<ConsumerCredentials> getConsumerCredentials(MediumName name);
 
-    Optional<String> getConsumerSecret(MediumName name);
+    // KMS-wrapped key used to envelope encrypt this medium's user tokens
+    Optional<String> getDataKey(MediumName name);
+
+    // Stores the wrapped data key unless the medium already has one. Returns true iff it was stored.
+    boolean setDataKeyIfAbsent(MediumName name, String wrappedDataKey);
 }
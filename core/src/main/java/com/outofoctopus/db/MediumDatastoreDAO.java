@@ -4,8 +4,12 @@ import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.Transaction;
 import com.google.inject.Inject;
 import com.outofoctopus.db.MediumDAOModule.MediumInject;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
 
 import java.util.Optional;
 
@@ -13,29 +17,58 @@ public class MediumDatastoreDAO implements MediumDAO {
 
     private final Datastore datastore;
     private final KeyFactory keyFactory;
+    private final Metrics metrics;
 
     @Inject
     public MediumDatastoreDAO(
             Datastore datastore,
-            @MediumInject KeyFactory keyFactory) {
+            @MediumInject KeyFactory keyFactory,
+            Metrics metrics) {
         this.datastore = datastore;
         this.keyFactory = keyFactory;
+        this.metrics = metrics;
     }
 
-    public Optional<String> getConsumerKey(MediumName name) {
-        Entity result = datastore.get(getKey(name));
-        if (result == null) {
-            return Optional.empty();
+    public Optional<ConsumerCredentials> getConsumerCredentials(MediumName name) {
+        try (Timer timer = metrics.start("datastore.medium.getConsumerCredentials")) {
+            Entity result = datastore.get(getKey(name));
+            if (result == null) {
+                return Optional.empty();
+            }
+            return Optional.of(new ConsumerCredentials(
+                    result.getString("consumerKey"), result.getString("consumerSecret")));
         }
-        return Optional.of(result.getString("consumerKey"));
     }
 
-    public Optional<String> getConsumerSecret(MediumName name) {
-        Entity result = datastore.get(getKey(name));
-        if (result == null) {
-            return Optional.empty();
+    public Optional<String> getDataKey(MediumName name) {
+        try (Timer timer = metrics.start("datastore.medium.getDataKey")) {
+            Entity result = datastore.get(getKey(name));
+            if (result == null || !result.contains("dataKey")) {
+                return Optional.empty();
+            }
+            return Optional.of(result.getString("dataKey"));
+        }
+    }
+
+    public boolean setDataKeyIfAbsent(MediumName name, String wrappedDataKey) {
+        try (Timer timer = metrics.start("datastore.medium.setDataKeyIfAbsent")) {
+            Transaction transaction = datastore.newTransaction();
+            try {
+                Entity medium = transaction.get(getKey(name));
+                if (medium == null || medium.contains("dataKey")) {
+                    return false;
+                }
+                transaction.put(Entity.newBuilder(medium)
+                        .set("dataKey", StringValue.newBuilder(wrappedDataKey).setExcludeFromIndexes(true).build())
+                        .build());
+                transaction.commit();
+                return true;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
         }
-        return Optional.of(result.getString("consumerSecret"));
     }
 
     private Key getKey(MediumName name) {
@@ -0,0 +1,66 @@
+package com.outofoctopus.db;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.outofoctopus.db.TwitterDAO.AccountQuery;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+// Walks a query one page at a time, so only a single page of accounts is ever held in memory.
+// The next page is not fetched until the current one has been consumed.
+public class PagedAccountIterator implements Iterator<TwitterAccount> {
+    private final TwitterDAO dao;
+    private final AccountQuery query;
+    private final int pageSize;
+
+    private Optional<String> pageCursor; // cursor the current page was fetched from
+    private Optional<String> nextCursor; // cursor for the page after the current one
+    private Iterator<TwitterAccount> page;
+    private boolean lastPage;
+
+    PagedAccountIterator(TwitterDAO dao, AccountQuery query, Optional<String> startCursor, int pageSize) {
+        checkArgument(pageSize > 0, "Page size must be positive, got %s", pageSize);
+        this.dao = dao;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.pageCursor = startCursor;
+        this.nextCursor = startCursor;
+        this.page = null;
+        this.lastPage = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (page == null || !page.hasNext()) {
+            if (lastPage) {
+                return false;
+            }
+            fetchNextPage();
+        }
+        return true;
+    }
+
+    @Override
+    public TwitterAccount next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    // Cursor from which iteration can be resumed without skipping any account not yet returned.
+    // Accounts already returned from the current page will be returned again.
+    public Optional<String> getResumeCursor() {
+        return pageCursor;
+    }
+
+    private void fetchNextPage() {
+        AccountPage fetched = dao.getAccountPage(query, nextCursor, pageSize);
+        pageCursor = nextCursor;
+        nextCursor = fetched.getNextCursor();
+        lastPage = !nextCursor.isPresent();
+        page = fetched.getAccounts().iterator();
+    }
+}
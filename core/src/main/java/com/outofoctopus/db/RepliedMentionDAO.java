@@ -0,0 +1,20 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableSet;
+
+// Which mentions of each account have been replied to, keyed by the account's handle and the id
+// of the mention. Records are kept until the given expiry, after which they no longer count.
+public interface RepliedMentionDAO {
+    // Every mention id recorded for the account, expired or not
+    ImmutableSet<Long> getAllReplied(String handle);
+
+    // The given mentions that have a record which hasn't expired by now
+    ImmutableSet<Long> getReplied(String handle, Iterable<Long> mentionIds, Timestamp now);
+
+    // Records the mentions as replied to until expiresAt, replacing any earlier records of them
+    void recordReplied(String handle, Iterable<Long> mentionIds, Timestamp expiresAt);
+
+    // Deletes the records that expired before now, returning how many there were
+    int deleteExpired(Timestamp now);
+}
@@ -0,0 +1,32 @@
+package com.outofoctopus.db;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.inject.AbstractModule;
+import com.google.inject.BindingAnnotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+public class RepliedMentionDAOModule extends AbstractModule {
+
+    private static final Datastore DATASTORE = DatastoreOptions.getDefaultInstance().getService();
+    private static final KeyFactory REPLIED_MENTION_KEY_FACTORY =
+            DATASTORE.newKeyFactory().setKind("replied_mention");
+
+    @Override
+    public void configure() {
+        bind(RepliedMentionDAO.class).to(RepliedMentionDatastoreDAO.class);
+        bind(KeyFactory.class).annotatedWith(RepliedMentionInject.class).toInstance(REPLIED_MENTION_KEY_FACTORY);
+    }
+
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface RepliedMentionInject {}
+}
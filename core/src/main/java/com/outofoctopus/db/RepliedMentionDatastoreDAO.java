@@ -0,0 +1,115 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.outofoctopus.db.RepliedMentionDAOModule.RepliedMentionInject;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
+import java.util.Iterator;
+import java.util.List;
+
+// One entity per replied mention, named after the handle and the mention id. The handle is
+// indexed so an account's records can be listed with a keys-only query, and the expiry so that
+// expired records can be found and deleted.
+public class RepliedMentionDatastoreDAO implements RepliedMentionDAO {
+    private static final String KIND_STRING = "replied_mention";
+    private static final String HANDLE_FIELD = "handle";
+    private static final String MENTION_ID_FIELD = "mention_id";
+    private static final String EXPIRES_AT_FIELD = "expires_at";
+    private static final int MAX_KEYS_PER_LOOKUP = 1000;
+    private static final int MAX_MUTATIONS_PER_COMMIT = 500;
+
+    private final Datastore datastore;
+    private final KeyFactory keyFactory;
+    private final Metrics metrics;
+
+    @Inject
+    public RepliedMentionDatastoreDAO(
+            Datastore datastore,
+            @RepliedMentionInject KeyFactory keyFactory,
+            Metrics metrics) {
+        this.datastore = datastore;
+        this.keyFactory = keyFactory;
+        this.metrics = metrics;
+    }
+
+    public ImmutableSet<Long> getAllReplied(String handle) {
+        try (Timer timer = metrics.start("datastore.replied.getAllReplied")) {
+            QueryResults<Key> results = datastore.run(Query.newKeyQueryBuilder()
+                    .setKind(KIND_STRING)
+                    .setFilter(PropertyFilter.eq(HANDLE_FIELD, handle))
+                    .build());
+            ImmutableSet.Builder<Long> replied = ImmutableSet.builder();
+            while (results.hasNext()) {
+                replied.add(parseMentionId(results.next()));
+            }
+            return replied.build();
+        }
+    }
+
+    public ImmutableSet<Long> getReplied(String handle, Iterable<Long> mentionIds, Timestamp now) {
+        try (Timer timer = metrics.start("datastore.replied.getReplied")) {
+            ImmutableSet.Builder<Long> replied = ImmutableSet.builder();
+            for (List<Long> batch : Iterables.partition(ImmutableSet.copyOf(mentionIds), MAX_KEYS_PER_LOOKUP)) {
+                Iterator<Entity> results = datastore.get(Lists.transform(batch, id -> getKey(handle, id)));
+                while (results.hasNext()) {
+                    Entity record = results.next();
+                    if (record.getTimestamp(EXPIRES_AT_FIELD).compareTo(now) > 0) {
+                        replied.add(record.getLong(MENTION_ID_FIELD));
+                    }
+                }
+            }
+            return replied.build();
+        }
+    }
+
+    public void recordReplied(String handle, Iterable<Long> mentionIds, Timestamp expiresAt) {
+        try (Timer timer = metrics.start("datastore.replied.recordReplied")) {
+            for (List<Long> batch : Iterables.partition(ImmutableSet.copyOf(mentionIds), MAX_MUTATIONS_PER_COMMIT)) {
+                datastore.put(batch.stream()
+                        .map(id -> Entity.newBuilder(getKey(handle, id))
+                                .set(HANDLE_FIELD, handle)
+                                .set(MENTION_ID_FIELD, LongValue.newBuilder(id).setExcludeFromIndexes(true).build())
+                                .set(EXPIRES_AT_FIELD, expiresAt)
+                                .build())
+                        .toArray(Entity[]::new));
+            }
+        }
+    }
+
+    public int deleteExpired(Timestamp now) {
+        try (Timer timer = metrics.start("datastore.replied.deleteExpired")) {
+            QueryResults<Key> results = datastore.run(Query.newKeyQueryBuilder()
+                    .setKind(KIND_STRING)
+                    .setFilter(PropertyFilter.lt(EXPIRES_AT_FIELD, now))
+                    .build());
+            ImmutableList<Key> expired = ImmutableList.copyOf(results);
+            for (List<Key> batch : Lists.partition(expired, MAX_MUTATIONS_PER_COMMIT)) {
+                datastore.delete(batch.toArray(new Key[0]));
+            }
+            return expired.size();
+        }
+    }
+
+    // Twitter handles never contain a slash, so everything after the last one is the mention id
+    private Key getKey(String handle, long mentionId) {
+        return keyFactory.newKey(handle + "/" + mentionId);
+    }
+
+    private static long parseMentionId(Key key) {
+        String name = key.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('/') + 1));
+    }
+}
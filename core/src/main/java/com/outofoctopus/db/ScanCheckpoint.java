@@ -0,0 +1,66 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableSet;
+import com.outofoctopus.db.TwitterDAO.AccountQuery;
+import java.util.Optional;
+
+// How far a scanner has got through its sweep, so that a scanner restarted partway through can
+// carry on from there. The cursor is the start of the earliest page of the query that isn't
+// finished yet; completed holds the accounts from there on that are. Accounts that failed are
+// kept for the next sweep to retry, whether or not this one is finished.
+public final class ScanCheckpoint {
+    private final String sweepId;
+    private final boolean finished;
+    private final AccountQuery query;
+    private final Optional<String> cursor;
+    private final ImmutableSet<String> completed;
+    private final ImmutableSet<String> retry;
+    private final Timestamp updatedAt;
+
+    public ScanCheckpoint(
+            String sweepId,
+            boolean finished,
+            AccountQuery query,
+            Optional<String> cursor,
+            ImmutableSet<String> completed,
+            ImmutableSet<String> retry,
+            Timestamp updatedAt) {
+        this.sweepId = sweepId;
+        this.finished = finished;
+        this.query = query;
+        this.cursor = cursor;
+        this.completed = completed;
+        this.retry = retry;
+        this.updatedAt = updatedAt;
+    }
+
+    public String getSweepId() {
+        return sweepId;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public AccountQuery getQuery() {
+        return query;
+    }
+
+    // Absent to start from the beginning of the query
+    public Optional<String> getCursor() {
+        return cursor;
+    }
+
+    public ImmutableSet<String> getCompleted() {
+        return completed;
+    }
+
+    public ImmutableSet<String> getRetry() {
+        return retry;
+    }
+
+    public Timestamp getUpdatedAt() {
+        return updatedAt;
+    }
+}
@@ -0,0 +1,11 @@
+package com.outofoctopus.db;
+
+import java.util.Optional;
+
+// The latest checkpoint of each scanner, keyed by the scanner's id
+public interface ScanCheckpointDAO {
+    Optional<ScanCheckpoint> get(String scannerId);
+
+    // Replaces the scanner's previous checkpoint
+    void save(String scannerId, ScanCheckpoint checkpoint);
+}
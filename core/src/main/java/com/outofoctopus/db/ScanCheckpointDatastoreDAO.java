@@ -0,0 +1,99 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.BooleanValue;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.TimestampValue;
+import com.google.cloud.datastore.Value;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.outofoctopus.db.ScanCheckpointDAOModule.ScanCheckpointInject;
+import com.outofoctopus.db.TwitterDAO.AccountQuery;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
+import java.util.Optional;
+
+// One entity per scanner, named after its id. Nothing is queried by, so nothing is indexed; in
+// particular cursors and handle lists can be longer than an indexed property may be.
+public class ScanCheckpointDatastoreDAO implements ScanCheckpointDAO {
+    private static final String SWEEP_ID_FIELD = "sweep_id";
+    private static final String FINISHED_FIELD = "finished";
+    private static final String QUERY_FIELD = "query";
+    private static final String CURSOR_FIELD = "cursor";
+    private static final String COMPLETED_FIELD = "completed";
+    private static final String RETRY_FIELD = "retry";
+    private static final String UPDATED_AT_FIELD = "updated_at";
+
+    private final Datastore datastore;
+    private final KeyFactory keyFactory;
+    private final Metrics metrics;
+
+    @Inject
+    public ScanCheckpointDatastoreDAO(Datastore datastore, @ScanCheckpointInject KeyFactory keyFactory, Metrics metrics) {
+        this.datastore = datastore;
+        this.keyFactory = keyFactory;
+        this.metrics = metrics;
+    }
+
+    public Optional<ScanCheckpoint> get(String scannerId) {
+        try (Timer timer = metrics.start("datastore.checkpoints.get")) {
+            Entity entity = datastore.get(keyFactory.newKey(scannerId));
+            return entity == null ? Optional.empty() : Optional.of(parseCheckpoint(entity));
+        }
+    }
+
+    public void save(String scannerId, ScanCheckpoint checkpoint) {
+        try (Timer timer = metrics.start("datastore.checkpoints.save")) {
+            Entity.Builder entity = Entity.newBuilder(keyFactory.newKey(scannerId))
+                    .set(SWEEP_ID_FIELD, unindexed(checkpoint.getSweepId()))
+                    .set(FINISHED_FIELD, BooleanValue.newBuilder(checkpoint.isFinished())
+                            .setExcludeFromIndexes(true)
+                            .build())
+                    .set(QUERY_FIELD, unindexed(checkpoint.getQuery().name()))
+                    .set(COMPLETED_FIELD, handles(checkpoint.getCompleted()))
+                    .set(RETRY_FIELD, handles(checkpoint.getRetry()))
+                    .set(UPDATED_AT_FIELD, TimestampValue.newBuilder(checkpoint.getUpdatedAt())
+                            .setExcludeFromIndexes(true)
+                            .build());
+            checkpoint.getCursor().ifPresent(cursor -> entity.set(CURSOR_FIELD, unindexed(cursor)));
+            datastore.put(entity.build());
+        }
+    }
+
+    private static ScanCheckpoint parseCheckpoint(Entity entity) {
+        return new ScanCheckpoint(
+                entity.getString(SWEEP_ID_FIELD),
+                entity.getBoolean(FINISHED_FIELD),
+                AccountQuery.valueOf(entity.getString(QUERY_FIELD)),
+                entity.contains(CURSOR_FIELD) ? Optional.of(entity.getString(CURSOR_FIELD)) : Optional.empty(),
+                parseHandles(entity, COMPLETED_FIELD),
+                parseHandles(entity, RETRY_FIELD),
+                entity.getTimestamp(UPDATED_AT_FIELD));
+    }
+
+    // Datastore may leave out empty lists, so a missing property is an empty set
+    private static ImmutableSet<String> parseHandles(Entity entity, String field) {
+        if (!entity.contains(field)) {
+            return ImmutableSet.of();
+        }
+        ImmutableSet.Builder<String> handles = ImmutableSet.builder();
+        for (Value<?> handle : entity.getList(field)) {
+            handles.add((String) handle.get());
+        }
+        return handles.build();
+    }
+
+    private static ListValue handles(ImmutableSet<String> handles) {
+        ListValue.Builder list = ListValue.newBuilder();
+        handles.forEach(handle -> list.addValue(unindexed(handle)));
+        return list.build();
+    }
+
+    private static StringValue unindexed(String value) {
+        return StringValue.newBuilder(value).setExcludeFromIndexes(true).build();
+    }
+}
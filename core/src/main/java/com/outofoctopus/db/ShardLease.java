@@ -0,0 +1,32 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+
+// A scanner worker's claim on a shard of the accounts, valid until it expires
+public final class ShardLease {
+    private final int shard;
+    private final String owner;
+    private final Timestamp expiresAt;
+
+    public ShardLease(int shard, String owner, Timestamp expiresAt) {
+        this.shard = shard;
+        this.owner = owner;
+        this.expiresAt = expiresAt;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Timestamp getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(Timestamp now) {
+        return expiresAt.compareTo(now) <= 0;
+    }
+}
@@ -0,0 +1,27 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public interface ShardLeaseDAO {
+    // Records that the worker is alive until expiresAt, whether or not it holds any shards, so
+    // that workers holding more than their share know to hand some over
+    void registerWorker(String worker, Timestamp expiresAt);
+
+    void deregisterWorker(String worker);
+
+    ImmutableSet<String> getLiveWorkers(Timestamp now);
+
+    // Every lease ever taken, expired or not
+    ImmutableList<ShardLease> getLeases();
+
+    // Takes the shard until expiresAt, provided nobody else holds an unexpired lease on it at
+    // `now`. Holding the lease already counts as success, so this also renews it. Returns false if
+    // someone else holds it or the lease couldn't be written; the caller mustn't assume it owns it.
+    boolean acquire(int shard, String owner, Timestamp expiresAt, Timestamp now);
+
+    // Gives the shard up straight away if the owner still holds it, so it can be taken over
+    // without waiting for the lease to expire
+    void release(int shard, String owner);
+}
@@ -0,0 +1,141 @@
+package com.outofoctopus.db;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.outofoctopus.db.ShardLeaseDAOModule.ShardLeaseInject;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
+
+// One entity per shard, named after the shard number, plus one per worker recording when it was
+// last seen. Leases are only ever changed in a transaction, so two workers racing for the same
+// shard can't both win.
+public class ShardLeaseDatastoreDAO implements ShardLeaseDAO {
+    private static final String KIND_STRING = "shard_lease";
+    private static final String OWNER_FIELD = "owner";
+    private static final String EXPIRES_AT_FIELD = "expires_at";
+    private static final String WORKER_KIND_STRING = "scanner_worker";
+
+    private final Datastore datastore;
+    private final KeyFactory keyFactory;
+    private final KeyFactory workerKeyFactory;
+    private final Metrics metrics;
+
+    @Inject
+    public ShardLeaseDatastoreDAO(Datastore datastore, @ShardLeaseInject KeyFactory keyFactory, Metrics metrics) {
+        this.datastore = datastore;
+        this.keyFactory = keyFactory;
+        this.workerKeyFactory = datastore.newKeyFactory().setKind(WORKER_KIND_STRING);
+        this.metrics = metrics;
+    }
+
+    public void registerWorker(String worker, Timestamp expiresAt) {
+        try (Timer timer = metrics.start("datastore.shards.registerWorker")) {
+            datastore.put(Entity.newBuilder(workerKeyFactory.newKey(worker))
+                    .set(EXPIRES_AT_FIELD, expiresAt)
+                    .build());
+        }
+    }
+
+    public void deregisterWorker(String worker) {
+        try (Timer timer = metrics.start("datastore.shards.deregisterWorker")) {
+            datastore.delete(workerKeyFactory.newKey(worker));
+        }
+    }
+
+    public ImmutableSet<String> getLiveWorkers(Timestamp now) {
+        try (Timer timer = metrics.start("datastore.shards.getLiveWorkers")) {
+            QueryResults<Key> results = datastore.run(Query.newKeyQueryBuilder()
+                    .setKind(WORKER_KIND_STRING)
+                    .setFilter(PropertyFilter.gt(EXPIRES_AT_FIELD, now))
+                    .build());
+            ImmutableSet.Builder<String> workers = ImmutableSet.builder();
+            while (results.hasNext()) {
+                workers.add(results.next().getName());
+            }
+            return workers.build();
+        }
+    }
+
+    public ImmutableList<ShardLease> getLeases() {
+        try (Timer timer = metrics.start("datastore.shards.getLeases")) {
+            QueryResults<Entity> results = datastore.run(Query.newEntityQueryBuilder().setKind(KIND_STRING).build());
+            ImmutableList.Builder<ShardLease> leases = ImmutableList.builder();
+            while (results.hasNext()) {
+                leases.add(parseShardLease(results.next()));
+            }
+            return leases.build();
+        }
+    }
+
+    public boolean acquire(int shard, String owner, Timestamp expiresAt, Timestamp now) {
+        try (Timer timer = metrics.start("datastore.shards.acquire")) {
+            Transaction transaction = datastore.newTransaction();
+            try {
+                Entity current = transaction.get(getKey(shard));
+                if (current != null) {
+                    ShardLease lease = parseShardLease(current);
+                    if (!lease.getOwner().equals(owner) && !lease.isExpired(now)) {
+                        return false;
+                    }
+                }
+                transaction.put(Entity.newBuilder(getKey(shard))
+                        .set(OWNER_FIELD, owner)
+                        .set(EXPIRES_AT_FIELD, expiresAt)
+                        .build());
+                transaction.commit();
+                return true;
+            } catch (DatastoreException e) {
+                // Includes losing a race with another worker, which aborts the commit
+                metrics.increment("datastore.shards.acquire.errors");
+                return false;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
+    }
+
+    public void release(int shard, String owner) {
+        try (Timer timer = metrics.start("datastore.shards.release")) {
+            Transaction transaction = datastore.newTransaction();
+            try {
+                Entity current = transaction.get(getKey(shard));
+                if (current != null && current.getString(OWNER_FIELD).equals(owner)) {
+                    transaction.delete(getKey(shard));
+                    transaction.commit();
+                }
+            } catch (DatastoreException e) {
+                // The lease will run out by itself
+                metrics.increment("datastore.shards.release.errors");
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
+    }
+
+    private static ShardLease parseShardLease(Entity entity) {
+        return new ShardLease(
+                Integer.parseInt(entity.getKey().getName()),
+                entity.getString(OWNER_FIELD),
+                entity.getTimestamp(EXPIRES_AT_FIELD));
+    }
+
+    // Named rather than numbered keys, as Datastore doesn't allow an id of 0
+    private Key getKey(int shard) {
+        return keyFactory.newKey(Integer.toString(shard));
+    }
+}
@@ -1,6 +1,7 @@
 package com.outofoctopus.db;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
 import java.util.Optional;
 
@@ -12,7 +13,14 @@ public interface TwitterDAO {
         NOT_FOUND,
         INVALID_ARGUMENT,
         ERROR_CAN_RETRY,
-        ERROR_DO_NOT_RETRY
+        ERROR_DO_NOT_RETRY,
+        CONFLICT // the account has been written since the version the change was based on
+    }
+
+    enum AccountQuery {
+        ALL,
+        ACTIVE,
+        TO_ACTIVATE // inactive accounts whose away period has started but not yet ended
     }
 
     ImmutableList<TwitterAccount> getActiveAccounts();
@@ -21,10 +29,57 @@ public interface TwitterDAO {
 
     Optional<TwitterAccount> getAccount(String handle);
 
+    // Fetches at most pageSize accounts, starting from the cursor of a previous page (or from the
+    // beginning if absent)
+    AccountPage getAccountPage(AccountQuery query, Optional<String> startCursor, int pageSize);
+
+    default PagedAccountIterator iterateAccounts(AccountQuery query, int pageSize) {
+        return iterateAccounts(query, Optional.empty(), pageSize);
+    }
+
+    default PagedAccountIterator iterateAccounts(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return new PagedAccountIterator(this, query, startCursor, pageSize);
+    }
+
+    // As getAccountPage, but only loads the fields needed to decide whether an account needs
+    // processing: handle, active, active_from, active_until and next_poll_at
+    AccountPage getSchedulePage(AccountQuery query, Optional<String> startCursor, int pageSize);
+
+    // Fetches the full accounts for the given handles in as few round trips as possible.
+    // Handles with no account are left out of the result.
+    ImmutableMap<String, TwitterAccount> getAccounts(Iterable<String> handles);
+
     // Updates to database -- returns true iff operation succeeded
     TwitterDAOResult insert(TwitterAccount newAccount);
 
     TwitterDAOResult delete(String handle);
 
+    // Overwrites the whole stored account. If the account carries a version, only does so if
+    // nobody else has written it since, returning CONFLICT otherwise.
     TwitterDAOResult update(TwitterAccount updatedAccount);
-}
\ No newline at end of file
+
+    // Writes only the fields set in the given account, found by its handle, leaving the rest of
+    // the stored account as it is. Conditional on the version in the same way as update.
+    TwitterDAOResult patch(TwitterAccount changes);
+
+    // Batch versions of insert, update, patch and delete, which need far fewer round trips. The
+    // result for each account is keyed by its handle. A failure only affects the accounts it
+    // applies to. Accounts without a handle can't be written, and all of them share one
+    // INVALID_ARGUMENT result under the empty handle, so callers that need to tell them apart
+    // should check for a handle before writing.
+    ImmutableMap<String, TwitterDAOResult> insertAll(Iterable<TwitterAccount> newAccounts);
+
+    ImmutableMap<String, TwitterDAOResult> updateAll(Iterable<TwitterAccount> updatedAccounts);
+
+    ImmutableMap<String, TwitterDAOResult> patchAll(Iterable<TwitterAccount> changes);
+
+    ImmutableMap<String, TwitterDAOResult> deleteAll(Iterable<String> handles);
+
+    // Atomically moves the account's last processed mention id forward to the given id, leaving
+    // the rest of the account untouched. Never moves it backwards.
+    TwitterDAOResult updateMentionCursor(String handle, long lastProcessedMentionId);
+
+    // Stores the adaptive polling fields of the given account (mention_rate, poll_interval_seconds,
+    // last_polled_at and next_poll_at), leaving the rest of the stored account untouched
+    TwitterDAOResult updatePollSchedule(String handle, TwitterAccount schedule);
+}
@@ -12,17 +12,48 @@ import com.google.inject.AbstractModule;
 import com.google.inject.BindingAnnotation;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
 
 public class TwitterDAOModule extends AbstractModule {
 
-    private static final Datastore DATASTORE = DatastoreOptions.getDefaultInstance().getService();
-    private static final KeyFactory TWITTER_KEY_FACTORY = DATASTORE.newKeyFactory().setKind("twitter");
+    private static final String KIND = "twitter";
     private static final String PROJECT_NAME = "outofoctopus";
+    private static final long ACCOUNT_CACHE_SIZE = 10_000L;
+    private static final Duration ACCOUNT_CACHE_TTL = Duration.ofMinutes(1);
+    private static final Duration MISSING_ACCOUNT_CACHE_TTL = Duration.ofSeconds(30);
+    // Set back to TwitterDatastoreDAO.PROPERTIES_SCHEMA while anything that only reads that layout
+    // is still running
+    private static final int ACCOUNT_SCHEMA_VERSION = TwitterDatastoreDAO.BLOB_SCHEMA;
+
+    private final Optional<Path> localStore;
+
+    // Accounts kept in Datastore, with a cache in front
+    public TwitterDAOModule() {
+        this.localStore = Optional.empty();
+    }
+
+    // Accounts kept in a log at the given path on local disk instead, for a single node or tests.
+    // Nothing else may use the same log at the same time.
+    public TwitterDAOModule(Path localStore) {
+        this.localStore = Optional.of(localStore);
+    }
 
     @Override
     public void configure() {
-        bind(TwitterDAO.class).to(TwitterDatastoreDAO.class);
-        bind(KeyFactory.class).annotatedWith(TwitterInject.class).toInstance(TWITTER_KEY_FACTORY);
+        if (localStore.isPresent()) {
+            bind(TwitterDAO.class).to(TwitterLocalDAO.class);
+            bind(Path.class).annotatedWith(LocalAccountStore.class).toInstance(localStore.get());
+            return;
+        }
+        Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+        bind(TwitterDAO.class).to(CachingTwitterDAO.class);
+        bind(Long.class).annotatedWith(AccountCacheSize.class).toInstance(ACCOUNT_CACHE_SIZE);
+        bind(Duration.class).annotatedWith(AccountCacheTtl.class).toInstance(ACCOUNT_CACHE_TTL);
+        bind(Duration.class).annotatedWith(MissingAccountCacheTtl.class).toInstance(MISSING_ACCOUNT_CACHE_TTL);
+        bind(KeyFactory.class).annotatedWith(TwitterInject.class).toInstance(datastore.newKeyFactory().setKind(KIND));
+        bind(Integer.class).annotatedWith(AccountSchemaVersion.class).toInstance(ACCOUNT_SCHEMA_VERSION);
         bind(String.class).annotatedWith(ProjectName.class).toInstance(PROJECT_NAME);
     }
 
@@ -35,4 +66,34 @@ public class TwitterDAOModule extends AbstractModule {
     @Target({ FIELD, PARAMETER, METHOD })
     @Retention(RUNTIME)
     @interface ProjectName{}
+
+    // The log file of the local store
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface LocalAccountStore {}
+
+    // Layout accounts are written in; both are read
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface AccountSchemaVersion {}
+
+    // Maximum number of accounts to keep
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface AccountCacheSize {}
+
+    // How long a cached account may be used for, at most, before it is read again
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface AccountCacheTtl {}
+
+    // How long a handle with no account is remembered; zero to not remember them at all
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface MissingAccountCacheTtl {}
 }
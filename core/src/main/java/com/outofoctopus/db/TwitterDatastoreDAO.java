@@ -1,22 +1,54 @@
 package com.outofoctopus.db;
 
 import com.google.cloud.Timestamp;
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.Blob;
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DoubleValue;
 import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.FullEntity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.ProjectionEntityQuery;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery;
 import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.TimestampValue;
+import com.google.cloud.datastore.Transaction;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.outofoctopus.db.TwitterDAOModule.AccountSchemaVersion;
 import com.outofoctopus.db.TwitterDAOModule.TwitterInject;
 import com.outofoctopus.db.TwitterDAOModule.ProjectName;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
 import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 public class TwitterDatastoreDAO implements TwitterDAO {
     private static final String KIND_STRING = "twitter";
@@ -26,86 +58,584 @@ public class TwitterDatastoreDAO implements TwitterDAO {
     private static final String ACTIVE_END_FIELD = "active_until";
     private static final String ACCESS_TOKEN_FIELD = "access_token";
     private static final String ACCESS_TOKEN_SECRET_FIELD = "access_token_secret";
+    private static final String LAST_PROCESSED_MENTION_FIELD = "last_processed_mention_id";
+    private static final String MENTION_RATE_FIELD = "mention_rate";
+    private static final String POLL_INTERVAL_FIELD = "poll_interval_seconds";
+    private static final String LAST_POLLED_AT_FIELD = "last_polled_at";
+    private static final String NEXT_POLL_AT_FIELD = "next_poll_at";
+    private static final String ACTIVATION_BUCKET_FIELD = "activation_bucket";
+    private static final String VERSION_FIELD = "version";
+    private static final String SCHEMA_VERSION_FIELD = "schema_version";
+    private static final String ACCOUNT_FIELD = "account";
+    private static final ImmutableSet<String> SCHEDULE_FIELDS =
+            ImmutableSet.of(IS_ACTIVE_FIELD, ACTIVE_START_FIELD, ACTIVE_END_FIELD);
+    private static final Duration ACTIVATION_BUCKET = Duration.ofHours(1);
+    private static final int MAX_KEYS_PER_LOOKUP = 1000;
+    private static final int MAX_MUTATIONS_PER_COMMIT = 500;
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    private static final Duration WRITE_RETRY_BACKOFF = Duration.ofMillis(100);
+    // Entity layouts. The first has a property per proto field; entities in it predate the
+    // schema version and have no such property.
+    static final int PROPERTIES_SCHEMA = 1;
+    // The whole account as one serialized proto, plus the indexed properties queries need
+    static final int BLOB_SCHEMA = 2;
 
     private final String projectName;
     private final Datastore datastore;
     private final KeyFactory keyFactory;
+    private final int writeSchema;
+    private final Metrics metrics;
 
     @Inject
     public TwitterDatastoreDAO(Datastore datastore,
        @TwitterInject KeyFactory keyFactory,
-       @ProjectName String projectName) {
+       @ProjectName String projectName,
+       @AccountSchemaVersion int writeSchema,
+       Metrics metrics) {
         this.datastore = datastore;
         this.keyFactory = keyFactory;
         this.projectName = projectName;
+        this.writeSchema = writeSchema;
+        this.metrics = metrics;
     }
 
     public ImmutableList<TwitterAccount> getAllAccounts() {
-        Query<Entity> query = Query.newEntityQueryBuilder()
-                .setKind(KIND_STRING)
-                .build();
-        return parseResults(datastore.run(query));
+        try (Timer timer = metrics.start("datastore.twitter.getAllAccounts")) {
+            return parseResults(datastore.run(newQueryBuilder(AccountQuery.ALL).build()));
+        }
     }
 
     public ImmutableList<TwitterAccount> getActiveAccounts() {
-        Query<Entity> query = Query.newEntityQueryBuilder()
-                .setKind(KIND_STRING)
-                .setFilter(PropertyFilter.eq(IS_ACTIVE_FIELD, true))
-                .build();
-        return parseResults(datastore.run(query));
+        try (Timer timer = metrics.start("datastore.twitter.getActiveAccounts")) {
+            return parseResults(datastore.run(newQueryBuilder(AccountQuery.ACTIVE).build()));
+        }
     }
 
     public ImmutableList<TwitterAccount> getAccountsToActivate() {
-        Query<Entity> query = Query.newEntityQueryBuilder()
-                .setKind(KIND_STRING)
-                .setFilter(PropertyFilter.eq(IS_ACTIVE_FIELD, false))
-                .setFilter(PropertyFilter.le(ACTIVE_START_FIELD, Timestamp.now()))
-                .setFilter(PropertyFilter.gt(ACTIVE_END_FIELD, Timestamp.now()))
-                .build();
-        return parseResults(datastore.run(query));
+        try (Timer timer = metrics.start("datastore.twitter.getAccountsToActivate")) {
+            return dueOnly(AccountQuery.TO_ACTIVATE,
+                    parseResults(datastore.run(newQueryBuilder(AccountQuery.TO_ACTIVATE).build())));
+        }
+    }
+
+    public AccountPage getAccountPage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        try (Timer timer = metrics.start("datastore.twitter.getAccountPage")) {
+            EntityQuery.Builder builder = newQueryBuilder(query).setLimit(pageSize);
+            startCursor.ifPresent(cursor -> builder.setStartCursor(Cursor.fromUrlSafe(cursor)));
+            QueryResults<Entity> results = datastore.run(builder.build());
+            ImmutableList<TwitterAccount> accounts = parseResults(results);
+
+            // A short page means the query is exhausted
+            if (accounts.size() < pageSize) {
+                return AccountPage.last(dueOnly(query, accounts));
+            }
+            return AccountPage.of(dueOnly(query, accounts), Optional.of(results.getCursorAfter().toUrlSafe()));
+        }
+    }
+
+    public AccountPage getSchedulePage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        try (Timer timer = metrics.start("datastore.twitter.getSchedulePage")) {
+            ProjectionEntityQuery.Builder builder = Query.newProjectionEntityQueryBuilder()
+                    .setKind(KIND_STRING)
+                    .setLimit(pageSize);
+            // Properties with an equality filter can't be projected, but their value is known anyway
+            if (query == AccountQuery.ACTIVE) {
+                builder.setProjection(USERNAME_FIELD, ACTIVE_START_FIELD, ACTIVE_END_FIELD, NEXT_POLL_AT_FIELD);
+            } else {
+                builder.setProjection(
+                        USERNAME_FIELD, IS_ACTIVE_FIELD, ACTIVE_START_FIELD, ACTIVE_END_FIELD, NEXT_POLL_AT_FIELD);
+            }
+            applyFilter(builder, query);
+            startCursor.ifPresent(cursor -> builder.setStartCursor(Cursor.fromUrlSafe(cursor)));
+
+            QueryResults<ProjectionEntity> results = datastore.run(builder.build());
+            ImmutableList.Builder<TwitterAccount> accounts = ImmutableList.builder();
+            while (results.hasNext()) {
+                accounts.add(parseSchedule(results.next(), query));
+            }
+            ImmutableList<TwitterAccount> page = accounts.build();
+
+            // A short page means the query is exhausted
+            if (page.size() < pageSize) {
+                return AccountPage.last(dueOnly(query, page));
+            }
+            return AccountPage.of(dueOnly(query, page), Optional.of(results.getCursorAfter().toUrlSafe()));
+        }
+    }
+
+    // Rewrites every account in the layout this DAO writes, with the indexed properties the scan
+    // relies on: the activation bucket and the next poll time. Needed once after those were added,
+    // and after changing the layout written; returns the number of accounts rewritten.
+    public int reindexAccounts() {
+        try (Timer timer = metrics.start("datastore.twitter.reindexAccounts")) {
+            int rewritten = 0;
+            Iterator<List<TwitterAccount>> batches = Iterators.partition(
+                    iterateAccounts(AccountQuery.ALL, MAX_MUTATIONS_PER_COMMIT), MAX_MUTATIONS_PER_COMMIT);
+            while (batches.hasNext()) {
+                rewritten += Iterables.size(Iterables.filter(
+                        updateAll(batches.next()).values(), result -> result == TwitterDAOResult.SUCCESS));
+            }
+            return rewritten;
+        }
+    }
+
+    public ImmutableMap<String, TwitterAccount> getAccounts(Iterable<String> handles) {
+        try (Timer timer = metrics.start("datastore.twitter.getAccounts")) {
+            ImmutableMap.Builder<String, TwitterAccount> accounts = ImmutableMap.builder();
+            for (List<String> batch : Iterables.partition(ImmutableSet.copyOf(handles), MAX_KEYS_PER_LOOKUP)) {
+                Iterator<Entity> results = datastore.get(Lists.transform(batch, this::getKey));
+                while (results.hasNext()) {
+                    TwitterAccount account = parseTwitterAccount(results.next());
+                    accounts.put(account.getHandle(), account);
+                }
+            }
+            return accounts.build();
+        }
     }
 
     public Optional<TwitterAccount> getAccount(String handle) {
-        Entity result = datastore.get(getKey(handle));
-        if (result == null) {
-            return Optional.empty();
+        try (Timer timer = metrics.start("datastore.twitter.getAccount")) {
+            Entity result = datastore.get(getKey(handle));
+            if (result == null) {
+                return Optional.empty();
+            }
+            return Optional.of(parseTwitterAccount(result));
         }
-        return Optional.of(parseTwitterAccount(result));
     }
 
     public TwitterDAOResult insert(TwitterAccount newAccount) {
-        try {
-            FullEntity parsedAccount = parseEntityFromTwitterAccount(newAccount);
-            datastore.add(parsedAccount);
-            return TwitterDAOResult.SUCCESS;
-        } catch (DatastoreException e) {
-            return parseDatastoreException(e);
-        } catch (IllegalArgumentException e) {
-            return TwitterDAOResult.INVALID_ARGUMENT;
+        try (Timer timer = metrics.start("datastore.twitter.insert")) {
+            try {
+                datastore.add(newEntity(newAccount));
+                return TwitterDAOResult.SUCCESS;
+            } catch (DatastoreException e) {
+                return parseDatastoreException(e);
+            } catch (IllegalArgumentException e) {
+                return TwitterDAOResult.INVALID_ARGUMENT;
+            }
         }
     }
 
     public TwitterDAOResult update(TwitterAccount updatedAccount) {
-        Key key = Key.newBuilder(projectName, KIND_STRING, updatedAccount.getHandle()).build();
-        FullEntity parsedAccountFull = parseEntityFromTwitterAccount(updatedAccount);
-        Entity parsedAccount = Entity.newBuilder(key, parsedAccountFull).build();
+        try (Timer timer = metrics.start("datastore.twitter.update")) {
+            return modify(updatedAccount.getHandle(), expectedVersion(updatedAccount), current ->
+                    Optional.of(updatedAccount));
+        }
+    }
+
+    public TwitterDAOResult patch(TwitterAccount changes) {
+        try (Timer timer = metrics.start("datastore.twitter.patch")) {
+            return modify(changes.getHandle(), expectedVersion(changes), current ->
+                    Optional.of(applyPatch(current, changes)));
+        }
+    }
+
+    public TwitterDAOResult updateMentionCursor(String handle, long lastProcessedMentionId) {
+        try (Timer timer = metrics.start("datastore.twitter.updateMentionCursor")) {
+            return modify(handle, OptionalLong.empty(), current -> {
+                if (current.hasLastProcessedMentionId() && current.getLastProcessedMentionId() >= lastProcessedMentionId) {
+                    return Optional.empty();
+                }
+                return Optional.of(current.toBuilder().setLastProcessedMentionId(lastProcessedMentionId).build());
+            });
+        }
+    }
+
+    public TwitterDAOResult updatePollSchedule(String handle, TwitterAccount schedule) {
+        try (Timer timer = metrics.start("datastore.twitter.updatePollSchedule")) {
+            return modify(handle, OptionalLong.empty(), current -> {
+                TwitterAccount.Builder updated = current.toBuilder();
+                if (schedule.hasMentionRate()) {
+                    updated.setMentionRate(schedule.getMentionRate());
+                }
+                if (schedule.hasPollIntervalSeconds()) {
+                    updated.setPollIntervalSeconds(schedule.getPollIntervalSeconds());
+                }
+                if (schedule.hasLastPolledAt()) {
+                    updated.setLastPolledAt(schedule.getLastPolledAt());
+                }
+                if (schedule.hasNextPollAt()) {
+                    updated.setNextPollAt(schedule.getNextPollAt());
+                } else {
+                    updated.clearNextPollAt();
+                }
+                return Optional.of(updated.build());
+            });
+        }
+    }
+
+    public TwitterDAOResult delete(String handle) {
+        try (Timer timer = metrics.start("datastore.twitter.delete")) {
+            try {
+                datastore.delete(getKey(handle));
+                return TwitterDAOResult.SUCCESS;
+            } catch (DatastoreException e) {
+                return parseDatastoreException(e);
+            }
+        }
+    }
+
+    public ImmutableMap<String, TwitterDAOResult> insertAll(Iterable<TwitterAccount> newAccounts) {
+        try (Timer timer = metrics.start("datastore.twitter.insertAll")) {
+            return writeAll(
+                    newAccounts,
+                    batch -> {
+                        datastore.add(batch.stream()
+                                .map(this::newEntity)
+                                .toArray(FullEntity<?>[]::new));
+                        return true;
+                    },
+                    this::insert);
+        }
+    }
+
+    public ImmutableMap<String, TwitterDAOResult> updateAll(Iterable<TwitterAccount> updatedAccounts) {
+        try (Timer timer = metrics.start("datastore.twitter.updateAll")) {
+            return writeAll(
+                    updatedAccounts,
+                    batch -> modifyAll(batch, (current, account) -> account),
+                    this::update);
+        }
+    }
+
+    public ImmutableMap<String, TwitterDAOResult> patchAll(Iterable<TwitterAccount> changes) {
+        try (Timer timer = metrics.start("datastore.twitter.patchAll")) {
+            return writeAll(changes, batch -> modifyAll(batch, TwitterDatastoreDAO::applyPatch), this::patch);
+        }
+    }
+
+    public ImmutableMap<String, TwitterDAOResult> deleteAll(Iterable<String> handles) {
+        try (Timer timer = metrics.start("datastore.twitter.deleteAll")) {
+            List<TwitterAccount> accounts = new ArrayList<>();
+            for (String handle : handles) {
+                accounts.add(TwitterAccount.newBuilder().setHandle(handle).build());
+            }
+            return writeAll(
+                    accounts,
+                    batch -> {
+                        datastore.delete(batch.stream()
+                                .map(this::getKey)
+                                .toArray(Key[]::new));
+                        return true;
+                    },
+                    account -> delete(account.getHandle()));
+        }
+    }
+
+    // Writes the accounts a commit's worth at a time. A commit that fails with a retryable error
+    // is retried as a whole; one that fails otherwise, runs out of attempts or is turned down by
+    // writeBatch is redone an account at a time, so that each account gets its own result and only
+    // the accounts that actually failed are retried. Accounts without a handle are never written;
+    // they all share the single INVALID_ARGUMENT result under the empty handle. If a handle comes up
+    // more than once, only its last account is written.
+    private ImmutableMap<String, TwitterDAOResult> writeAll(
+            Iterable<TwitterAccount> accounts,
+            Predicate<List<TwitterAccount>> writeBatch,
+            Function<TwitterAccount, TwitterDAOResult> writeOne) {
+        Map<String, TwitterDAOResult> results = new LinkedHashMap<>();
+        Map<String, TwitterAccount> toWrite = new LinkedHashMap<>();
+        for (TwitterAccount account : accounts) {
+            if (account.hasHandle()) {
+                toWrite.put(account.getHandle(), account);
+            } else {
+                results.put(account.getHandle(), TwitterDAOResult.INVALID_ARGUMENT);
+            }
+        }
+
+        for (List<TwitterAccount> batch : Iterables.partition(toWrite.values(), MAX_MUTATIONS_PER_COMMIT)) {
+            if (writeBatchWithRetries(batch, writeBatch)) {
+                batch.forEach(account -> results.put(account.getHandle(), TwitterDAOResult.SUCCESS));
+            } else {
+                batch.forEach(account -> results.put(account.getHandle(), writeOneWithRetries(account, writeOne)));
+            }
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    private boolean writeBatchWithRetries(List<TwitterAccount> batch, Predicate<List<TwitterAccount>> writeBatch) {
+        for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+            try {
+                return writeBatch.test(batch);
+            } catch (DatastoreException e) {
+                if (parseDatastoreException(e) != TwitterDAOResult.ERROR_CAN_RETRY
+                        || attempt == MAX_WRITE_ATTEMPTS
+                        || !backOff(attempt)) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private TwitterDAOResult writeOneWithRetries(
+            TwitterAccount account,
+            Function<TwitterAccount, TwitterDAOResult> writeOne) {
+        TwitterDAOResult result = writeOne.apply(account);
+        for (int attempt = 1; result == TwitterDAOResult.ERROR_CAN_RETRY && attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+            if (!backOff(attempt)) {
+                break;
+            }
+            result = writeOne.apply(account);
+        }
+        return result;
+    }
+
+    // Reads the stored account, changes it and writes it back with its version bumped, all in one
+    // transaction. If anyone else writes the account in between, Datastore aborts the commit and
+    // the change is redone on top of what they wrote, so neither write is lost and no lock is held
+    // between the read and the write. The change returns nothing if there is nothing to write.
+    // Whatever layout the account was stored in, it is written back in the current one.
+    private TwitterDAOResult modify(
+            String handle,
+            OptionalLong expectedVersion,
+            Function<TwitterAccount, Optional<TwitterAccount>> change) {
+        TwitterDAOResult result = TwitterDAOResult.UNKNOWN;
+        for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+            Transaction transaction = datastore.newTransaction();
+            try {
+                Entity current = transaction.get(getKey(handle));
+                if (current == null) {
+                    return TwitterDAOResult.NOT_FOUND;
+                }
+                if (isConflict(current, expectedVersion)) {
+                    metrics.increment("datastore.twitter.conflicts");
+                    return TwitterDAOResult.CONFLICT;
+                }
+                TwitterAccount stored = parseTwitterAccount(current);
+                Optional<TwitterAccount> updated = change.apply(stored);
+                if (!updated.isPresent()) {
+                    return TwitterDAOResult.SUCCESS;
+                }
+                transaction.put(nextVersion(current, reencode(current, stored, updated.get())));
+                transaction.commit();
+                return TwitterDAOResult.SUCCESS;
+            } catch (DatastoreException e) {
+                result = parseDatastoreException(e);
+                if (result != TwitterDAOResult.ERROR_CAN_RETRY || attempt == MAX_WRITE_ATTEMPTS || !backOff(attempt)) {
+                    return result;
+                }
+            } catch (IllegalArgumentException e) {
+                return TwitterDAOResult.INVALID_ARGUMENT;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
+        return result;
+    }
+
+    // As modify, for a commit's worth of accounts in one transaction. Writes nothing and returns
+    // false if any of them is missing, has moved on from its expected version or can't be parsed,
+    // leaving writeAll to redo them one at a time so that each gets its own result.
+    private boolean modifyAll(
+            List<TwitterAccount> batch,
+            BiFunction<TwitterAccount, TwitterAccount, TwitterAccount> change) {
+        Transaction transaction = datastore.newTransaction();
         try {
-            datastore.update(parsedAccount);
-            return TwitterDAOResult.SUCCESS;
-        } catch (DatastoreException e) {
-            return parseDatastoreException(e);
+            List<Entity> current = transaction.fetch(batch.stream().map(this::getKey).toArray(Key[]::new));
+            Entity[] updated = new Entity[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                Entity stored = current.get(i);
+                TwitterAccount account = batch.get(i);
+                if (stored == null || isConflict(stored, expectedVersion(account))) {
+                    return false;
+                }
+                TwitterAccount before = parseTwitterAccount(stored);
+                updated[i] = nextVersion(stored, reencode(stored, before, change.apply(before, account)));
+            }
+            transaction.put(updated);
+            transaction.commit();
+            return true;
         } catch (IllegalArgumentException e) {
-            return TwitterDAOResult.INVALID_ARGUMENT;
+            return false;
+        } finally {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
         }
     }
 
-    public TwitterDAOResult delete(String handle) {
+    // The stored account with the fields set in the patch replaced, and the rest left as they are
+    private static TwitterAccount applyPatch(TwitterAccount current, TwitterAccount changes) {
+        TwitterAccount.Builder merged = current.toBuilder();
+        changes.toBuilder().clearVersion().build().getAllFields().forEach(merged::setField);
+        return merged.build();
+    }
+
+    // The changed account as an entity in the current layout. The activation bucket an account
+    // already has is kept unless its schedule changed, so that writing other fields doesn't move it.
+    private Entity.Builder reencode(Entity current, TwitterAccount before, TwitterAccount after) {
+        Entity.Builder updated = Entity.newBuilder(current.getKey(), parseEntityFromTwitterAccount(after));
+        if (current.contains(ACTIVATION_BUCKET_FIELD) && !scheduleChanged(before, after)) {
+            updated.set(ACTIVATION_BUCKET_FIELD, current.getLong(ACTIVATION_BUCKET_FIELD));
+        }
+        return updated;
+    }
+
+    private static boolean scheduleChanged(TwitterAccount before, TwitterAccount after) {
+        for (String name : SCHEDULE_FIELDS) {
+            FieldDescriptor field = TwitterAccount.getDescriptor().findFieldByName(name);
+            if (before.hasField(field) != after.hasField(field)
+                    || !before.getField(field).equals(after.getField(field))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static OptionalLong expectedVersion(TwitterAccount account) {
+        return account.hasVersion() ? OptionalLong.of(account.getVersion()) : OptionalLong.empty();
+    }
+
+    private static boolean isConflict(Entity stored, OptionalLong expectedVersion) {
+        return expectedVersion.isPresent() && expectedVersion.getAsLong() != version(stored);
+    }
+
+    // Accounts stored before versioning count as version zero
+    private static long version(BaseEntity<?> entity) {
+        return entity.contains(VERSION_FIELD) ? entity.getLong(VERSION_FIELD) : 0;
+    }
+
+    private static Entity nextVersion(Entity current, Entity.Builder updated) {
+        return updated.set(VERSION_FIELD, unindexed(version(current) + 1)).build();
+    }
+
+    // Returns false if interrupted while waiting, in which case there should be no more attempts
+    private static boolean backOff(int attempt) {
         try {
-            datastore.delete(getKey(handle));
-            return TwitterDAOResult.SUCCESS;
-        } catch (DatastoreException e) {
-            return parseDatastoreException(e);
+            Thread.sleep(WRITE_RETRY_BACKOFF.toMillis() << (attempt - 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static EntityQuery.Builder newQueryBuilder(AccountQuery query) {
+        EntityQuery.Builder builder = Query.newEntityQueryBuilder().setKind(KIND_STRING);
+        applyFilter(builder, query);
+        return builder;
+    }
+
+    private static void applyFilter(StructuredQuery.Builder<?> builder, AccountQuery query) {
+        switch (query) {
+            case ACTIVE:
+                builder.setFilter(PropertyFilter.eq(IS_ACTIVE_FIELD, true));
+                break;
+            case TO_ACTIVATE:
+                // Only inactive accounts have a bucket, so every bucket up to the current one is
+                // all that's needed. There's no lower bound, as an account keeps the bucket it was
+                // last written with, however long ago its away period started; those whose away
+                // period has since ended are left out afterwards.
+                builder.setFilter(PropertyFilter.le(ACTIVATION_BUCKET_FIELD, activationBucket(Timestamp.now())));
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Buckets hold every account due to activate within the hour, including those due later in
+    // it, and accounts whose away period ended without them being activated. Both are left out
+    // here so that callers only see the accounts that are due now. The latter are taken out of the
+    // buckets too, so that each is only read once rather than on every scan from then on.
+    private ImmutableList<TwitterAccount> dueOnly(AccountQuery query, ImmutableList<TwitterAccount> accounts) {
+        if (query != AccountQuery.TO_ACTIVATE) {
+            return accounts;
+        }
+        Timestamp now = Timestamp.now();
+        dropActivationBuckets(accounts.stream()
+                .filter(account -> isPastAwayPeriod(account, now))
+                .map(TwitterAccount::getHandle)
+                .collect(Collectors.toList()), now);
+        return ImmutableList.copyOf(Iterables.filter(accounts, account -> isDueToActivate(account, now)));
+    }
+
+    // Only accounts still inactive and past their away period lose their bucket, so that one
+    // rescheduled since it was read keeps the bucket it was written with. The account itself is
+    // unchanged, so its version is left alone. A failure leaves the bucket for the next read to drop.
+    private void dropActivationBuckets(List<String> handles, Timestamp now) {
+        for (List<String> batch : Lists.partition(handles, MAX_MUTATIONS_PER_COMMIT)) {
+            Transaction transaction = datastore.newTransaction();
+            try {
+                List<Entity> unbucketed = new ArrayList<>();
+                for (Entity stored : transaction.fetch(batch.stream().map(this::getKey).toArray(Key[]::new))) {
+                    if (stored != null
+                            && stored.contains(ACTIVATION_BUCKET_FIELD)
+                            && !stored.getBoolean(IS_ACTIVE_FIELD)
+                            && stored.getTimestamp(ACTIVE_END_FIELD).compareTo(now) <= 0) {
+                        unbucketed.add(Entity.newBuilder(stored).remove(ACTIVATION_BUCKET_FIELD).build());
+                    }
+                }
+                if (unbucketed.isEmpty()) {
+                    continue;
+                }
+                transaction.put(unbucketed.toArray(new Entity[0]));
+                transaction.commit();
+                metrics.add("datastore.twitter.expired_buckets_dropped", unbucketed.size());
+            } catch (DatastoreException e) {
+                metrics.increment("datastore.twitter.expired_buckets_failed");
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
+    }
+
+    private static boolean isPastAwayPeriod(TwitterAccount account, Timestamp now) {
+        return !account.getActive() && Timestamp.fromProto(account.getActiveUntil()).compareTo(now) <= 0;
+    }
+
+    private static boolean isDueToActivate(TwitterAccount account, Timestamp now) {
+        return !account.getActive()
+                && Timestamp.fromProto(account.getActiveFrom()).compareTo(now) <= 0
+                && Timestamp.fromProto(account.getActiveUntil()).compareTo(now) > 0;
+    }
+
+    private static long activationBucket(Timestamp time) {
+        return Math.floorDiv(time.getSeconds(), ACTIVATION_BUCKET.getSeconds());
+    }
+
+    private static TwitterAccount parseSchedule(ProjectionEntity entity, AccountQuery query) {
+        boolean active = query == AccountQuery.ACTIVE || entity.getBoolean(IS_ACTIVE_FIELD);
+        TwitterAccount.Builder schedule = TwitterAccount.newBuilder()
+                .setHandle(entity.getString(USERNAME_FIELD))
+                .setActive(active)
+                .setActiveFrom(entity.getTimestamp(ACTIVE_START_FIELD).toProto())
+                .setActiveUntil(entity.getTimestamp(ACTIVE_END_FIELD).toProto());
+        parseNextPollAt(entity, schedule);
+        return schedule.build();
+    }
+
+    // Accounts never polled are stored as due at the start of time, so they sort first and are
+    // included in projections, which leave out entities missing any projected property
+    private static void parseNextPollAt(BaseEntity<?> entity, TwitterAccount.Builder account) {
+        if (entity.contains(NEXT_POLL_AT_FIELD)) {
+            Timestamp nextPollAt = entity.getTimestamp(NEXT_POLL_AT_FIELD);
+            if (!nextPollAt.equals(Timestamp.MIN_VALUE)) {
+                account.setNextPollAt(nextPollAt.toProto());
+            }
+        }
+    }
+
+    private static void setPollSchedule(BaseEntity.Builder<?, ?> entity, TwitterAccount account) {
+        if (account.hasMentionRate()) {
+            entity.set(MENTION_RATE_FIELD, DoubleValue.newBuilder(account.getMentionRate())
+                    .setExcludeFromIndexes(true)
+                    .build());
+        }
+        if (account.hasPollIntervalSeconds()) {
+            entity.set(POLL_INTERVAL_FIELD, unindexed(account.getPollIntervalSeconds()));
+        }
+        if (account.hasLastPolledAt()) {
+            entity.set(LAST_POLLED_AT_FIELD, TimestampValue.newBuilder(Timestamp.fromProto(account.getLastPolledAt()))
+                    .setExcludeFromIndexes(true)
+                    .build());
         }
+        entity.set(NEXT_POLL_AT_FIELD, account.hasNextPollAt()
+                ? Timestamp.fromProto(account.getNextPollAt())
+                : Timestamp.MIN_VALUE);
     }
 
     private ImmutableList<TwitterAccount> parseResults(QueryResults<Entity> results) {
@@ -116,7 +646,31 @@ public class TwitterDatastoreDAO implements TwitterDAO {
         return accounts.build();
     }
 
-    private TwitterAccount parseTwitterAccount(FullEntity entity) throws IllegalArgumentException {
+    // Parsing in both directions is package-private so it can be benchmarked on its own. Accounts
+    // are read from either layout, so that they can be moved to a new one as they're written.
+    TwitterAccount parseTwitterAccount(FullEntity entity) throws IllegalArgumentException {
+        long schema = entity.contains(SCHEMA_VERSION_FIELD) ? entity.getLong(SCHEMA_VERSION_FIELD) : PROPERTIES_SCHEMA;
+        if (schema == BLOB_SCHEMA) {
+            return parseBlob(entity);
+        }
+        if (schema != PROPERTIES_SCHEMA) {
+            throw new IllegalArgumentException("Cannot parse twitter account stored with schema version " + schema);
+        }
+        return parseProperties(entity);
+    }
+
+    private static TwitterAccount parseBlob(FullEntity<?> entity) {
+        try {
+            return TwitterAccount.newBuilder()
+                    .mergeFrom(entity.getBlob(ACCOUNT_FIELD).toByteArray())
+                    .setVersion(version(entity))
+                    .build();
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Cannot parse stored twitter account", e);
+        }
+    }
+
+    private static TwitterAccount parseProperties(FullEntity<?> entity) {
         TwitterAccount.Builder account = TwitterAccount.newBuilder();
 
         String handle = entity.getString(USERNAME_FIELD);
@@ -129,11 +683,26 @@ public class TwitterDatastoreDAO implements TwitterDAO {
         account.setActiveUntil(entity.getTimestamp(ACTIVE_END_FIELD).toProto());
         account.setAccessToken(entity.getString(ACCESS_TOKEN_FIELD));
         account.setAccessTokenSecret(entity.getString(ACCESS_TOKEN_SECRET_FIELD));
+        if (entity.contains(LAST_PROCESSED_MENTION_FIELD)) {
+            account.setLastProcessedMentionId(entity.getLong(LAST_PROCESSED_MENTION_FIELD));
+        }
+        if (entity.contains(MENTION_RATE_FIELD)) {
+            account.setMentionRate(entity.getDouble(MENTION_RATE_FIELD));
+        }
+        if (entity.contains(POLL_INTERVAL_FIELD)) {
+            account.setPollIntervalSeconds(entity.getLong(POLL_INTERVAL_FIELD));
+        }
+        if (entity.contains(LAST_POLLED_AT_FIELD)) {
+            account.setLastPolledAt(entity.getTimestamp(LAST_POLLED_AT_FIELD).toProto());
+        }
+        parseNextPollAt(entity, account);
+        account.setVersion(version(entity));
 
         return account.build();
     }
 
-    private FullEntity parseEntityFromTwitterAccount(TwitterAccount account)
+    // Written in the layout this DAO was set up with. The version is left to the caller.
+    FullEntity parseEntityFromTwitterAccount(TwitterAccount account)
             throws IllegalArgumentException {
         FullEntity.Builder entity = Entity.newBuilder();
 
@@ -147,13 +716,49 @@ public class TwitterDatastoreDAO implements TwitterDAO {
         entity.setKey(getKey(account));
         entity.set(USERNAME_FIELD, account.getHandle());
         entity.set(IS_ACTIVE_FIELD, active);
-        entity.set(ACCESS_TOKEN_FIELD, account.getAccessToken());
-        entity.set(ACCESS_TOKEN_SECRET_FIELD, account.getAccessTokenSecret());
         entity.set(ACTIVE_START_FIELD, activeFrom);
         entity.set(ACTIVE_END_FIELD, activeTo);
+        if (writeSchema == BLOB_SCHEMA) {
+            // Only what the queries filter or project on gets a property of its own. The proto
+            // holds the rest, including fields added to it later.
+            entity.set(NEXT_POLL_AT_FIELD, account.hasNextPollAt()
+                    ? Timestamp.fromProto(account.getNextPollAt())
+                    : Timestamp.MIN_VALUE);
+            byte[] serialized = account.toBuilder().clearVersion().build().toByteArray();
+            entity.set(ACCOUNT_FIELD, BlobValue.newBuilder(Blob.copyFrom(serialized))
+                    .setExcludeFromIndexes(true)
+                    .build());
+            entity.set(SCHEMA_VERSION_FIELD, unindexed(BLOB_SCHEMA));
+        } else {
+            entity.set(ACCESS_TOKEN_FIELD, account.getAccessToken());
+            entity.set(ACCESS_TOKEN_SECRET_FIELD, account.getAccessTokenSecret());
+            if (account.hasLastProcessedMentionId()) {
+                entity.set(LAST_PROCESSED_MENTION_FIELD, unindexed(account.getLastProcessedMentionId()));
+            }
+            setPollSchedule(entity, account);
+        }
+
+        // Inactive accounts with an away period still ahead are indexed under the hour it starts,
+        // or the current hour if it already has, so that the scan only reads accounts due now
+        Timestamp now = Timestamp.now();
+        if (!active && activeTo.compareTo(now) > 0) {
+            entity.set(ACTIVATION_BUCKET_FIELD, activationBucket(activeFrom.compareTo(now) > 0 ? activeFrom : now));
+        }
         return entity.build();
     }
 
+    // New accounts start at the first version, whatever version they carry
+    private FullEntity<?> newEntity(TwitterAccount account) {
+        FullEntity<?> entity = parseEntityFromTwitterAccount(account);
+        return FullEntity.newBuilder(entity)
+                .set(VERSION_FIELD, unindexed(1))
+                .build();
+    }
+
+    private static LongValue unindexed(long value) {
+        return LongValue.newBuilder(value).setExcludeFromIndexes(true).build();
+    }
+
     private Key getKey(TwitterAccount account) {
         return keyFactory.newKey(account.getHandle());
     }
@@ -0,0 +1,621 @@
+package com.outofoctopus.db;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.db.TwitterDAOModule.LocalAccountStore;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+// Accounts held in memory and kept in an append-only log on local disk, for a single node or tests
+// that shouldn't need Datastore. Each write appends the whole account, or a tombstone for a delete,
+// to a memory-mapped file, so writing is a copy into the page cache and reading never leaves
+// memory. Writes are made one at a time; reads take no lock.
+//
+// On opening, the log is replayed to rebuild the indexes. A record left half written by a crash
+// fails its checksum and is dropped along with anything after it, so the store comes back as of
+// the last whole write. What reaches the page cache survives the process dying; only the machine
+// going down can lose the latest writes. Once most of the log is superseded records it is
+// compacted: the live accounts are written to a new file, which then atomically replaces it.
+//
+// Pages are in handle order with the last handle as the cursor, apart from accounts to activate,
+// which are in order of when their away period starts.
+@Singleton
+public class TwitterLocalDAO implements TwitterDAO, Closeable {
+    private static final int MAGIC = 0x4f435457;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 8; // magic, then format version
+    private static final int RECORD_HEADER_BYTES = 8; // body length, then CRC32 of the body
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int MIN_GROWTH_BYTES = 1 << 20;
+    // Compacts once superseded records outgrow both this and the live ones
+    private static final long MIN_COMPACTION_BYTES = 4L << 20;
+
+    private final Path log;
+    private final Metrics metrics;
+    private final long minCompactionBytes;
+    private final ConcurrentSkipListMap<String, TwitterAccount> accounts = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<String> active = new ConcurrentSkipListSet<>();
+    // Inactive accounts whose away period hadn't ended when they were written
+    private final ConcurrentSkipListSet<ActivationKey> toActivate = new ConcurrentSkipListSet<>();
+    // The rest is only used while writing, under the lock
+    private final Map<String, Integer> recordSizes = new HashMap<>();
+    private long liveBytes;
+    private FileChannel channel;
+    private MappedByteBuffer buffer; // positioned at the end of the log
+
+    @Inject
+    public TwitterLocalDAO(@LocalAccountStore Path log, Metrics metrics) throws IOException {
+        this(log, metrics, MIN_COMPACTION_BYTES);
+    }
+
+    TwitterLocalDAO(Path log, Metrics metrics, long minCompactionBytes) throws IOException {
+        this.log = log;
+        this.metrics = metrics;
+        this.minCompactionBytes = minCompactionBytes;
+        try (Timer timer = metrics.start("local.twitter.recover")) {
+            // Left by a compaction that didn't finish, which leaves the log as it was
+            Files.deleteIfExists(compactedLog());
+            open();
+            recover();
+        }
+    }
+
+    @Override
+    public ImmutableList<TwitterAccount> getActiveAccounts() {
+        return page(AccountQuery.ACTIVE, Optional.empty(), Integer.MAX_VALUE, Function.identity()).getAccounts();
+    }
+
+    @Override
+    public ImmutableList<TwitterAccount> getAccountsToActivate() {
+        return page(AccountQuery.TO_ACTIVATE, Optional.empty(), Integer.MAX_VALUE, Function.identity()).getAccounts();
+    }
+
+    @Override
+    public Optional<TwitterAccount> getAccount(String handle) {
+        return Optional.ofNullable(accounts.get(handle));
+    }
+
+    @Override
+    public AccountPage getAccountPage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return page(query, startCursor, pageSize, Function.identity());
+    }
+
+    @Override
+    public AccountPage getSchedulePage(AccountQuery query, Optional<String> startCursor, int pageSize) {
+        return page(query, startCursor, pageSize, account -> {
+            TwitterAccount.Builder schedule = TwitterAccount.newBuilder()
+                    .setHandle(account.getHandle())
+                    .setActive(account.getActive())
+                    .setActiveFrom(account.getActiveFrom())
+                    .setActiveUntil(account.getActiveUntil());
+            if (account.hasNextPollAt()) {
+                schedule.setNextPollAt(account.getNextPollAt());
+            }
+            return schedule.build();
+        });
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterAccount> getAccounts(Iterable<String> handles) {
+        Map<String, TwitterAccount> found = new LinkedHashMap<>();
+        for (String handle : handles) {
+            TwitterAccount account = accounts.get(handle);
+            if (account != null) {
+                found.put(handle, account);
+            }
+        }
+        return ImmutableMap.copyOf(found);
+    }
+
+    @Override
+    public synchronized TwitterDAOResult insert(TwitterAccount newAccount) {
+        try (Timer timer = metrics.start("local.twitter.insert")) {
+            if (!newAccount.hasHandle()) {
+                return TwitterDAOResult.INVALID_ARGUMENT;
+            }
+            if (accounts.containsKey(newAccount.getHandle())) {
+                return TwitterDAOResult.ALREADY_EXISTS;
+            }
+            // New accounts start at the first version, whatever version they carry
+            return write(newAccount.toBuilder().setVersion(1).build());
+        }
+    }
+
+    @Override
+    public synchronized TwitterDAOResult delete(String handle) {
+        try (Timer timer = metrics.start("local.twitter.delete")) {
+            if (!accounts.containsKey(handle)) {
+                return TwitterDAOResult.SUCCESS;
+            }
+            try {
+                append(DELETE, handle.getBytes(UTF_8));
+                unindex(handle);
+            } catch (IOException e) {
+                metrics.increment("local.twitter.write_errors");
+                return TwitterDAOResult.ERROR_DO_NOT_RETRY;
+            }
+            compactIfMostlySuperseded();
+            return TwitterDAOResult.SUCCESS;
+        }
+    }
+
+    @Override
+    public TwitterDAOResult update(TwitterAccount updatedAccount) {
+        try (Timer timer = metrics.start("local.twitter.update")) {
+            return modify(updatedAccount.getHandle(), expectedVersion(updatedAccount), current ->
+                    Optional.of(updatedAccount));
+        }
+    }
+
+    @Override
+    public TwitterDAOResult patch(TwitterAccount changes) {
+        try (Timer timer = metrics.start("local.twitter.patch")) {
+            return modify(changes.getHandle(), expectedVersion(changes), current -> {
+                TwitterAccount.Builder merged = current.toBuilder();
+                changes.toBuilder().clearVersion().build().getAllFields().forEach(merged::setField);
+                return Optional.of(merged.build());
+            });
+        }
+    }
+
+    // Each account is a single append, so the batches need no more round trips than one at a time
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> insertAll(Iterable<TwitterAccount> newAccounts) {
+        return forEach(newAccounts, TwitterAccount::getHandle, this::insert);
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> updateAll(Iterable<TwitterAccount> updatedAccounts) {
+        return forEach(updatedAccounts, TwitterAccount::getHandle, this::update);
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> patchAll(Iterable<TwitterAccount> changes) {
+        return forEach(changes, TwitterAccount::getHandle, this::patch);
+    }
+
+    @Override
+    public ImmutableMap<String, TwitterDAOResult> deleteAll(Iterable<String> handles) {
+        return forEach(handles, Function.identity(), this::delete);
+    }
+
+    @Override
+    public TwitterDAOResult updateMentionCursor(String handle, long lastProcessedMentionId) {
+        try (Timer timer = metrics.start("local.twitter.updateMentionCursor")) {
+            return modify(handle, OptionalLong.empty(), current -> {
+                if (current.hasLastProcessedMentionId() && current.getLastProcessedMentionId() >= lastProcessedMentionId) {
+                    return Optional.empty();
+                }
+                return Optional.of(current.toBuilder().setLastProcessedMentionId(lastProcessedMentionId).build());
+            });
+        }
+    }
+
+    @Override
+    public TwitterDAOResult updatePollSchedule(String handle, TwitterAccount schedule) {
+        try (Timer timer = metrics.start("local.twitter.updatePollSchedule")) {
+            return modify(handle, OptionalLong.empty(), current -> {
+                TwitterAccount.Builder updated = current.toBuilder();
+                if (schedule.hasMentionRate()) {
+                    updated.setMentionRate(schedule.getMentionRate());
+                }
+                if (schedule.hasPollIntervalSeconds()) {
+                    updated.setPollIntervalSeconds(schedule.getPollIntervalSeconds());
+                }
+                if (schedule.hasLastPolledAt()) {
+                    updated.setLastPolledAt(schedule.getLastPolledAt());
+                }
+                if (schedule.hasNextPollAt()) {
+                    updated.setNextPollAt(schedule.getNextPollAt());
+                } else {
+                    updated.clearNextPollAt();
+                }
+                return Optional.of(updated.build());
+            });
+        }
+    }
+
+    // Rewrites the log with only the live accounts in it
+    public synchronized void compact() throws IOException {
+        try (Timer timer = metrics.start("local.twitter.compact")) {
+            Path compacted = compactedLog();
+            try (FileChannel out = FileChannel.open(compacted,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).putInt(MAGIC).putInt(FORMAT_VERSION);
+                header.flip();
+                writeFully(out, header);
+                for (TwitterAccount account : accounts.values()) {
+                    writeFully(out, encode(PUT, account.toByteArray()));
+                }
+                out.force(true);
+            }
+
+            int end = buffer.position();
+            buffer.force();
+            channel.close();
+            try {
+                Files.move(compacted, log, StandardCopyOption.ATOMIC_MOVE);
+                end = FILE_HEADER_BYTES + (int) liveBytes;
+            } finally {
+                // The compacted log if it took its place, or else the old one as it was
+                open();
+                buffer.position(end);
+            }
+        }
+    }
+
+    // How much of the log is in use, superseded records included
+    int activationIndexSize() {
+        return toActivate.size();
+    }
+
+    synchronized int logBytes() {
+        return buffer.position();
+    }
+
+    // Flushes the log to disk and closes it. The DAO can't be written to afterwards.
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    // Applies the change and appends the result with its version bumped, unless the write carries
+    // a version that is no longer the stored one. The change returns nothing if there is nothing
+    // to write.
+    private synchronized TwitterDAOResult modify(
+            String handle,
+            OptionalLong expectedVersion,
+            Function<TwitterAccount, Optional<TwitterAccount>> change) {
+        TwitterAccount current = accounts.get(handle);
+        if (current == null) {
+            return TwitterDAOResult.NOT_FOUND;
+        }
+        if (expectedVersion.isPresent() && expectedVersion.getAsLong() != current.getVersion()) {
+            metrics.increment("local.twitter.conflicts");
+            return TwitterDAOResult.CONFLICT;
+        }
+        Optional<TwitterAccount> updated = change.apply(current);
+        if (!updated.isPresent()) {
+            return TwitterDAOResult.SUCCESS;
+        }
+        return write(updated.get().toBuilder()
+                .setHandle(handle)
+                .setVersion(current.getVersion() + 1)
+                .build());
+    }
+
+    private TwitterDAOResult write(TwitterAccount account) {
+        try {
+            index(account, append(PUT, account.toByteArray()));
+        } catch (IOException e) {
+            metrics.increment("local.twitter.write_errors");
+            return TwitterDAOResult.ERROR_DO_NOT_RETRY;
+        }
+        compactIfMostlySuperseded();
+        return TwitterDAOResult.SUCCESS;
+    }
+
+    // A failed compaction leaves the log as it was, so the write that set it off still stands
+    private void compactIfMostlySuperseded() {
+        long superseded = buffer.position() - FILE_HEADER_BYTES - liveBytes;
+        if (superseded <= minCompactionBytes || superseded <= liveBytes) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            metrics.increment("local.twitter.compaction_errors");
+        }
+    }
+
+    private static OptionalLong expectedVersion(TwitterAccount account) {
+        return account.hasVersion() ? OptionalLong.of(account.getVersion()) : OptionalLong.empty();
+    }
+
+    private static <T> ImmutableMap<String, TwitterDAOResult> forEach(
+            Iterable<T> items, Function<T, String> handle, Function<T, TwitterDAOResult> write) {
+        Map<String, TwitterDAOResult> results = new LinkedHashMap<>();
+        for (T item : items) {
+            String key = handle.apply(item);
+            results.put(key, key.isEmpty() ? TwitterDAOResult.INVALID_ARGUMENT : write.apply(item));
+        }
+        return ImmutableMap.copyOf(results);
+    }
+
+    private AccountPage page(
+            AccountQuery query,
+            Optional<String> startCursor,
+            int pageSize,
+            Function<TwitterAccount, TwitterAccount> projection) {
+        Timestamp now = Timestamp.now();
+        ImmutableList.Builder<TwitterAccount> page = ImmutableList.builder();
+        TwitterAccount last = null;
+        int count = 0;
+        Iterator<String> handles = handles(query, startCursor, now);
+        while (count < pageSize && handles.hasNext()) {
+            // The secondary indexes are updated after the accounts, so can briefly be behind them
+            TwitterAccount account = accounts.get(handles.next());
+            if (account != null && query == AccountQuery.TO_ACTIVATE && isPastAwayPeriod(account, now)) {
+                dropFromActivation(account.getHandle(), now);
+            }
+            if (account != null && matches(query, account, now)) {
+                page.add(projection.apply(account));
+                last = account;
+                count++;
+            }
+        }
+        if (count < pageSize) {
+            return AccountPage.last(page.build());
+        }
+        return AccountPage.of(page.build(), Optional.of(query == AccountQuery.TO_ACTIVATE
+                ? ActivationKey.of(last).toCursor()
+                : last.getHandle()));
+    }
+
+    // Handles of the accounts that may match the query, after the cursor
+    private Iterator<String> handles(AccountQuery query, Optional<String> startCursor, Timestamp now) {
+        switch (query) {
+            case ACTIVE:
+                return (startCursor.isPresent() ? active.tailSet(startCursor.get(), false) : active).iterator();
+            case TO_ACTIVATE:
+                NavigableSet<ActivationKey> started = toActivate.headSet(new ActivationKey(now, null), false);
+                if (startCursor.isPresent()) {
+                    started = started.tailSet(ActivationKey.fromCursor(startCursor.get()), false);
+                }
+                return Iterators.transform(started.iterator(), key -> key.handle);
+            default:
+                return (startCursor.isPresent() ? accounts.tailMap(startCursor.get(), false) : accounts)
+                        .keySet()
+                        .iterator();
+        }
+    }
+
+    // An account whose away period ended without it being activated is taken out of the index, so
+    // that it isn't read again on every scan. Done under the lock so that a write rescheduling the
+    // account in between keeps its place.
+    private synchronized void dropFromActivation(String handle, Timestamp now) {
+        TwitterAccount account = accounts.get(handle);
+        if (account != null && isPastAwayPeriod(account, now)) {
+            toActivate.remove(ActivationKey.of(account));
+        }
+    }
+
+    private static boolean isPastAwayPeriod(TwitterAccount account, Timestamp now) {
+        return !account.getActive() && Timestamp.fromProto(account.getActiveUntil()).compareTo(now) <= 0;
+    }
+
+    private static boolean matches(AccountQuery query, TwitterAccount account, Timestamp now) {
+        switch (query) {
+            case ACTIVE:
+                return account.getActive();
+            case TO_ACTIVATE:
+                return !account.getActive()
+                        && Timestamp.fromProto(account.getActiveFrom()).compareTo(now) <= 0
+                        && Timestamp.fromProto(account.getActiveUntil()).compareTo(now) > 0;
+            default:
+                return true;
+        }
+    }
+
+    private void index(TwitterAccount account, int recordSize) {
+        String handle = account.getHandle();
+        TwitterAccount previous = accounts.put(handle, account);
+        Integer previousSize = recordSizes.put(handle, recordSize);
+        liveBytes += recordSize - (previousSize == null ? 0 : previousSize);
+        if (previous != null) {
+            unindexSchedule(previous);
+        }
+        if (account.getActive()) {
+            active.add(handle);
+        } else if (Timestamp.fromProto(account.getActiveUntil()).compareTo(Timestamp.now()) > 0) {
+            toActivate.add(ActivationKey.of(account));
+        }
+    }
+
+    private void unindex(String handle) {
+        TwitterAccount previous = accounts.remove(handle);
+        Integer previousSize = recordSizes.remove(handle);
+        if (previousSize != null) {
+            liveBytes -= previousSize;
+        }
+        if (previous != null) {
+            unindexSchedule(previous);
+        }
+    }
+
+    private void unindexSchedule(TwitterAccount account) {
+        active.remove(account.getHandle());
+        toActivate.remove(ActivationKey.of(account));
+    }
+
+    // Maps the whole of the log as it is on disk; appends grow the mapping as they need to
+    private void open() throws IOException {
+        channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Account log is too large to map: " + log);
+        }
+        buffer = channel.map(MapMode.READ_WRITE, 0, size);
+    }
+
+    // Replays the log into the indexes, stopping at the first record that isn't whole, and wipes
+    // everything from there on so that later appends can't be mistaken for its remains
+    private void recover() throws IOException {
+        if (buffer.capacity() == 0) {
+            ensureCapacity(FILE_HEADER_BYTES);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+            return;
+        }
+        if (buffer.capacity() < FILE_HEADER_BYTES
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not an account log, or not in a format this version can read: " + log);
+        }
+
+        int position = FILE_HEADER_BYTES;
+        while (buffer.capacity() - position >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break; // the unwritten end of the mapping
+            }
+            byte[] body = length > 0 && length <= buffer.capacity() - position - RECORD_HEADER_BYTES
+                    ? read(position + RECORD_HEADER_BYTES, length)
+                    : null;
+            if (body == null || crc(body) != buffer.getInt(position + 4)) {
+                metrics.increment("local.twitter.torn_writes");
+                for (int i = position; i < buffer.capacity(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            replay(body, RECORD_HEADER_BYTES + length);
+            position += RECORD_HEADER_BYTES + length;
+        }
+        buffer.position(position);
+    }
+
+    // A record that passes its checksum but can't be read wasn't torn, so the log can't be trusted
+    private void replay(byte[] body, int recordSize) throws IOException {
+        switch (body[0]) {
+            case PUT:
+                index(TwitterAccount.parser().parseFrom(body, 1, body.length - 1), recordSize);
+                break;
+            case DELETE:
+                unindex(new String(body, 1, body.length - 1, UTF_8));
+                break;
+            default:
+                throw new IOException("Unknown record type " + body[0] + " in account log " + log);
+        }
+    }
+
+    private byte[] read(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    // Returns the size of the record appended
+    private int append(byte type, byte[] payload) throws IOException {
+        ByteBuffer record = encode(type, payload);
+        int size = record.remaining();
+        ensureCapacity(size);
+        buffer.put(record);
+        return size;
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        long required = (long) buffer.position() + bytes;
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("Account log is full: " + log);
+        }
+        long capacity = Math.max(required, Math.max(2L * buffer.capacity(), MIN_GROWTH_BYTES));
+        int position = buffer.position();
+        buffer = channel.map(MapMode.READ_WRITE, 0, Math.min(capacity, Integer.MAX_VALUE));
+        buffer.position(position);
+    }
+
+    private static ByteBuffer encode(byte type, byte[] payload) {
+        byte[] body = new byte[1 + payload.length];
+        body[0] = type;
+        System.arraycopy(payload, 0, body, 1, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + body.length)
+                .putInt(body.length)
+                .putInt(crc(body))
+                .put(body);
+        record.flip();
+        return record;
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    private Path compactedLog() {
+        return log.resolveSibling(log.getFileName() + ".compact");
+    }
+
+    // Where an inactive account sorts among those to activate: by when its away period starts,
+    // then by handle. A key with no handle sorts after every account starting at the same time.
+    private static final class ActivationKey implements Comparable<ActivationKey> {
+        private final Timestamp activeFrom;
+        private final String handle;
+
+        private ActivationKey(Timestamp activeFrom, String handle) {
+            this.activeFrom = activeFrom;
+            this.handle = handle;
+        }
+
+        static ActivationKey of(TwitterAccount account) {
+            return new ActivationKey(Timestamp.fromProto(account.getActiveFrom()), account.getHandle());
+        }
+
+        static ActivationKey fromCursor(String cursor) {
+            String[] parts = cursor.split(":", 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor);
+            }
+            return new ActivationKey(
+                    Timestamp.ofTimeSecondsAndNanos(Long.parseLong(parts[0]), Integer.parseInt(parts[1])),
+                    parts[2]);
+        }
+
+        String toCursor() {
+            return activeFrom.getSeconds() + ":" + activeFrom.getNanos() + ":" + handle;
+        }
+
+        @Override
+        public int compareTo(ActivationKey other) {
+            int byTime = activeFrom.compareTo(other.activeFrom);
+            if (byTime != 0) {
+                return byTime;
+            }
+            if (handle == null || other.handle == null) {
+                return handle == null ? (other.handle == null ? 0 : 1) : -1;
+            }
+            return handle.compareTo(other.handle);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.outofoctopus.encryption;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.encryption.EncryptionModule.DecryptCacheSize;
+import com.outofoctopus.encryption.EncryptionModule.DecryptCacheTtl;
+import com.outofoctopus.metrics.Metrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Remembers decrypted plaintexts in front of another client, so that decrypting the same
+// ciphertext again doesn't need a KMS round trip. Entries are keyed by a hash of the key name and
+// ciphertext, expire a fixed time after they were decrypted, and the least recently used are
+// evicted once the cache is full. Hits and misses are counted in the metrics.
+//
+// Plaintexts are held as strings until they're evicted, like those handed to callers, so nothing
+// is done to scrub them from memory. Encryption isn't cached and goes straight to the delegate.
+@Singleton
+public class CachingEncryptionClient implements EncryptionClient {
+    private final EncryptionClient delegate;
+    private final Metrics metrics;
+    private final Cache<HashCode, String> plaintexts;
+
+    @Inject
+    public CachingEncryptionClient(
+            KmsEncryptionClient delegate,
+            Metrics metrics,
+            @DecryptCacheSize long maxSize,
+            @DecryptCacheTtl Duration ttl) {
+        this(delegate, metrics, maxSize, ttl, Ticker.systemTicker());
+    }
+
+    CachingEncryptionClient(EncryptionClient delegate, Metrics metrics, long maxSize, Duration ttl, Ticker ticker) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.plaintexts = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .ticker(ticker)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public String encrypt(String key, String plaintext) throws IOException {
+        return delegate.encrypt(key, plaintext);
+    }
+
+    @Override
+    public String decrypt(String key, String ciphertext) throws IOException {
+        boolean[] missed = new boolean[1];
+        try {
+            String plaintext = plaintexts.get(cacheKey(key, ciphertext), () -> {
+                missed[0] = true;
+                return delegate.decrypt(key, ciphertext);
+            });
+            metrics.increment(missed[0] ? "kms.decrypt_cache.misses" : "kms.decrypt_cache.hits");
+            return plaintext;
+        } catch (ExecutionException e) {
+            metrics.increment("kms.decrypt_cache.misses");
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            metrics.increment("kms.decrypt_cache.misses");
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Hit, miss and eviction counts since the client was created
+    public CacheStats getStats() {
+        return plaintexts.stats();
+    }
+
+    // Drops every cached plaintext
+    public void invalidateAll() {
+        plaintexts.invalidateAll();
+    }
+
+    private static HashCode cacheKey(String key, String ciphertext) {
+        return Hashing.sha256()
+                .newHasher()
+                .putString(key, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(ciphertext, StandardCharsets.UTF_8)
+                .hash();
+    }
+}
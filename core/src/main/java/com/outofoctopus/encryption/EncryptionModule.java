@@ -1,5 +1,10 @@
 package com.outofoctopus.encryption;
 
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
@@ -8,15 +13,29 @@ import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.cloudkms.v1.CloudKMS;
 import com.google.api.services.cloudkms.v1.CloudKMSScopes;
 import com.google.inject.AbstractModule;
+import com.google.inject.BindingAnnotation;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.time.Duration;
 
 public class EncryptionModule extends AbstractModule {
+
+    private static final long DECRYPT_CACHE_SIZE = 10_000L;
+    private static final Duration DECRYPT_CACHE_TTL = Duration.ofHours(1);
+
     @Override
     public void configure() {
+        bind(EncryptionClient.class).to(CachingEncryptionClient.class);
+        bind(Long.class).annotatedWith(DecryptCacheSize.class).toInstance(DECRYPT_CACHE_SIZE);
+        bind(Duration.class).annotatedWith(DecryptCacheTtl.class).toInstance(DECRYPT_CACHE_TTL);
     }
 
+    // One client for the life of the process, so its credentials and connections are reused
     @Provides
+    @Singleton
     CloudKMS provideKms() throws IOException {
         // Create the credential
         HttpTransport transport = new NetHttpTransport();
@@ -36,4 +55,16 @@ public class EncryptionModule extends AbstractModule {
                 .setApplicationName("CloudKMS snippets")
                 .build();
     }
+
+    // Maximum number of decrypted plaintexts to keep
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface DecryptCacheSize {}
+
+    // How long a decrypted plaintext is kept for
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface DecryptCacheTtl {}
 }
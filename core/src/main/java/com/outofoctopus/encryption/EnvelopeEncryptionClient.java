@@ -0,0 +1,169 @@
+package com.outofoctopus.encryption;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Encrypts values locally with AES-GCM under a data key, which is itself stored encrypted ("wrapped")
+// by a KMS key and only unwrapped once, when the client is created. Sealing and opening values
+// then costs no network calls. The data key is unwrapped with KMS directly rather than through
+// any cache, so the only plaintext copy of it is the one held here.
+//
+// Each value is bound to the owner and field it was sealed for, as associated data, so a value
+// copied into another account or field fails to open rather than being used there.
+//
+// Values sealed this way carry a prefix. Anything without it is treated as a ciphertext from
+// EncryptionClient and decrypted through KMS, so values written before envelope encryption was
+// introduced can still be read, and resealed with reseal(). So can values sealed before they were
+// bound to their owner and field.
+public class EnvelopeEncryptionClient {
+    @VisibleForTesting
+    static final String ENVELOPE_PREFIX = "env2:";
+    // Sealed with no associated data
+    @VisibleForTesting
+    static final String UNBOUND_ENVELOPE_PREFIX = "env1:";
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int DATA_KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final EncryptionClient encryptionClient;
+    private final String keyName;
+    private final Optional<SecretKey> dataKey;
+
+    // With no wrapped data key, values are encrypted directly with KMS as before
+    public EnvelopeEncryptionClient(
+            EncryptionClient encryptionClient,
+            KmsEncryptionClient kms,
+            String keyName,
+            Optional<String> wrappedDataKey) throws IOException {
+        this.encryptionClient = encryptionClient;
+        this.keyName = keyName;
+        this.dataKey = wrappedDataKey.isPresent()
+                ? Optional.of(unwrap(kms, keyName, wrappedDataKey.get()))
+                : Optional.empty();
+    }
+
+    // Generates a new random data key and returns it wrapped by the given KMS key
+    public static String newWrappedDataKey(EncryptionClient encryptionClient, String keyName) throws IOException {
+        byte[] key = new byte[DATA_KEY_BYTES];
+        RANDOM.nextBytes(key);
+        try {
+            return encryptionClient.encrypt(keyName, Base64.getEncoder().encodeToString(key));
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    public static boolean isSealed(String value) {
+        return value.startsWith(ENVELOPE_PREFIX);
+    }
+
+    public boolean hasDataKey() {
+        return dataKey.isPresent();
+    }
+
+    // owner and field name what the value is for, e.g. an account's handle and "access_token".
+    // The value can only be decrypted with the same ones.
+    public String encrypt(String owner, String field, String plaintext) throws IOException {
+        if (!dataKey.isPresent()) {
+            return encryptionClient.encrypt(keyName, plaintext);
+        }
+        return seal(dataKey.get(), associatedData(owner, field), plaintext);
+    }
+
+    public String decrypt(String owner, String field, String value) throws IOException {
+        if (!isEnvelope(value)) {
+            return encryptionClient.decrypt(keyName, value);
+        }
+        if (!dataKey.isPresent()) {
+            throw new IllegalStateException("Unable to open envelope encrypted value without a data key");
+        }
+        return isSealed(value)
+                ? open(dataKey.get(), ENVELOPE_PREFIX, associatedData(owner, field), value)
+                : open(dataKey.get(), UNBOUND_ENVELOPE_PREFIX, new byte[0], value);
+    }
+
+    // True if the value should be rewritten with reseal() to avoid a KMS call when reading it, or
+    // to bind it to its owner and field
+    public boolean needsResealing(String value) {
+        return dataKey.isPresent() && !value.isEmpty() && !isSealed(value);
+    }
+
+    public String reseal(String owner, String field, String value) throws IOException {
+        return needsResealing(value) ? encrypt(owner, field, decrypt(owner, field, value)) : value;
+    }
+
+    private static boolean isEnvelope(String value) {
+        return isSealed(value) || value.startsWith(UNBOUND_ENVELOPE_PREFIX);
+    }
+
+    // Each part is length prefixed, so that no two owner and field pairs run together the same way
+    private static byte[] associatedData(String owner, String field) {
+        byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+        byte[] fieldBytes = field.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 * Integer.BYTES + ownerBytes.length + fieldBytes.length)
+                .putInt(ownerBytes.length)
+                .put(ownerBytes)
+                .putInt(fieldBytes.length)
+                .put(fieldBytes)
+                .array();
+    }
+
+    private static SecretKey unwrap(KmsEncryptionClient kms, String keyName, String wrappedDataKey)
+            throws IOException {
+        byte[] key = Base64.getDecoder().decode(kms.decrypt(keyName, wrappedDataKey));
+        try {
+            if (key.length != DATA_KEY_BYTES) {
+                throw new IllegalArgumentException(
+                        String.format("Data key must be %s bytes but was %s", DATA_KEY_BYTES, key.length));
+            }
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    private static String seal(SecretKey key, byte[] associatedData, String plaintext) {
+        byte[] iv = new byte[IV_BYTES];
+        RANDOM.nextBytes(iv);
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(associatedData);
+            byte[] sealed = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+            byte[] message = ByteBuffer.allocate(IV_BYTES + sealed.length).put(iv).put(sealed).array();
+            return ENVELOPE_PREFIX + Base64.getEncoder().withoutPadding().encodeToString(message);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to seal message", e);
+        }
+    }
+
+    private static String open(SecretKey key, String prefix, byte[] associatedData, String value) {
+        byte[] message = Base64.getDecoder().decode(value.substring(prefix.length()));
+        if (message.length < IV_BYTES) {
+            throw new IllegalArgumentException(String.format("Unable to open truncated message %s", value));
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, message, 0, IV_BYTES));
+            cipher.updateAAD(associatedData);
+            byte[] plaintext = cipher.doFinal(message, IV_BYTES, message.length - IV_BYTES);
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException(String.format("Unable to open message %s", value), e);
+        }
+    }
+}
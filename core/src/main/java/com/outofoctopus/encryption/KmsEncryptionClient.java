@@ -0,0 +1,78 @@
+package com.outofoctopus.encryption;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.cloudkms.v1.CloudKMS;
+import com.google.api.services.cloudkms.v1.model.DecryptRequest;
+import com.google.api.services.cloudkms.v1.model.DecryptResponse;
+import com.google.api.services.cloudkms.v1.model.EncryptRequest;
+import com.google.api.services.cloudkms.v1.model.EncryptResponse;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Encrypts and decrypts with a KMS key, one round trip each
+@Singleton
+public class KmsEncryptionClient implements EncryptionClient {
+    private final CloudKMS kms;
+    private final Metrics metrics;
+
+    @Inject
+    public KmsEncryptionClient(CloudKMS kms, Metrics metrics) {
+        this.kms = kms;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String encrypt(String key, String plaintext) throws IOException {
+        try (Timer timer = metrics.start("kms.encrypt")) {
+            try {
+                EncryptRequest request = new EncryptRequest().encodePlaintext(plaintext.getBytes(StandardCharsets.UTF_8));
+                EncryptResponse response =
+                    kms
+                    .projects()
+                    .locations()
+                    .keyRings()
+                    .cryptoKeys()
+                    .encrypt(getKeyResourceName(key), request)
+                    .execute();
+                byte[] cipher = response.decodeCiphertext();
+                return Base64.getEncoder().withoutPadding().encodeToString(cipher);
+            } catch (GoogleJsonResponseException e) {
+                throw new IllegalArgumentException(
+                        String.format("Unable to encrypt message %s with key %s", plaintext, key), e);
+            }
+        }
+    }
+
+    @Override
+    public String decrypt(String key, String ciphertext) throws IOException {
+        try (Timer timer = metrics.start("kms.decrypt")) {
+            try {
+                byte[] cipher = Base64.getDecoder().decode(ciphertext);
+                DecryptRequest request = new DecryptRequest().encodeCiphertext(cipher);
+                DecryptResponse response =
+                    kms
+                    .projects()
+                    .locations()
+                    .keyRings()
+                    .cryptoKeys()
+                    .decrypt(getKeyResourceName(key), request)
+                    .execute();
+                return new String(response.decodePlaintext(), StandardCharsets.UTF_8);
+            } catch (GoogleJsonResponseException e) {
+                throw new IllegalArgumentException(
+                        String.format("Unable to decrypt message %s with key %s", ciphertext, key), e);
+            }
+        }
+    }
+
+    private static String getKeyResourceName(String keyName) {
+        return String.format(
+            "projects/%s/locations/%s/keyRings/%s/cryptoKeys/%s",
+            "outofoctopus", "global", "octopus", keyName);
+    }
+}
@@ -0,0 +1,26 @@
+package com.outofoctopus.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Appends each snapshot to a local file, one line per metric
+public class FileMetricsExporter implements MetricsExporter {
+    private final Path file;
+
+    public FileMetricsExporter(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public void export(MetricsSnapshot snapshot) throws IOException {
+        Files.write(
+                file,
+                snapshot.toLines(),
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+}
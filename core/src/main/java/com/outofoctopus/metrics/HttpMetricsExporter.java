@@ -0,0 +1,28 @@
+package com.outofoctopus.metrics;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.base.Joiner;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// POSTs each snapshot as plain text, one line per metric, to a collector endpoint
+public class HttpMetricsExporter implements MetricsExporter {
+    private final GenericUrl endpoint;
+    private final HttpRequestFactory requests;
+
+    public HttpMetricsExporter(String endpoint) {
+        this.endpoint = new GenericUrl(endpoint);
+        this.requests = new NetHttpTransport().createRequestFactory();
+    }
+
+    @Override
+    public void export(MetricsSnapshot snapshot) throws IOException {
+        byte[] body = Joiner.on('\n').join(snapshot.toLines()).getBytes(StandardCharsets.UTF_8);
+        requests.buildPostRequest(endpoint, new ByteArrayContent("text/plain; charset=UTF-8", body))
+                .execute()
+                .disconnect();
+    }
+}
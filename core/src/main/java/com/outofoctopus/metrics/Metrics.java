@@ -0,0 +1,29 @@
+package com.outofoctopus.metrics;
+
+import com.google.inject.ImplementedBy;
+
+// Latency histograms and counters, keyed by name. Names are dotted, starting with the system being
+// measured e.g. "datastore.twitter.getSchedulePage", "kms.decrypt" or "twitter.mentions_timeline".
+// Unless bound to something else, this is the in-process MetricsRegistry.
+@ImplementedBy(MetricsRegistry.class)
+public interface Metrics {
+
+    // Starts timing an operation. Closing the timer records how long it took.
+    Timer start(String name);
+
+    void recordNanos(String name, long nanos);
+
+    default void increment(String name) {
+        add(name, 1);
+    }
+
+    void add(String name, long amount);
+
+    // Totals since the metrics were created
+    MetricsSnapshot snapshot();
+
+    interface Timer extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,8 @@
+package com.outofoctopus.metrics;
+
+import java.io.IOException;
+
+// Ships a snapshot of the metrics somewhere they can be looked at
+public interface MetricsExporter {
+    void export(MetricsSnapshot snapshot) throws IOException;
+}
@@ -0,0 +1,43 @@
+package com.outofoctopus.metrics;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.BindingAnnotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+public class MetricsModule extends AbstractModule {
+
+    private static final String DEFAULT_EXPORT_FILE = "octopus-metrics.log";
+    private static final Duration EXPORT_INTERVAL = Duration.ofMinutes(1);
+
+    private final MetricsExporter exporter;
+
+    public MetricsModule() {
+        this(new FileMetricsExporter(Paths.get(DEFAULT_EXPORT_FILE)));
+    }
+
+    // e.g. an HttpMetricsExporter to send the metrics to a collector instead
+    public MetricsModule(MetricsExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    @Override
+    protected void configure() {
+        bind(Metrics.class).to(MetricsRegistry.class);
+        bind(MetricsExporter.class).toInstance(exporter);
+        bind(Duration.class).annotatedWith(MetricsExportInterval.class).toInstance(EXPORT_INTERVAL);
+    }
+
+    // How often the metrics are exported
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    @interface MetricsExportInterval {}
+}
@@ -0,0 +1,73 @@
+package com.outofoctopus.metrics;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps every metric in memory. Recording is cheap enough for hot paths: after the first use of a
+// name it costs a map lookup and a few atomic adds, with no locking.
+@Singleton
+public class MetricsRegistry implements Metrics {
+    private final Ticker ticker;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    @Inject
+    public MetricsRegistry() {
+        this(Ticker.systemTicker(), Clock.systemUTC());
+    }
+
+    MetricsRegistry(Ticker ticker, Clock clock) {
+        this.ticker = ticker;
+        this.clock = clock;
+    }
+
+    @Override
+    public Timer start(String name) {
+        LatencyHistogram histogram = histogram(name);
+        long startNanos = ticker.read();
+        return () -> histogram.record(ticker.read() - startNanos);
+    }
+
+    @Override
+    public void recordNanos(String name, long nanos) {
+        histogram(name).record(nanos);
+    }
+
+    @Override
+    public void add(String name, long amount) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, unused -> new LongAdder());
+        }
+        counter.add(amount);
+    }
+
+    @Override
+    public MetricsSnapshot snapshot() {
+        ImmutableSortedMap.Builder<String, Long> counterValues = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            counterValues.put(counter.getKey(), counter.getValue().sum());
+        }
+        ImmutableSortedMap.Builder<String, HistogramSnapshot> latencyValues = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, LatencyHistogram> latency : latencies.entrySet()) {
+            latencyValues.put(latency.getKey(), latency.getValue().snapshot());
+        }
+        return new MetricsSnapshot(clock.instant(), counterValues.build(), latencyValues.build());
+    }
+
+    // get before computeIfAbsent, which locks its bin even when the key is present
+    private LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = latencies.get(name);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(name, unused -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+}
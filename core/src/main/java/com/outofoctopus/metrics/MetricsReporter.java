@@ -0,0 +1,57 @@
+package com.outofoctopus.metrics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.metrics.MetricsModule.MetricsExportInterval;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Exports the metrics on a background thread at a fixed interval, and once more when stopped
+@Singleton
+public class MetricsReporter {
+    private final Metrics metrics;
+    private final MetricsExporter exporter;
+    private final Duration interval;
+    private ScheduledExecutorService executor;
+
+    @Inject
+    MetricsReporter(Metrics metrics, MetricsExporter exporter, @MetricsExportInterval Duration interval) {
+        this.metrics = metrics;
+        this.exporter = exporter;
+        this.interval = interval;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("metrics-export-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.scheduleWithFixedDelay(
+                this::exportQuietly, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        exporter.export(metrics.snapshot());
+    }
+
+    // An export failing mustn't stop later ones
+    private void exportQuietly() {
+        try {
+            exporter.export(metrics.snapshot());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to export metrics: " + e);
+        }
+    }
+}
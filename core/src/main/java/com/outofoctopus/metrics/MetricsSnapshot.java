@@ -0,0 +1,50 @@
+package com.outofoctopus.metrics;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import java.time.Instant;
+import java.util.Map;
+
+// Every counter and latency histogram at one moment
+public final class MetricsSnapshot {
+    private final Instant takenAt;
+    private final ImmutableSortedMap<String, Long> counters;
+    private final ImmutableSortedMap<String, HistogramSnapshot> latencies;
+
+    MetricsSnapshot(
+            Instant takenAt,
+            ImmutableSortedMap<String, Long> counters,
+            ImmutableSortedMap<String, HistogramSnapshot> latencies) {
+        this.takenAt = takenAt;
+        this.counters = counters;
+        this.latencies = latencies;
+    }
+
+    public Instant getTakenAt() {
+        return takenAt;
+    }
+
+    public ImmutableSortedMap<String, Long> getCounters() {
+        return counters;
+    }
+
+    public ImmutableSortedMap<String, HistogramSnapshot> getLatencies() {
+        return latencies;
+    }
+
+    public long getCounter(String name) {
+        return counters.getOrDefault(name, 0L);
+    }
+
+    // One line per metric, each prefixed with the time of the snapshot
+    public ImmutableList<String> toLines() {
+        ImmutableList.Builder<String> lines = ImmutableList.builder();
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            lines.add(String.format("%s %s count=%d", takenAt, counter.getKey(), counter.getValue()));
+        }
+        for (Map.Entry<String, HistogramSnapshot> latency : latencies.entrySet()) {
+            lines.add(String.format("%s %s %s", takenAt, latency.getKey(), latency.getValue()));
+        }
+        return lines.build();
+    }
+}
@@ -0,0 +1,67 @@
+package com.outofoctopus.client
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.when
+
+import com.outofoctopus.client.RateLimitTracker.Endpoint
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+import twitter4j.RateLimitStatus
+import twitter4j.TwitterException
+
+class RateLimitTrackerTest extends GroovyTestCase {
+    private static final Instant NOW = Instant.ofEpochSecond(1_500_000_000L)
+
+    private RateLimitTracker tracker
+
+    void setUp() {
+        super.setUp()
+        tracker = new RateLimitTracker(Clock.fixed(NOW, ZoneOffset.UTC))
+    }
+
+    void tearDown() {
+        super.tearDown()
+    }
+
+    void testUnknownAccountAvailable() {
+        assertThat(tracker.isAvailable("someone")).isTrue()
+    }
+
+    void testRemainingBudgetAvailable() {
+        tracker.record("someone", Endpoint.MENTIONS_TIMELINE, status(3, NOW.plusSeconds(60)))
+        assertThat(tracker.isAvailable("someone")).isTrue()
+    }
+
+    void testSpentBudgetUnavailableUntilReset() {
+        tracker.record("someone", Endpoint.MENTIONS_TIMELINE, status(0, NOW.plusSeconds(60)))
+        tracker.record("someone", Endpoint.USER_TIMELINE, status(0, NOW.plusSeconds(120)))
+        assertThat(tracker.availableAt("someone")).isEqualTo(NOW.plusSeconds(120))
+        assertThat(tracker.isAvailable("someone")).isFalse()
+        assertThat(tracker.isAvailable("someone else")).isTrue()
+    }
+
+    void testWindowInThePastIgnored() {
+        tracker.record("someone", Endpoint.MENTIONS_TIMELINE, status(0, NOW.minusSeconds(1)))
+        assertThat(tracker.isAvailable("someone")).isTrue()
+    }
+
+    void testTooManyRequestsWithoutHeadersUsesDefaultWindow() {
+        tracker.record("someone", Endpoint.UPDATE_STATUS, new TwitterException("Too many", null, 429))
+        assertThat(tracker.isAvailable("someone")).isFalse()
+        assertThat(tracker.availableAt("someone")).isGreaterThan(NOW)
+    }
+
+    void testOtherErrorsIgnored() {
+        tracker.record("someone", Endpoint.UPDATE_STATUS, new TwitterException("Broken", null, 500))
+        assertThat(tracker.isAvailable("someone")).isTrue()
+    }
+
+    static RateLimitStatus status(int remaining, Instant resetAt) {
+        RateLimitStatus status = mock(RateLimitStatus.class)
+        when(status.getRemaining()).thenReturn(remaining)
+        when(status.getResetTimeInSeconds()).thenReturn((int) resetAt.getEpochSecond())
+        return status
+    }
+}
@@ -0,0 +1,77 @@
+package com.outofoctopus.client
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import org.apache.commons.lang3.StringUtils
+
+class ReplyTemplateTest extends GroovyTestCase {
+    private static final long SIXTH_SEPTEMBER_2017_9AM_GMT_MICROSECONDS = 1504688400000000L
+    private static final long FIRST_SEPTEMBER_2017_9AM_GMT_MICROSECONDS = 1504256400000000L
+    private static final int TWEET_LENGTH = 140
+
+    private TwitterAccount account
+
+    void setUp() {
+        super.setUp()
+        account = TwitterAccount.newBuilder()
+                .setHandle("oooctopustest")
+                .setActiveFrom(Timestamp.ofTimeMicroseconds(FIRST_SEPTEMBER_2017_9AM_GMT_MICROSECONDS).toProto())
+                .setActiveUntil(Timestamp.ofTimeMicroseconds(SIXTH_SEPTEMBER_2017_9AM_GMT_MICROSECONDS).toProto())
+                .setLocale("en-GB")
+                .setTimezone("Europe/Paris")
+                .build()
+    }
+
+    void tearDown() {
+        super.tearDown()
+    }
+
+    void testFillsPlaceholders() {
+        ReplyTemplate.Bound template = ReplyTemplate
+                .compile("Hi {USER}, away {START_DATE} to {END_DATE}. Bye {USER}")
+                .bind(account, TWEET_LENGTH)
+        assertThat(template.render("someone"))
+                .isEqualTo("Hi @someone, away Sep 1, 2017 to Sep 6, 2017. Bye @someone")
+        assertThat(template.render("else"))
+                .isEqualTo("Hi @else, away Sep 1, 2017 to Sep 6, 2017. Bye @else")
+    }
+
+    void testMessageWithoutPlaceholders() {
+        assertThat(ReplyTemplate.compile("wibbly wobbly").bind(account, TWEET_LENGTH).render("someone"))
+                .isEqualTo("wibbly wobbly")
+        assertThat(ReplyTemplate.compile("").bind(account, TWEET_LENGTH).render("someone")).isEmpty()
+    }
+
+    void testUnknownPlaceholdersLeftAlone() {
+        assertThat(ReplyTemplate.compile("{USER}{NOPE}{USER").bind(account, TWEET_LENGTH).render("a"))
+                .isEqualTo("@a{NOPE}{USER")
+    }
+
+    void testLocaleAndTimezone() {
+        TwitterAccount german = account.toBuilder().setLocale("de").setTimezone("America/New_York").build()
+        assertThat(ReplyTemplate.compile("{END_DATE}").bind(german, TWEET_LENGTH).render("a")).isEqualTo("06.09.2017")
+
+        TwitterAccount hawaii = account.toBuilder().setTimezone("Pacific/Honolulu").build()
+        assertThat(ReplyTemplate.compile("{END_DATE}").bind(hawaii, TWEET_LENGTH).render("a")).isEqualTo("Sep 5, 2017")
+
+        TwitterAccount nowhere = account.toBuilder().setTimezone("Not/AZone").build()
+        assertThat(ReplyTemplate.compile("{END_DATE}").bind(nowhere, TWEET_LENGTH).render("a")).isEqualTo("Sep 6, 2017")
+    }
+
+    // Matches the replace-then-abbreviate rendering it took over from
+    void testTruncatesLikeAbbreviate() {
+        for (int length : [0, 1, 139, 140, 141, 200]) {
+            String message = StringUtils.repeat("a", length) + "{USER}"
+            String expected = StringUtils.abbreviate(message.replace("{USER}", "@someone"), TWEET_LENGTH)
+            ReplyTemplate.Bound template = ReplyTemplate.compile(message).bind(account, TWEET_LENGTH)
+            assertThat(template.render("someone")).isEqualTo(expected)
+            assertThat(template.render("someone")).isEqualTo(expected)
+        }
+    }
+
+    void testCompiledOncePerMessage() {
+        assertThat(ReplyTemplate.forMessage("Hi {USER}")).isSameAs(ReplyTemplate.forMessage("Hi {USER}"))
+    }
+}
@@ -0,0 +1,125 @@
+package com.outofoctopus.client
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.ArgumentMatchers.any
+import static org.mockito.AdditionalAnswers.delegatesTo
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS
+import static org.mockito.Mockito.doReturn
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.never
+import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.when
+import static org.mockito.Mockito.withSettings
+
+import com.google.common.collect.ImmutableList
+import com.outofoctopus.encryption.EnvelopeEncryptionClient
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import java.time.Instant
+import twitter4j.Paging
+import twitter4j.RateLimitStatus
+import twitter4j.ResponseList
+import twitter4j.Status
+import twitter4j.StatusUpdate
+import twitter4j.Twitter
+
+class TwitterClientPagingTest extends GroovyTestCase {
+    private static final long CURSOR = 1000L
+
+    private Twitter twitter
+    private List<Paging> requests
+    private List<Long> mentionIds
+    private RateLimitStatus rateLimitStatus
+    private RateLimitTracker rateLimits
+
+    void setUp() {
+        super.setUp()
+        twitter = mock(Twitter.class)
+        requests = []
+        mentionIds = []
+        rateLimitStatus = null
+        rateLimits = new RateLimitTracker()
+        // Serves mentionIds newest first, honouring count, since_id and max_id like the real API
+        when(twitter.getMentionsTimeline(any(Paging.class))).thenAnswer({ invocation ->
+            Paging paging = invocation.getArgument(0)
+            requests.add(paging)
+            List<Long> page = mentionIds
+                    .findAll { id -> id > paging.getSinceId() && (paging.getMaxId() <= 0 || id <= paging.getMaxId()) }
+                    .sort { a, b -> b <=> a }
+                    .take(paging.getCount())
+            return responseList(page.collect { id -> mention(id) }, rateLimitStatus)
+        })
+    }
+
+    void tearDown() {
+        super.tearDown()
+    }
+
+    void testWalksBackToCursorFullPagesAtATime() {
+        (CURSOR - 10..CURSOR + 450).each { id -> mentionIds.add(id) }
+        TwitterClient client = newClient(10_000)
+
+        List<ImmutableList<StatusUpdate>> pages = []
+        client.makeReplies({ replies -> pages.add(replies) } as TwitterClient.ReplyConsumer)
+
+        assertThat(pages*.size()).containsExactly(200, 200, 50).inOrder()
+        assertThat(requests*.getCount()).containsExactly(200, 200, 200).inOrder()
+        assertThat(requests*.getSinceId().toSet()).containsExactly(CURSOR)
+        List<Long> repliedTo = pages.flatten()*.getInReplyToStatusId()
+        assertThat(repliedTo.toSet()).hasSize(450)
+        assertThat(repliedTo.min()).isEqualTo(CURSOR + 1)
+        assertThat(client.getMentionCursor()).isEqualTo(CURSOR + 450)
+    }
+
+    void testStopsAtCycleCapKeepingNewest() {
+        (CURSOR + 1..CURSOR + 500).each { id -> mentionIds.add(id) }
+        TwitterClient client = newClient(250)
+
+        ImmutableList<StatusUpdate> replies = client.makeReplies()
+
+        assertThat(replies).hasSize(250)
+        assertThat(requests*.getCount()).containsExactly(200, 50).inOrder()
+        assertThat(replies*.getInReplyToStatusId().min()).isEqualTo(CURSOR + 251)
+        assertThat(client.getMentionCursor()).isEqualTo(CURSOR + 500)
+    }
+
+    void testNoMentionsKeepsCursor() {
+        TwitterClient client = newClient(10_000)
+        assertThat(client.makeReplies()).isEmpty()
+        assertThat(client.getMentionCursor()).isEqualTo(CURSOR)
+        verify(twitter, never()).getUserTimeline()
+    }
+
+    void testRecordsRateLimitHeaders() {
+        mentionIds.add(CURSOR + 1)
+        rateLimitStatus = RateLimitTrackerTest.status(0, Instant.now().plusSeconds(600))
+        newClient(10_000).makeReplies()
+        assertThat(rateLimits.isAvailable("oooctopustest")).isFalse()
+    }
+
+    private TwitterClient newClient(int maxMentionsPerCycle) {
+        EnvelopeEncryptionClient tokenEncryption = mock(EnvelopeEncryptionClient.class)
+        when(tokenEncryption.decrypt(any(String.class), any(String.class), any(String.class))).thenReturn("token")
+        TwitterClient client = new TwitterClient(twitter, tokenEncryption, maxMentionsPerCycle, rateLimits, new MetricsRegistry())
+        client.authenticate(TwitterAccount.newBuilder()
+                .setHandle("oooctopustest")
+                .setMessage("Away")
+                .setLastProcessedMentionId(CURSOR)
+                .build())
+        return client
+    }
+
+    private static Status mention(long id) {
+        Status status = mock(Status.class, RETURNS_DEEP_STUBS)
+        when(status.getId()).thenReturn(id)
+        when(status.getUser().getScreenName()).thenReturn("mentioner" + id)
+        return status
+    }
+
+    // A ResponseList backed by the given statuses
+    static ResponseList<Status> responseList(List<Status> statuses, RateLimitStatus rateLimitStatus = null) {
+        ResponseList<Status> list = mock(ResponseList.class, withSettings().defaultAnswer(delegatesTo(statuses)))
+        doReturn(rateLimitStatus).when(list).getRateLimitStatus()
+        return list
+    }
+}
@@ -0,0 +1,94 @@
+package com.outofoctopus.client
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.ArgumentMatchers.anyString
+import static org.mockito.ArgumentMatchers.eq
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.times
+import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.when
+
+import com.google.common.base.Ticker
+import com.outofoctopus.db.ConsumerCredentials
+import com.outofoctopus.db.MediumDAO
+import com.outofoctopus.db.MediumDAO.MediumName
+import com.outofoctopus.encryption.EncryptionClient
+import com.outofoctopus.metrics.MetricsRegistry
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import twitter4j.Twitter
+
+class TwitterProviderTest extends GroovyTestCase {
+
+    private static final Duration REFRESH = Duration.ofHours(1)
+
+    private MediumDAO mediumDAO
+    private EncryptionClient encryption
+    private MetricsRegistry metrics
+    private AtomicLong nanos
+    private TwitterProvider provider
+
+    void setUp() {
+        super.setUp()
+        mediumDAO = mock(MediumDAO.class)
+        encryption = mock(EncryptionClient.class)
+        metrics = new MetricsRegistry()
+        nanos = new AtomicLong()
+        when(mediumDAO.getConsumerCredentials(MediumName.TWITTER))
+                .thenReturn(Optional.of(new ConsumerCredentials("sealedKey", "sealedSecret")))
+        when(encryption.decrypt(eq("octopus-twitter"), anyString())).thenAnswer({ invocation ->
+            "plain-" + invocation.getArgument(1)
+        })
+        Ticker ticker = new Ticker() {
+            long read() {
+                return nanos.get()
+            }
+        }
+        provider = new TwitterProvider(mediumDAO, encryption, "octopus-twitter", metrics, REFRESH, ticker)
+    }
+
+    void testCredentialsLoadedOnceAndShared() {
+        Twitter first = provider.get()
+        Twitter second = provider.get()
+
+        // Each account gets its own instance, so setting one's access token leaves the other alone
+        assertThat(first).isNotSameAs(second)
+        assertThat(first.getConfiguration().getOAuthConsumerKey()).isEqualTo("plain-sealedKey")
+        assertThat(second.getConfiguration().getOAuthConsumerSecret()).isEqualTo("plain-sealedSecret")
+        verify(mediumDAO, times(1)).getConsumerCredentials(MediumName.TWITTER)
+        verify(encryption, times(2)).decrypt(anyString(), anyString())
+    }
+
+    void testReloadedAfterRefreshInterval() {
+        provider.get()
+        when(mediumDAO.getConsumerCredentials(MediumName.TWITTER))
+                .thenReturn(Optional.of(new ConsumerCredentials("rotatedKey", "rotatedSecret")))
+        nanos.addAndGet(REFRESH.toNanos())
+
+        assertThat(provider.get().getConfiguration().getOAuthConsumerKey()).isEqualTo("plain-rotatedKey")
+        assertThat(metrics.snapshot().getCounter("twitter.consumer.refreshes")).isEqualTo(2L)
+    }
+
+    void testFailedRefreshKeepsLastCredentials() {
+        provider.get()
+        when(encryption.decrypt(anyString(), anyString())).thenThrow(new IOException("KMS unavailable"))
+        nanos.addAndGet(REFRESH.toNanos())
+
+        assertThat(provider.get().getConfiguration().getOAuthConsumerKey()).isEqualTo("plain-sealedKey")
+        // Not retried until the next interval
+        provider.get()
+        verify(mediumDAO, times(2)).getConsumerCredentials(MediumName.TWITTER)
+        assertThat(metrics.snapshot().getCounter("twitter.consumer.refresh_failed")).isEqualTo(1L)
+    }
+
+    void testMissingCredentialsThrow() {
+        when(mediumDAO.getConsumerCredentials(MediumName.TWITTER)).thenReturn(Optional.empty())
+        try {
+            provider.get()
+            fail("Expected missing credentials to throw")
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).contains("No consumer credentials")
+        }
+    }
+}
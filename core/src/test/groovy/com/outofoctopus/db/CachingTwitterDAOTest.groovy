@@ -0,0 +1,134 @@
+package com.outofoctopus.db
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.ArgumentMatchers.any
+import static org.mockito.ArgumentMatchers.anyString
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.times
+import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.when
+
+import com.google.common.base.Ticker
+import com.google.common.collect.ImmutableMap
+import com.outofoctopus.db.TwitterDAO.TwitterDAOResult
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
+
+class CachingTwitterDAOTest extends GroovyTestCase {
+
+    private static final Duration TTL = Duration.ofMinutes(1)
+    private static final Duration MISSING_TTL = Duration.ofSeconds(10)
+    private static final TwitterAccount ACCOUNT = TwitterAccount.newBuilder().setHandle("known").setActive(true).build()
+
+    private TwitterDAO delegate
+    private AtomicLong nanos
+    private CachingTwitterDAO dao
+
+    void setUp() {
+        super.setUp()
+        delegate = mock(TwitterDAO.class)
+        nanos = new AtomicLong()
+        when(delegate.getAccount(anyString())).thenAnswer({ invocation ->
+            invocation.getArgument(0) == ACCOUNT.getHandle() ? Optional.of(ACCOUNT) : Optional.empty()
+        })
+        when(delegate.update(any(TwitterAccount.class))).thenReturn(TwitterDAOResult.SUCCESS)
+        when(delegate.insert(any(TwitterAccount.class))).thenReturn(TwitterDAOResult.SUCCESS)
+        dao = newDao(MISSING_TTL)
+    }
+
+    void testRepeatLookupServedFromCache() {
+        assertThat(dao.getAccount("known").get()).isEqualTo ACCOUNT
+        assertThat(dao.getAccount("known").get()).isEqualTo ACCOUNT
+        verify(delegate, times(1)).getAccount("known")
+        assertThat(dao.getStats().hitCount()).isEqualTo(1L)
+    }
+
+    void testExpiresAfterTtl() {
+        dao.getAccount("known")
+        nanos.addAndGet(TTL.toNanos())
+        dao.getAccount("known")
+        verify(delegate, times(2)).getAccount("known")
+    }
+
+    void testWritesInvalidate() {
+        dao.getAccount("known")
+        dao.update(ACCOUNT)
+        dao.getAccount("known")
+        dao.updateMentionCursor("known", 10L)
+        dao.getAccount("known")
+        dao.patch(TwitterAccount.newBuilder().setHandle("known").setActive(false).build())
+        dao.getAccount("known")
+        verify(delegate, times(4)).getAccount("known")
+    }
+
+    void testMissingHandleRememberedUntilInserted() {
+        assertThat(dao.getAccount("unknown").isPresent()).isFalse()
+        assertThat(dao.getAccount("unknown").isPresent()).isFalse()
+        verify(delegate, times(1)).getAccount("unknown")
+
+        dao.insert(TwitterAccount.newBuilder().setHandle("unknown").build())
+        dao.getAccount("unknown")
+        verify(delegate, times(2)).getAccount("unknown")
+
+        nanos.addAndGet(MISSING_TTL.toNanos())
+        dao.getAccount("unknown")
+        verify(delegate, times(3)).getAccount("unknown")
+    }
+
+    void testMissingHandlesNotRememberedWhenDisabled() {
+        dao = newDao(Duration.ZERO)
+        dao.getAccount("unknown")
+        dao.getAccount("unknown")
+        verify(delegate, times(2)).getAccount("unknown")
+    }
+
+    void testConcurrentMissesShareOneRead() {
+        AtomicInteger reads = new AtomicInteger()
+        CountDownLatch release = new CountDownLatch(1)
+        when(delegate.getAccount("slow")).thenAnswer({ invocation ->
+            reads.incrementAndGet()
+            release.await()
+            return Optional.of(ACCOUNT)
+        })
+        def executor = Executors.newFixedThreadPool(8)
+        try {
+            List<CompletableFuture<Optional<TwitterAccount>>> futures = (0..<8).collect {
+                CompletableFuture.supplyAsync({ -> dao.getAccount("slow") } as Supplier, executor)
+            }
+            Thread.sleep(100)
+            release.countDown()
+            futures.each { assertThat(it.get().get()).isEqualTo ACCOUNT }
+            assertThat(reads.get()).isEqualTo(1)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    void testBatchOnlyFetchesUncached() {
+        TwitterAccount other = TwitterAccount.newBuilder().setHandle("other").build()
+        when(delegate.getAccounts(any(Iterable.class))).thenReturn(ImmutableMap.of("other", other))
+        dao.getAccount("known")
+        dao.getAccount("unknown")
+
+        assertThat(dao.getAccounts(["known", "other", "unknown"]))
+                .containsExactly("known", ACCOUNT, "other", other).inOrder()
+        verify(delegate).getAccounts(["other"])
+        dao.getAccounts(["other"])
+        verify(delegate, times(1)).getAccounts(any(Iterable.class))
+    }
+
+    private CachingTwitterDAO newDao(Duration missingTtl) {
+        Ticker ticker = new Ticker() {
+            long read() {
+                return nanos.get()
+            }
+        }
+        return new CachingTwitterDAO(delegate, 100, TTL, missingTtl, ticker)
+    }
+}
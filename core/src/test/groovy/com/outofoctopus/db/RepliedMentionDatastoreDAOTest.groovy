@@ -0,0 +1,51 @@
+package com.outofoctopus.db
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.google.cloud.datastore.Datastore
+import com.google.cloud.datastore.testing.LocalDatastoreHelper
+import com.outofoctopus.metrics.MetricsRegistry
+
+class RepliedMentionDatastoreDAOTest extends GroovyTestCase {
+
+    private static final long WAIT_MILLIS = 5000 // add a delay to tests to avoid flakiness
+
+    private static final Timestamp NOW = Timestamp.ofTimeSecondsAndNanos(1_500_000_000L, 0)
+    private static final Timestamp EARLIER = Timestamp.ofTimeSecondsAndNanos(1_499_999_000L, 0)
+    private static final Timestamp LATER = Timestamp.ofTimeSecondsAndNanos(1_500_001_000L, 0)
+
+    private LocalDatastoreHelper helper = LocalDatastoreHelper.create()
+    private Datastore datastore = helper.getOptions().getService()
+
+    private RepliedMentionDatastoreDAO dao = new RepliedMentionDatastoreDAO(
+            datastore,
+            datastore.newKeyFactory().setKind("replied_mention"),
+            new MetricsRegistry())
+
+    void setUp() {
+        super.setUp()
+        helper.start()
+        helper.reset()
+    }
+
+    void testOnlyUnexpiredRecordsCount() {
+        dao.recordReplied("octopus", [1L, 2L], LATER)
+        dao.recordReplied("octopus", [3L], EARLIER)
+        dao.recordReplied("squid", [4L], LATER)
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.getReplied("octopus", [1L, 3L, 4L, 5L], NOW)).containsExactly(1L)
+        assertThat(dao.getAllReplied("octopus")).containsExactly(1L, 2L, 3L)
+    }
+
+    void testDeleteExpired() {
+        dao.recordReplied("octopus", [1L], LATER)
+        dao.recordReplied("octopus", [2L, 3L], EARLIER)
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.deleteExpired(NOW)).isEqualTo(2)
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getAllReplied("octopus")).containsExactly(1L)
+    }
+}
@@ -0,0 +1,57 @@
+package com.outofoctopus.db
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.google.cloud.datastore.Datastore
+import com.google.cloud.datastore.testing.LocalDatastoreHelper
+import com.google.common.collect.ImmutableSet
+import com.outofoctopus.db.TwitterDAO.AccountQuery
+import com.outofoctopus.metrics.MetricsRegistry
+
+class ScanCheckpointDatastoreDAOTest extends GroovyTestCase {
+
+    private static final Timestamp NOW = Timestamp.ofTimeSecondsAndNanos(1_500_000_000L, 0)
+
+    private LocalDatastoreHelper helper = LocalDatastoreHelper.create()
+    private Datastore datastore = helper.getOptions().getService()
+
+    private ScanCheckpointDatastoreDAO dao = new ScanCheckpointDatastoreDAO(
+            datastore,
+            datastore.newKeyFactory().setKind("scan_checkpoint"),
+            new MetricsRegistry())
+
+    void setUp() {
+        super.setUp()
+        helper.start()
+        helper.reset()
+    }
+
+    void testRoundTrip() {
+        ScanCheckpoint checkpoint = new ScanCheckpoint("sweep", false, AccountQuery.TO_ACTIVATE, Optional.of("cursor"),
+                ImmutableSet.of("octopus", "squid"), ImmutableSet.of("nautilus"), NOW)
+        dao.save("worker", checkpoint)
+
+        ScanCheckpoint stored = dao.get("worker").get()
+        assertThat(stored.getSweepId()).isEqualTo("sweep")
+        assertThat(stored.isFinished()).isFalse()
+        assertThat(stored.getQuery()).isEqualTo(AccountQuery.TO_ACTIVATE)
+        assertThat(stored.getCursor()).isEqualTo(Optional.of("cursor"))
+        assertThat(stored.getCompleted()).containsExactly("octopus", "squid")
+        assertThat(stored.getRetry()).containsExactly("nautilus")
+        assertThat(stored.getUpdatedAt()).isEqualTo(NOW)
+        assertThat(dao.get("other")).isEqualTo(Optional.empty())
+    }
+
+    void testLatestSaveReplacesCheckpoint() {
+        dao.save("worker", new ScanCheckpoint("sweep", false, AccountQuery.ACTIVE, Optional.of("cursor"),
+                ImmutableSet.of("octopus"), ImmutableSet.of(), NOW))
+        dao.save("worker", new ScanCheckpoint("sweep", true, AccountQuery.ACTIVE, Optional.empty(),
+                ImmutableSet.of(), ImmutableSet.of(), NOW))
+
+        ScanCheckpoint stored = dao.get("worker").get()
+        assertThat(stored.isFinished()).isTrue()
+        assertThat(stored.getCursor()).isEqualTo(Optional.empty())
+        assertThat(stored.getCompleted()).isEmpty()
+    }
+}
@@ -0,0 +1,82 @@
+package com.outofoctopus.db
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.google.cloud.datastore.Datastore
+import com.google.cloud.datastore.testing.LocalDatastoreHelper
+import com.outofoctopus.metrics.MetricsRegistry
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class ShardLeaseDatastoreDAOTest extends GroovyTestCase {
+
+    private static final long WAIT_MILLIS = 5000 // add a delay to tests to avoid flakiness
+
+    private static final Timestamp NOW = Timestamp.ofTimeSecondsAndNanos(1_500_000_000L, 0)
+    private static final Timestamp LATER = Timestamp.ofTimeSecondsAndNanos(1_500_000_030L, 0)
+    private static final Timestamp MUCH_LATER = Timestamp.ofTimeSecondsAndNanos(1_500_000_060L, 0)
+
+    private LocalDatastoreHelper helper = LocalDatastoreHelper.create()
+    private Datastore datastore = helper.getOptions().getService()
+
+    private ShardLeaseDatastoreDAO dao = new ShardLeaseDatastoreDAO(
+            datastore,
+            datastore.newKeyFactory().setKind("shard_lease"),
+            new MetricsRegistry())
+
+    void setUp() {
+        super.setUp()
+        helper.start()
+        helper.reset()
+    }
+
+    void testLeaseHeldUntilExpiry() {
+        assertThat(dao.acquire(0, "a", LATER, NOW)).isTrue()
+        assertThat(dao.acquire(0, "b", LATER, NOW)).isFalse()
+        // Renewing a lease already held
+        assertThat(dao.acquire(0, "a", MUCH_LATER, NOW)).isTrue()
+        assertThat(dao.acquire(0, "b", MUCH_LATER, LATER)).isFalse()
+
+        assertThat(dao.acquire(0, "b", MUCH_LATER, MUCH_LATER)).isTrue()
+        ShardLease lease = dao.getLeases().get(0)
+        assertThat(lease.getShard()).isEqualTo(0)
+        assertThat(lease.getOwner()).isEqualTo("b")
+    }
+
+    void testReleaseOnlyByOwner() {
+        dao.acquire(3, "a", LATER, NOW)
+        dao.release(3, "b")
+        assertThat(dao.acquire(3, "b", LATER, NOW)).isFalse()
+
+        dao.release(3, "a")
+        assertThat(dao.getLeases()).isEmpty()
+        assertThat(dao.acquire(3, "b", LATER, NOW)).isTrue()
+    }
+
+    void testOnlyOneWorkerWinsRace() {
+        def executor = Executors.newFixedThreadPool(4)
+        try {
+            List<Callable<Boolean>> racers = (0..<4).collect { i ->
+                ({ -> dao.acquire(1, "worker" + i, LATER, NOW) } as Callable<Boolean>)
+            }
+            List<Boolean> won = executor.invokeAll(racers).collect { it.get() }
+            assertThat(won.count { it }).isEqualTo(1)
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    void testLiveWorkers() {
+        dao.registerWorker("a", LATER)
+        dao.registerWorker("b", MUCH_LATER)
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.getLiveWorkers(NOW)).containsExactly("a", "b")
+        assertThat(dao.getLiveWorkers(LATER)).containsExactly("b")
+
+        dao.deregisterWorker("b")
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getLiveWorkers(LATER)).isEmpty()
+    }
+}
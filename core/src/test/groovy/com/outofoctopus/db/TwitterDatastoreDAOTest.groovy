@@ -4,14 +4,21 @@ import static com.google.common.truth.Truth.assertThat
 
 import com.google.cloud.Timestamp
 import com.google.cloud.datastore.Datastore
+import com.google.cloud.datastore.Entity
+import com.google.cloud.datastore.Key
 import com.google.cloud.datastore.testing.LocalDatastoreHelper
+import com.google.common.collect.ImmutableMap
+import com.outofoctopus.db.TwitterDAO.AccountQuery
 import com.outofoctopus.db.TwitterDAO.TwitterDAOResult
+import com.outofoctopus.metrics.MetricsRegistry
 import com.outofoctopus.proto.TwitterProtos.TwitterAccount
 
 class TwitterDatastoreDAOTest extends GroovyTestCase {
 
     private static final long WAIT_MILLIS = 5000 // add a delay to tests to avoid flakiness
 
+    // Both accounts are as read back after being inserted, which stores them at the first version
+
     private static final ACTIVE_ACCOUNT =
             TwitterAccount.newBuilder()
                     .setActive(true)
@@ -20,6 +27,7 @@ class TwitterDatastoreDAOTest extends GroovyTestCase {
                     .setActiveUntil(Timestamp.now().toProto())
                     .setAccessToken("abc")
                     .setAccessTokenSecret("def")
+                    .setVersion(1)
                     .build()
 
     private static final ACCOUNT_TO_ACTIVATE =
@@ -30,6 +38,7 @@ class TwitterDatastoreDAOTest extends GroovyTestCase {
                     .setActiveUntil(com.google.protobuf.Timestamp.newBuilder().setSeconds(Timestamp.MAX_VALUE.getSeconds()).build())
                     .setAccessToken("ghi")
                     .setAccessTokenSecret("jkl")
+                    .setVersion(1)
                     .build()
 
     private LocalDatastoreHelper helper = LocalDatastoreHelper.create()
@@ -38,7 +47,16 @@ class TwitterDatastoreDAOTest extends GroovyTestCase {
     private TwitterDatastoreDAO dao = new TwitterDatastoreDAO(
             datastore,
             datastore.newKeyFactory().setKind("twitter"),
-            helper.getProjectId())
+            helper.getProjectId(),
+            TwitterDatastoreDAO.BLOB_SCHEMA,
+            new MetricsRegistry())
+    // Writes accounts the way they were stored before the blob layout
+    private TwitterDatastoreDAO propertiesDao = new TwitterDatastoreDAO(
+            datastore,
+            datastore.newKeyFactory().setKind("twitter"),
+            helper.getProjectId(),
+            TwitterDatastoreDAO.PROPERTIES_SCHEMA,
+            new MetricsRegistry())
 
     void setUp() {
         super.setUp()
@@ -102,11 +120,80 @@ class TwitterDatastoreDAOTest extends GroovyTestCase {
         TwitterDAOResult updateStatus = dao.update(updatedAccount)
         assertThat(updateStatus).isEqualTo TwitterDAOResult.SUCCESS
         Thread.sleep WAIT_MILLIS
-        assertThat(dao.getAllAccounts()).containsExactly updatedAccount
-        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get()).isEqualTo updatedAccount
+        TwitterAccount stored = updatedAccount.toBuilder().setVersion(2).build()
+        assertThat(dao.getAllAccounts()).containsExactly stored
+        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get()).isEqualTo stored
         assertThat(dao.getActiveAccounts()).isEmpty()
     }
 
+    void testUpdateFromStaleVersionConflicts() {
+        dao.insert ACTIVE_ACCOUNT
+        TwitterAccount first = ACTIVE_ACCOUNT.toBuilder().setAccessToken("first").build()
+        TwitterAccount second = ACTIVE_ACCOUNT.toBuilder().setAccessToken("second").build()
+
+        // Both were read at version one, so only the first write goes through
+        assertThat(dao.update(first)).isEqualTo TwitterDAOResult.SUCCESS
+        assertThat(dao.update(second)).isEqualTo TwitterDAOResult.CONFLICT
+        assertThat(dao.patch(TwitterAccount.newBuilder().setHandle(ACTIVE_ACCOUNT.getHandle()).setVersion(1).build()))
+                .isEqualTo TwitterDAOResult.CONFLICT
+        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get())
+                .isEqualTo(first.toBuilder().setVersion(2).build())
+
+        // Without a version the write is unconditional
+        assertThat(dao.update(second.toBuilder().clearVersion().build())).isEqualTo TwitterDAOResult.SUCCESS
+        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get().getAccessToken()).isEqualTo "second"
+    }
+
+    void testPatchOnlyWritesGivenFields() {
+        dao.insert ACCOUNT_TO_ACTIVATE
+        TwitterAccount activation = TwitterAccount.newBuilder()
+                .setHandle(ACCOUNT_TO_ACTIVATE.getHandle())
+                .setActive(true)
+                .setVersion(1)
+                .build()
+        // Another writer moves the mention cursor on first, which the patch has to be based on
+        dao.updateMentionCursor(ACCOUNT_TO_ACTIVATE.getHandle(), 10L)
+        assertThat(dao.patch(activation)).isEqualTo TwitterDAOResult.CONFLICT
+        assertThat(dao.patch(activation.toBuilder().setVersion(2).build())).isEqualTo TwitterDAOResult.SUCCESS
+        assertThat(dao.patchAll([activation.toBuilder().clearVersion().setActive(false).build()]))
+                .containsExactly(ACCOUNT_TO_ACTIVATE.getHandle(), TwitterDAOResult.SUCCESS)
+        assertThat(dao.patch(activation.toBuilder().setHandle("test_missing").build()))
+                .isEqualTo TwitterDAOResult.NOT_FOUND
+
+        assertThat(dao.getAccount(ACCOUNT_TO_ACTIVATE.getHandle()).get()).isEqualTo(ACCOUNT_TO_ACTIVATE.toBuilder()
+                .setLastProcessedMentionId(10L)
+                .setVersion(4)
+                .build())
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getAccountsToActivate()).containsExactly(ACCOUNT_TO_ACTIVATE.toBuilder()
+                .setLastProcessedMentionId(10L)
+                .setVersion(4)
+                .build())
+    }
+
+    void testAccountsInOldLayoutMigratedOnWrite() {
+        propertiesDao.insert ACTIVE_ACCOUNT
+        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get()).isEqualTo(ACTIVE_ACCOUNT)
+
+        dao.updateMentionCursor(ACTIVE_ACCOUNT.getHandle(), 10L)
+        assertThat(datastore.get(datastore.newKeyFactory().setKind("twitter").newKey(ACTIVE_ACCOUNT.getHandle()))
+                .getLong("schema_version")).isEqualTo((long) TwitterDatastoreDAO.BLOB_SCHEMA)
+        TwitterAccount expected = ACTIVE_ACCOUNT.toBuilder().setLastProcessedMentionId(10L).setVersion(2).build()
+        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get()).isEqualTo(expected)
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getActiveAccounts()).containsExactly(expected)
+    }
+
+    void testFieldsWithoutPropertiesRoundTrip() {
+        TwitterAccount account = ACTIVE_ACCOUNT.toBuilder()
+                .setTimezone("Europe/London")
+                .setLocale("en-GB")
+                .setMessage("Out of the office")
+                .build()
+        dao.insert account
+        assertThat(dao.getAccount(account.getHandle()).get()).isEqualTo(account)
+    }
+
     void testDelete() {
         assertThat(dao.getAllAccounts()).isEmpty()
         dao.insert ACTIVE_ACCOUNT
@@ -155,4 +242,214 @@ class TwitterDatastoreDAOTest extends GroovyTestCase {
         assertThat(blankInserted.getActiveFrom()).isEqualTo Timestamp.MIN_VALUE.toProto()
         assertThat(blankInserted.getActiveUntil()).isEqualTo Timestamp.MIN_VALUE.toProto()
     }
-}
\ No newline at end of file
+
+    void testOnlyAccountsDueNowAreToActivate() {
+        Timestamp tomorrow = Timestamp.ofTimeSecondsAndNanos(Timestamp.now().getSeconds() + 86400, 0)
+        TwitterAccount later = TwitterAccount.newBuilder(ACCOUNT_TO_ACTIVATE)
+                .setHandle("test_later")
+                .setActiveFrom(tomorrow.toProto())
+                .build()
+        TwitterAccount expired = TwitterAccount.newBuilder(ACCOUNT_TO_ACTIVATE)
+                .setHandle("test_expired")
+                .setActiveUntil(Timestamp.now().toProto())
+                .build()
+        dao.insertAll([ACTIVE_ACCOUNT, ACCOUNT_TO_ACTIVATE, later, expired])
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.getAccountsToActivate()).containsExactly ACCOUNT_TO_ACTIVATE
+        assertThat(dao.getSchedulePage(AccountQuery.TO_ACTIVATE, Optional.empty(), 10).getAccounts())
+                .containsExactly(scheduleOf(ACCOUNT_TO_ACTIVATE))
+
+        // Once activated it leaves the index
+        dao.update(TwitterAccount.newBuilder(ACCOUNT_TO_ACTIVATE).setActive(true).build())
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getAccountsToActivate()).isEmpty()
+    }
+
+    void testAccountsLongDueStillToActivate() {
+        // Written before its away period started 25 hours ago, and not since
+        long awaySeconds = Timestamp.now().getSeconds() - 25 * 3600
+        TwitterAccount longDue = TwitterAccount.newBuilder(ACCOUNT_TO_ACTIVATE)
+                .setActiveFrom(Timestamp.ofTimeSecondsAndNanos(awaySeconds, 0).toProto())
+                .build()
+        dao.insert longDue
+        Key key = datastore.newKeyFactory().setKind("twitter").newKey(longDue.getHandle())
+        datastore.put(Entity.newBuilder(datastore.get(key)).set("activation_bucket", Math.floorDiv(awaySeconds, 3600)).build())
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.getAccountsToActivate()).containsExactly longDue
+        assertThat(dao.getSchedulePage(AccountQuery.TO_ACTIVATE, Optional.empty(), 10).getAccounts())
+                .containsExactly(scheduleOf(longDue))
+    }
+
+    void testAccountsPastAwayPeriodDroppedFromActivation() {
+        propertiesDao.insert ACCOUNT_TO_ACTIVATE
+        // Its away period has since ended without it being activated
+        Key key = datastore.newKeyFactory().setKind("twitter").newKey(ACCOUNT_TO_ACTIVATE.getHandle())
+        datastore.put(Entity.newBuilder(datastore.get(key)).set("active_until", Timestamp.now()).build())
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.getSchedulePage(AccountQuery.TO_ACTIVATE, Optional.empty(), 10).getAccounts()).isEmpty()
+        assertThat(datastore.get(key).contains("activation_bucket")).isFalse()
+        assertThat(datastore.get(key).getLong("version")).isEqualTo(1L)
+    }
+
+    void testReindexedAccountsFoundByScan() {
+        TwitterAccount toActivate = TwitterAccount.newBuilder(ACCOUNT_TO_ACTIVATE)
+                .setActiveFrom(Timestamp.ofTimeSecondsAndNanos(Timestamp.now().getSeconds() - 3600, 0).toProto())
+                .build()
+        propertiesDao.insertAll([ACTIVE_ACCOUNT, toActivate])
+        // As stored before the properties the scan queries on were added
+        [ACTIVE_ACCOUNT, toActivate].each { account ->
+            Key key = datastore.newKeyFactory().setKind("twitter").newKey(account.getHandle())
+            datastore.put(Entity.newBuilder(datastore.get(key)).remove("next_poll_at").remove("activation_bucket").build())
+        }
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getSchedulePage(AccountQuery.ACTIVE, Optional.empty(), 10).getAccounts()).isEmpty()
+        assertThat(dao.getSchedulePage(AccountQuery.TO_ACTIVATE, Optional.empty(), 10).getAccounts()).isEmpty()
+
+        assertThat(dao.reindexAccounts()).isEqualTo(2)
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getSchedulePage(AccountQuery.ACTIVE, Optional.empty(), 10).getAccounts())
+                .containsExactly(scheduleOf(ACTIVE_ACCOUNT))
+        assertThat(dao.getSchedulePage(AccountQuery.TO_ACTIVATE, Optional.empty(), 10).getAccounts())
+                .containsExactly(scheduleOf(toActivate))
+    }
+
+    void testUpdatePollScheduleOnlyTouchesPollFields() {
+        dao.insert ACTIVE_ACCOUNT
+        Timestamp nextPoll = Timestamp.ofTimeSecondsAndNanos(Timestamp.now().getSeconds() + 600, 0)
+        TwitterAccount polled = TwitterAccount.newBuilder(ACTIVE_ACCOUNT)
+                .setAccessToken("ignored")
+                .setMentionRate(1.5)
+                .setPollIntervalSeconds(600)
+                .setLastPolledAt(Timestamp.now().toProto())
+                .setNextPollAt(nextPoll.toProto())
+                .build()
+
+        assertThat(dao.updatePollSchedule(ACTIVE_ACCOUNT.getHandle(), polled)).isEqualTo TwitterDAOResult.SUCCESS
+        assertThat(dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get()).isEqualTo(polled.toBuilder()
+                .setAccessToken(ACTIVE_ACCOUNT.getAccessToken())
+                .setVersion(2)
+                .build())
+        assertThat(dao.updatePollSchedule("test_missing", polled)).isEqualTo TwitterDAOResult.NOT_FOUND
+
+        Thread.sleep WAIT_MILLIS
+        assertThat(dao.getSchedulePage(AccountQuery.ACTIVE, Optional.empty(), 10).getAccounts())
+                .containsExactly(scheduleOf(ACTIVE_ACCOUNT).toBuilder().setNextPollAt(nextPoll.toProto()).build())
+    }
+
+    void testBatchWrites() {
+        List<TwitterAccount> accounts = (0..<3).collect { i ->
+            TwitterAccount.newBuilder(ACTIVE_ACCOUNT).setHandle("batch" + i).build()
+        }
+        TwitterAccount noHandle = TwitterAccount.newBuilder(ACTIVE_ACCOUNT).clearHandle().build()
+        ImmutableMap<String, TwitterDAOResult> inserted = dao.insertAll(accounts + [noHandle])
+        assertThat(inserted).containsExactly(
+                "batch0", TwitterDAOResult.SUCCESS,
+                "batch1", TwitterDAOResult.SUCCESS,
+                "batch2", TwitterDAOResult.SUCCESS,
+                "", TwitterDAOResult.INVALID_ARGUMENT)
+
+        // The missing account fails the batch, so the rest are written one at a time
+        List<TwitterAccount> updates = accounts.collect { TwitterAccount.newBuilder(it).setActive(false).build() }
+        TwitterAccount missing = TwitterAccount.newBuilder(ACTIVE_ACCOUNT).setHandle("missing").build()
+        ImmutableMap<String, TwitterDAOResult> updated = dao.updateAll(updates + [missing])
+        assertThat(updated).containsExactly(
+                "batch0", TwitterDAOResult.SUCCESS,
+                "batch1", TwitterDAOResult.SUCCESS,
+                "batch2", TwitterDAOResult.SUCCESS,
+                "missing", TwitterDAOResult.NOT_FOUND)
+        assertThat(dao.getAccount("batch1").get().getActive()).isFalse()
+
+        ImmutableMap<String, TwitterDAOResult> deleted = dao.deleteAll(["batch0", "batch1"])
+        assertThat(deleted.values()).containsExactly(TwitterDAOResult.SUCCESS, TwitterDAOResult.SUCCESS)
+        assertThat(dao.getAccount("batch0").isPresent()).isFalse()
+        assertThat(dao.getAccount("batch2").isPresent()).isTrue()
+    }
+
+    void testUnreadableAccountOnlyFailsItself() {
+        List<TwitterAccount> accounts = (0..<3).collect { i ->
+            TwitterAccount.newBuilder(ACTIVE_ACCOUNT).setHandle("unreadable" + i).build()
+        }
+        dao.insertAll(accounts)
+        Key key = datastore.newKeyFactory().setKind("twitter").newKey("unreadable1")
+        datastore.put(Entity.newBuilder(datastore.get(key)).set("schema_version", 99).build())
+
+        List<TwitterAccount> changes = accounts.collect { TwitterAccount.newBuilder().setHandle(it.getHandle()).setActive(false).build() }
+        assertThat(dao.patchAll(changes)).containsExactly(
+                "unreadable0", TwitterDAOResult.SUCCESS,
+                "unreadable1", TwitterDAOResult.INVALID_ARGUMENT,
+                "unreadable2", TwitterDAOResult.SUCCESS)
+        assertThat(dao.getAccount("unreadable2").get().getActive()).isFalse()
+    }
+
+    void testPagedIteration() {
+        List<TwitterAccount> inserted = []
+        for (int i = 0; i < 5; i++) {
+            TwitterAccount account = TwitterAccount.newBuilder(ACTIVE_ACCOUNT).setHandle("test_page_" + i).build()
+            dao.insert(account)
+            inserted.add(account)
+        }
+        Thread.sleep WAIT_MILLIS
+
+        AccountPage firstPage = dao.getAccountPage(AccountQuery.ACTIVE, Optional.empty(), 2)
+        assertThat(firstPage.getAccounts()).hasSize(2)
+        assertThat(firstPage.getNextCursor().isPresent()).isTrue()
+
+        // Resuming from the first page's cursor returns everything else
+        List<TwitterAccount> rest = dao.iterateAccounts(AccountQuery.ACTIVE, firstPage.getNextCursor(), 2).toList()
+        assertThat(rest).hasSize(3)
+        assertThat(firstPage.getAccounts() + rest).containsExactlyElementsIn inserted
+        assertThat(dao.iterateAccounts(AccountQuery.TO_ACTIVATE, 2).hasNext()).isFalse()
+    }
+
+    void testScheduleOnlyHasScheduleFields() {
+        dao.insert ACTIVE_ACCOUNT
+        dao.insert ACCOUNT_TO_ACTIVATE
+        Thread.sleep WAIT_MILLIS
+
+        AccountPage schedules = dao.getSchedulePage(AccountQuery.ALL, Optional.empty(), 10)
+        assertThat(schedules.getAccounts()).containsExactly(
+                scheduleOf(ACTIVE_ACCOUNT), scheduleOf(ACCOUNT_TO_ACTIVATE))
+        assertThat(dao.getSchedulePage(AccountQuery.ACTIVE, Optional.empty(), 10).getAccounts())
+                .containsExactly(scheduleOf(ACTIVE_ACCOUNT))
+    }
+
+    void testGetAccountsBatch() {
+        dao.insert ACTIVE_ACCOUNT
+        dao.insert ACCOUNT_TO_ACTIVATE
+        Thread.sleep WAIT_MILLIS
+
+        Map<String, TwitterAccount> accounts =
+                dao.getAccounts([ACTIVE_ACCOUNT.getHandle(), ACCOUNT_TO_ACTIVATE.getHandle(), "test_missing"])
+        assertThat(accounts).containsExactly(
+                ACTIVE_ACCOUNT.getHandle(), ACTIVE_ACCOUNT,
+                ACCOUNT_TO_ACTIVATE.getHandle(), ACCOUNT_TO_ACTIVATE)
+    }
+
+    void testUpdateMentionCursorOnlyMovesForward() {
+        dao.insert ACTIVE_ACCOUNT
+        Thread.sleep WAIT_MILLIS
+
+        assertThat(dao.updateMentionCursor(ACTIVE_ACCOUNT.getHandle(), 100L)).isEqualTo TwitterDAOResult.SUCCESS
+        assertThat(dao.updateMentionCursor(ACTIVE_ACCOUNT.getHandle(), 50L)).isEqualTo TwitterDAOResult.SUCCESS
+        Thread.sleep WAIT_MILLIS
+
+        TwitterAccount updated = dao.getAccount(ACTIVE_ACCOUNT.getHandle()).get()
+        assertThat(updated).isEqualTo(TwitterAccount.newBuilder(ACTIVE_ACCOUNT)
+                .setLastProcessedMentionId(100L)
+                .setVersion(2)
+                .build())
+        assertThat(dao.updateMentionCursor("test_missing", 1L)).isEqualTo TwitterDAOResult.NOT_FOUND
+    }
+
+    private static TwitterAccount scheduleOf(TwitterAccount account) {
+        return TwitterAccount.newBuilder()
+                .setHandle(account.getHandle())
+                .setActive(account.getActive())
+                .setActiveFrom(account.getActiveFrom())
+                .setActiveUntil(account.getActiveUntil())
+                .build()
+    }
+}
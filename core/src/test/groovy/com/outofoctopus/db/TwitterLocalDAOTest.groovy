@@ -0,0 +1,197 @@
+package com.outofoctopus.db
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.google.inject.AbstractModule
+import com.google.inject.Guice
+import com.outofoctopus.db.TwitterDAO.AccountQuery
+import com.outofoctopus.db.TwitterDAO.TwitterDAOResult
+import com.outofoctopus.metrics.Metrics
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import java.nio.file.Files
+import java.nio.file.Path
+
+class TwitterLocalDAOTest extends GroovyTestCase {
+
+    private static final Timestamp PAST = Timestamp.parseTimestamp("2018-01-01T00:00:00Z")
+    private static final Timestamp FUTURE = Timestamp.parseTimestamp("2100-01-01T00:00:00Z")
+
+    private Path directory
+    private Path log
+    private MetricsRegistry metrics
+    private TwitterLocalDAO dao
+
+    void setUp() {
+        super.setUp()
+        directory = Files.createTempDirectory("accounts")
+        log = directory.resolve("twitter.log")
+        metrics = new MetricsRegistry()
+        dao = new TwitterLocalDAO(log, metrics)
+    }
+
+    void tearDown() {
+        dao.close()
+        directory.deleteDir()
+        super.tearDown()
+    }
+
+    void testWritesVersioned() {
+        assertThat(dao.insert(account("octopus", true))).isEqualTo(TwitterDAOResult.SUCCESS)
+        assertThat(dao.insert(account("octopus", false))).isEqualTo(TwitterDAOResult.ALREADY_EXISTS)
+        assertThat(dao.insert(TwitterAccount.newBuilder().setActive(true).build()))
+                .isEqualTo(TwitterDAOResult.INVALID_ARGUMENT)
+        assertThat(dao.getAccount("octopus").get().getVersion()).isEqualTo(1L)
+
+        assertThat(dao.patch(TwitterAccount.newBuilder().setHandle("octopus").setVersion(1).setMessage("Away").build()))
+                .isEqualTo(TwitterDAOResult.SUCCESS)
+        assertThat(dao.patch(TwitterAccount.newBuilder().setHandle("octopus").setVersion(1).setActive(false).build()))
+                .isEqualTo(TwitterDAOResult.CONFLICT)
+        assertThat(dao.update(account("squid", true))).isEqualTo(TwitterDAOResult.NOT_FOUND)
+
+        TwitterAccount stored = dao.getAccount("octopus").get()
+        assertThat(stored.getVersion()).isEqualTo(2L)
+        assertThat(stored.getMessage()).isEqualTo("Away")
+        assertThat(stored.getActive()).isTrue()
+    }
+
+    void testHandlelessAccountsShareOneBatchResult() {
+        dao.insert(account("octopus", true))
+        TwitterAccount noHandle = TwitterAccount.newBuilder().setActive(false).build()
+        assertThat(dao.updateAll([account("octopus", false), noHandle, noHandle])).containsExactly(
+                "octopus", TwitterDAOResult.SUCCESS,
+                "", TwitterDAOResult.INVALID_ARGUMENT)
+        assertThat(dao.deleteAll([""])).containsExactly("", TwitterDAOResult.INVALID_ARGUMENT)
+    }
+
+    void testReopenedFromLog() {
+        dao.insertAll([account("octopus", true), account("squid", false), account("crab", true)])
+        dao.updateMentionCursor("octopus", 42L)
+        dao.delete("crab")
+        dao.close()
+
+        dao = new TwitterLocalDAO(log, metrics)
+        assertThat(dao.getAccount("octopus").get().getLastProcessedMentionId()).isEqualTo(42L)
+        assertThat(dao.getAccount("octopus").get().getVersion()).isEqualTo(2L)
+        assertThat(dao.getAccount("crab").isPresent()).isFalse()
+        assertThat(dao.getActiveAccounts()*.getHandle()).containsExactly("octopus")
+        assertThat(dao.getAccountsToActivate()*.getHandle()).containsExactly("squid")
+    }
+
+    void testQueriesPagedThroughIndexes() {
+        dao.insertAll([
+                account("a", true),
+                account("b", false),
+                account("c", true),
+                account("d", false, FUTURE, FUTURE), // away period not started yet
+                account("e", true),
+                account("f", false, Timestamp.parseTimestamp("2017-01-01T00:00:00Z"), FUTURE),
+                account("g", false, PAST, PAST)]) // away period over
+        assertThat(handles(AccountQuery.ACTIVE)).containsExactly("a", "c", "e").inOrder()
+        assertThat(handles(AccountQuery.TO_ACTIVATE)).containsExactly("f", "b").inOrder()
+        assertThat(handles(AccountQuery.ALL)).containsExactly("a", "b", "c", "d", "e", "f", "g").inOrder()
+
+        // Activating an account moves it between the indexes
+        dao.patch(TwitterAccount.newBuilder().setHandle("b").setActive(true).build())
+        assertThat(handles(AccountQuery.ACTIVE)).containsExactly("a", "b", "c", "e").inOrder()
+        assertThat(handles(AccountQuery.TO_ACTIVATE)).containsExactly("f")
+
+        AccountPage schedules = dao.getSchedulePage(AccountQuery.ACTIVE, Optional.empty(), 10)
+        assertThat(schedules.getAccounts()[0]).isEqualTo(TwitterAccount.newBuilder()
+                .setHandle("a")
+                .setActive(true)
+                .setActiveFrom(PAST.toProto())
+                .setActiveUntil(FUTURE.toProto())
+                .build())
+    }
+
+    void testAccountsPastAwayPeriodDroppedFromActivation() {
+        Timestamp soon = Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + 200) * 1000)
+        dao.insertAll([account("b", false), account("h", false, PAST, soon)])
+        assertThat(dao.activationIndexSize()).isEqualTo(2)
+
+        Thread.sleep(300)
+        assertThat(handles(AccountQuery.TO_ACTIVATE)).containsExactly("b")
+        assertThat(dao.activationIndexSize()).isEqualTo(1)
+    }
+
+    void testInvalidCursorRejected() {
+        shouldFail(IllegalArgumentException) {
+            dao.getAccountPage(AccountQuery.TO_ACTIVATE, Optional.of("octopus"), 10)
+        }
+    }
+
+    void testTornWriteDroppedOnRecovery() {
+        dao.insert(account("octopus", true))
+        dao.insert(account("squid", true))
+        dao.close()
+
+        // Garble the end of the last record, as a crash part way through writing it would
+        byte[] bytes = Files.readAllBytes(log)
+        int end = bytes.length - 1
+        while (bytes[end] == 0) {
+            end--
+        }
+        bytes[end] = (byte) (bytes[end] ^ 0xff)
+        Files.write(log, bytes)
+
+        dao = new TwitterLocalDAO(log, metrics)
+        assertThat(dao.getAccount("octopus").isPresent()).isTrue()
+        assertThat(dao.getAccount("squid").isPresent()).isFalse()
+        assertThat(metrics.snapshot().getCounter("local.twitter.torn_writes")).isEqualTo(1L)
+
+        // Writes after the torn one are read back on the next recovery
+        dao.insert(account("crab", true))
+        dao.close()
+        dao = new TwitterLocalDAO(log, metrics)
+        assertThat(dao.getActiveAccounts()*.getHandle()).containsExactly("crab", "octopus").inOrder()
+        assertThat(metrics.snapshot().getCounter("local.twitter.torn_writes")).isEqualTo(1L)
+    }
+
+    void testCompactedOnceMostlySuperseded() {
+        dao.close()
+        dao = new TwitterLocalDAO(log, metrics, 0)
+        dao.insert(account("octopus", true))
+        int oneAccount = dao.logBytes()
+        for (int i = 1; i <= 100; i++) {
+            dao.updateMentionCursor("octopus", i)
+        }
+        assertThat(dao.logBytes()).isLessThan(4 * oneAccount)
+        dao.close()
+
+        assertThat(Files.exists(log.resolveSibling("twitter.log.compact"))).isFalse()
+        dao = new TwitterLocalDAO(log, metrics)
+        assertThat(dao.getAccount("octopus").get().getLastProcessedMentionId()).isEqualTo(100L)
+        assertThat(dao.getAccount("octopus").get().getVersion()).isEqualTo(101L)
+    }
+
+    void testSelectedByModule() {
+        dao.close()
+        def injector = Guice.createInjector(new TwitterDAOModule(log), new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Metrics.class).toInstance(metrics)
+            }
+        })
+        dao = (TwitterLocalDAO) injector.getInstance(TwitterDAO.class)
+        assertThat(injector.getInstance(TwitterDAO.class)).isSameAs(dao)
+    }
+
+    private List<String> handles(AccountQuery query) {
+        List<String> handles = []
+        dao.iterateAccounts(query, 2).each { handles.add(it.getHandle()) }
+        return handles
+    }
+
+    private static TwitterAccount account(String handle, boolean active, Timestamp from = PAST, Timestamp until = FUTURE) {
+        return TwitterAccount.newBuilder()
+                .setHandle(handle)
+                .setActive(active)
+                .setActiveFrom(from.toProto())
+                .setActiveUntil(until.toProto())
+                .setAccessToken("token-" + handle)
+                .setAccessTokenSecret("secret-" + handle)
+                .build()
+    }
+}
@@ -0,0 +1,87 @@
+package com.outofoctopus.encryption
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.common.base.Ticker
+import com.outofoctopus.metrics.MetricsRegistry
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class CachingEncryptionClientTest extends GroovyTestCase {
+    private static final String KEY = "test"
+    private static final Duration TTL = Duration.ofMinutes(10)
+
+    private AtomicInteger kmsCalls
+    private AtomicLong nanos
+    private MetricsRegistry metrics
+    private CachingEncryptionClient client
+
+    void setUp() {
+        super.setUp()
+        kmsCalls = new AtomicInteger()
+        nanos = new AtomicLong()
+        Ticker ticker = new Ticker() {
+            long read() {
+                return nanos.get()
+            }
+        }
+        metrics = new MetricsRegistry()
+        client = new CachingEncryptionClient(fakeKms(), metrics, 2, TTL, ticker)
+    }
+
+    void tearDown() {
+        super.tearDown()
+    }
+
+    void testRepeatDecryptServedFromCache() {
+        assertThat(client.decrypt(KEY, cipherOf("secret"))).isEqualTo("secret")
+        assertThat(client.decrypt(KEY, cipherOf("secret"))).isEqualTo("secret")
+        assertThat(kmsCalls.get()).isEqualTo(1)
+        assertThat(metrics.snapshot().getCounter("kms.decrypt_cache.hits")).isEqualTo(1L)
+        assertThat(metrics.snapshot().getCounter("kms.decrypt_cache.misses")).isEqualTo(1L)
+    }
+
+    void testSameCiphertextDifferentKeyNotShared() {
+        client.decrypt(KEY, cipherOf("secret"))
+        client.decrypt("other", cipherOf("secret"))
+        assertThat(kmsCalls.get()).isEqualTo(2)
+    }
+
+    void testEntriesExpire() {
+        client.decrypt(KEY, cipherOf("secret"))
+        nanos.addAndGet(TTL.toNanos() + TimeUnit.SECONDS.toNanos(1))
+        assertThat(client.decrypt(KEY, cipherOf("secret"))).isEqualTo("secret")
+        assertThat(kmsCalls.get()).isEqualTo(2)
+    }
+
+    void testLeastRecentlyUsedEvicted() {
+        client.decrypt(KEY, cipherOf("one"))
+        client.decrypt(KEY, cipherOf("two"))
+        client.decrypt(KEY, cipherOf("one"))
+        client.decrypt(KEY, cipherOf("three")) // evicts "two"
+        assertThat(kmsCalls.get()).isEqualTo(3)
+
+        client.decrypt(KEY, cipherOf("one"))
+        assertThat(kmsCalls.get()).isEqualTo(3)
+        client.decrypt(KEY, cipherOf("two"))
+        assertThat(kmsCalls.get()).isEqualTo(4)
+        assertThat(client.getStats().evictionCount()).isAtLeast(1L)
+    }
+
+    // Stands in for KMS: the "ciphertext" is the base64 encoded plaintext
+    private EncryptionClient fakeKms() {
+        return [
+                encrypt: { String key, String plaintext -> cipherOf(plaintext) },
+                decrypt: { String key, String ciphertext ->
+                    kmsCalls.incrementAndGet()
+                    return new String(Base64.getDecoder().decode(ciphertext), StandardCharsets.UTF_8)
+                }] as EncryptionClient
+    }
+
+    private static String cipherOf(String plaintext) {
+        return Base64.getEncoder().encodeToString(plaintext.getBytes(StandardCharsets.UTF_8))
+    }
+}
@@ -0,0 +1,126 @@
+package com.outofoctopus.encryption
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.ArgumentMatchers.anyString
+import static org.mockito.ArgumentMatchers.eq
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.never
+import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.when
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+class EnvelopeEncryptionClientTest extends GroovyTestCase {
+    private static final String KEY_NAME = "test"
+    private static final String WRAPPED_DATA_KEY = "wrapped"
+    private static final String DATA_KEY = Base64.getEncoder().encodeToString(new byte[32])
+    private static final String PLAIN_TEXT = "How much is that Gutenberg Bible in the window?"
+    private static final String OWNER = "octopus"
+    private static final String FIELD = "access_token"
+
+    private EncryptionClient cached
+    private KmsEncryptionClient kms
+
+    void setUp() {
+        super.setUp()
+        cached = mock(EncryptionClient.class)
+        kms = mock(KmsEncryptionClient.class)
+        when(kms.decrypt(KEY_NAME, WRAPPED_DATA_KEY)).thenReturn(DATA_KEY)
+        when(cached.decrypt(KEY_NAME, "legacy")).thenReturn(PLAIN_TEXT)
+        when(cached.encrypt(eq(KEY_NAME), anyString())).thenReturn("legacy")
+    }
+
+    void tearDown() {
+        super.tearDown()
+    }
+
+    void testSealOpenIsLocal() {
+        EnvelopeEncryptionClient client = newClient()
+        String sealed = client.encrypt(OWNER, FIELD, PLAIN_TEXT)
+        assertThat(EnvelopeEncryptionClient.isSealed(sealed)).isTrue()
+        assertThat(client.decrypt(OWNER, FIELD, sealed)).isEqualTo(PLAIN_TEXT)
+        verify(cached, never()).encrypt(anyString(), anyString())
+    }
+
+    void testDataKeyNotUnwrappedThroughCache() {
+        newClient()
+        verify(kms).decrypt(KEY_NAME, WRAPPED_DATA_KEY)
+        verify(cached, never()).decrypt(KEY_NAME, WRAPPED_DATA_KEY)
+    }
+
+    void testSealIsRandomised() {
+        EnvelopeEncryptionClient client = newClient()
+        assertThat(client.encrypt(OWNER, FIELD, PLAIN_TEXT)).isNotEqualTo(client.encrypt(OWNER, FIELD, PLAIN_TEXT))
+    }
+
+    void testValueOnlyOpensForItsOwnerAndField() {
+        EnvelopeEncryptionClient client = newClient()
+        String sealed = client.encrypt(OWNER, FIELD, PLAIN_TEXT)
+        shouldFail(IllegalArgumentException) {
+            client.decrypt("squid", FIELD, sealed)
+        }
+        shouldFail(IllegalArgumentException) {
+            client.decrypt(OWNER, "access_token_secret", sealed)
+        }
+        // Parts don't run together
+        shouldFail(IllegalArgumentException) {
+            newClient().decrypt(OWNER + "a", FIELD.substring(1), client.encrypt(OWNER, "a" + FIELD.substring(1), PLAIN_TEXT))
+        }
+    }
+
+    void testLegacyValuesReadThroughKms() {
+        EnvelopeEncryptionClient client = newClient()
+        assertThat(client.decrypt(OWNER, FIELD, "legacy")).isEqualTo(PLAIN_TEXT)
+        assertThat(client.needsResealing("legacy")).isTrue()
+
+        String resealed = client.reseal(OWNER, FIELD, "legacy")
+        assertThat(client.needsResealing(resealed)).isFalse()
+        assertThat(client.decrypt(OWNER, FIELD, resealed)).isEqualTo(PLAIN_TEXT)
+    }
+
+    void testUnboundValuesResealed() {
+        EnvelopeEncryptionClient client = newClient()
+        String unbound = sealUnbound(PLAIN_TEXT)
+        assertThat(client.decrypt(OWNER, FIELD, unbound)).isEqualTo(PLAIN_TEXT)
+        assertThat(client.needsResealing(unbound)).isTrue()
+
+        String resealed = client.reseal(OWNER, FIELD, unbound)
+        assertThat(EnvelopeEncryptionClient.isSealed(resealed)).isTrue()
+        assertThat(client.decrypt(OWNER, FIELD, resealed)).isEqualTo(PLAIN_TEXT)
+    }
+
+    void testWithoutDataKeyUsesKms() {
+        EnvelopeEncryptionClient client = new EnvelopeEncryptionClient(cached, kms, KEY_NAME, Optional.empty())
+        assertThat(client.encrypt(OWNER, FIELD, PLAIN_TEXT)).isEqualTo("legacy")
+        assertThat(client.needsResealing("legacy")).isFalse()
+    }
+
+    void testTamperedValueRejected() {
+        EnvelopeEncryptionClient client = newClient()
+        String sealed = client.encrypt(OWNER, FIELD, PLAIN_TEXT)
+        char last = sealed.charAt(sealed.length() - 1)
+        String tampered = sealed.substring(0, sealed.length() - 1) + (last == 'A' ? 'B' : 'A')
+        shouldFail(IllegalArgumentException) {
+            client.decrypt(OWNER, FIELD, tampered)
+        }
+    }
+
+    private EnvelopeEncryptionClient newClient() {
+        return new EnvelopeEncryptionClient(cached, kms, KEY_NAME, Optional.of(WRAPPED_DATA_KEY))
+    }
+
+    // As values were sealed before they were bound to their owner and field
+    private static String sealUnbound(String plaintext) {
+        byte[] iv = new byte[12]
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Base64.getDecoder().decode(DATA_KEY), "AES"),
+                new GCMParameterSpec(128, iv))
+        byte[] sealed = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8))
+        return EnvelopeEncryptionClient.UNBOUND_ENVELOPE_PREFIX +
+                Base64.getEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(iv.length + sealed.length).put(iv).put(sealed).array())
+    }
+}
@@ -0,0 +1,100 @@
+package com.outofoctopus.metrics
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.common.base.Ticker
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+class MetricsRegistryTest extends GroovyTestCase {
+    private static final Instant NOW = Instant.ofEpochSecond(1_500_000_000L)
+
+    private AtomicLong nanos
+    private MetricsRegistry metrics
+
+    void setUp() {
+        super.setUp()
+        nanos = new AtomicLong()
+        Ticker ticker = new Ticker() {
+            @Override
+            long read() {
+                return nanos.get()
+            }
+        }
+        metrics = new MetricsRegistry(ticker, Clock.fixed(NOW, ZoneOffset.UTC))
+    }
+
+    void tearDown() {
+        super.tearDown()
+    }
+
+    void testTimerRecordsElapsedTime() {
+        Metrics.Timer timer = metrics.start("datastore.get")
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(3))
+        timer.close()
+
+        HistogramSnapshot latency = metrics.snapshot().getLatencies().get("datastore.get")
+        assertThat(latency.getCount()).isEqualTo(1L)
+        assertThat(latency.getSumNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(3))
+        assertThat(latency.getMaxNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(3))
+    }
+
+    void testCounters() {
+        metrics.increment("replies.sent")
+        metrics.add("replies.sent", 4)
+        metrics.increment("replies.failed")
+
+        MetricsSnapshot snapshot = metrics.snapshot()
+        assertThat(snapshot.getCounter("replies.sent")).isEqualTo(5L)
+        assertThat(snapshot.getCounter("replies.failed")).isEqualTo(1L)
+        assertThat(snapshot.getCounter("never.used")).isEqualTo(0L)
+    }
+
+    void testPercentilesWithinBucketError() {
+        for (long i = 1; i <= 1000; i++) {
+            metrics.recordNanos("kms.decrypt", i * 1000)
+        }
+        HistogramSnapshot latency = metrics.snapshot().getLatencies().get("kms.decrypt")
+        assertWithin(latency.getP50Nanos(), 500_000)
+        assertWithin(latency.getP90Nanos(), 900_000)
+        assertWithin(latency.getP99Nanos(), 990_000)
+        assertThat(latency.getMaxNanos()).isEqualTo(1_000_000L)
+    }
+
+    void testBucketsCoverEveryValue() {
+        for (long value : [0L, 1L, 3L, 4L, 5L, 7L, 8L, 1000L, 123_456_789L, Long.MAX_VALUE]) {
+            int bucket = LatencyHistogram.bucket(value)
+            assertThat(LatencyHistogram.upperBound(bucket)).isAtLeast(value)
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBound(bucket - 1)).isLessThan(value)
+            }
+        }
+    }
+
+    void testFileExporterAppendsLines() {
+        Path file = Files.createTempFile("metrics", ".log")
+        try {
+            metrics.increment("scanner.accounts.processed")
+            metrics.recordNanos("scanner.sweep", 10)
+            FileMetricsExporter exporter = new FileMetricsExporter(file)
+            exporter.export(metrics.snapshot())
+            exporter.export(metrics.snapshot())
+
+            List<String> lines = Files.readAllLines(file)
+            assertThat(lines).hasSize(4)
+            assertThat(lines.get(0)).isEqualTo(NOW.toString() + " scanner.accounts.processed count=1")
+            assertThat(lines.get(1)).startsWith(NOW.toString() + " scanner.sweep count=1 ")
+        } finally {
+            Files.delete(file)
+        }
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertThat((double) actual).isWithin(expected * 0.25d).of((double) expected)
+    }
+}
@@ -1,13 +1,35 @@
 package com.outofoctopus.scanner;
 
+import com.google.common.collect.ImmutableList;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
 import com.outofoctopus.client.TwitterClientModule;
 import com.outofoctopus.db.DatastoreModule;
 import com.outofoctopus.db.MediumDAOModule;
+import com.outofoctopus.db.RepliedMentionDAOModule;
+import com.outofoctopus.db.ScanCheckpointDAOModule;
 import com.outofoctopus.db.TwitterDAOModule;
+import com.outofoctopus.db.TwitterDatastoreDAO;
+import com.outofoctopus.encryption.EncryptionModule;
+import com.outofoctopus.metrics.HttpMetricsExporter;
+import com.outofoctopus.metrics.MetricsModule;
+import com.outofoctopus.metrics.MetricsReporter;
+import com.outofoctopus.scanner.ScannerModule.ReplyExecutor;
+import com.outofoctopus.scanner.ScannerModule.ScanExecutor;
+import com.outofoctopus.scanner.shard.ShardCoordinator;
+import com.outofoctopus.scanner.shard.ShardModule;
 import com.outofoctopus.scanner.twitter.TwitterScanner;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import twitter4j.TwitterException;
 
 class OctopusScanner {
@@ -18,14 +40,108 @@ class OctopusScanner {
 //                    .build()
 //                    .getService();
 
-    public static void main(String[] args) throws IOException, TwitterException {
-        Injector injector = Guice.createInjector(
+    private static final Duration DEFAULT_SWEEP_INTERVAL = Duration.ofMinutes(1);
+    // How long a daemon asked to stop waits for its current sweep to finish
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofMinutes(2);
+
+    // Usage: OctopusScanner [--daemon[=<seconds between sweeps>]] [--shards=<count> [--worker=<id>]]
+    //                       [--metrics-endpoint=<url>]
+    //        OctopusScanner --reindex
+    //
+    // Scans once and exits unless run as a daemon, in which case it sweeps until the process is
+    // asked to stop, then finishes the sweep in progress. With a shard count, scans only its share
+    // of the accounts, alongside any other scanners started with the same count. The worker id
+    // defaults to one unique to this process; give a fixed one for a restarted scanner to resume
+    // the sweep its last run was partway through. Metrics are written to a local file unless an
+    // endpoint is given to POST them to.
+    //
+    // --reindex rewrites every account with the properties the scan queries on, then exits. It
+    // must be run once before the first scan of accounts stored before those properties were
+    // added, which the scan doesn't see until then. Running it again does no harm.
+    public static void main(String[] args) throws IOException, TwitterException, InterruptedException {
+        Optional<Duration> sweepInterval = Optional.empty();
+        Optional<Integer> shardCount = Optional.empty();
+        String workerId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+        Optional<String> metricsEndpoint = Optional.empty();
+        boolean reindex = false;
+        for (String arg : args) {
+            if (arg.equals("--reindex")) {
+                reindex = true;
+            } else if (arg.equals("--daemon")) {
+                sweepInterval = Optional.of(DEFAULT_SWEEP_INTERVAL);
+            } else if (arg.startsWith("--daemon=")) {
+                sweepInterval = Optional.of(Duration.ofSeconds(Long.parseLong(value(arg))));
+            } else if (arg.startsWith("--shards=")) {
+                shardCount = Optional.of(Integer.parseInt(value(arg)));
+            } else if (arg.startsWith("--worker=")) {
+                workerId = value(arg);
+            } else if (arg.startsWith("--metrics-endpoint=")) {
+                metricsEndpoint = Optional.of(value(arg));
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+        }
+
+        List<Module> modules = new ArrayList<>(ImmutableList.of(
                 new DatastoreModule(),
+                new EncryptionModule(),
+                metricsEndpoint.isPresent()
+                        ? new MetricsModule(new HttpMetricsExporter(metricsEndpoint.get()))
+                        : new MetricsModule(),
                 new MediumDAOModule(),
-                new ScannerModule(),
+                new RepliedMentionDAOModule(),
+                new ScanCheckpointDAOModule(),
+                new ScannerModule(sweepInterval.orElse(DEFAULT_SWEEP_INTERVAL)),
                 new TwitterDAOModule(),
-                new TwitterClientModule());
-        TwitterScanner twitterScanner = injector.getInstance(TwitterScanner.class);
-        twitterScanner.scan();
+                new TwitterClientModule()));
+        if (shardCount.isPresent()) {
+            modules.add(new ShardModule(shardCount.get(), workerId));
+        }
+        Injector injector = Guice.createInjector(modules);
+        if (reindex) {
+            int rewritten = injector.getInstance(TwitterDatastoreDAO.class).reindexAccounts();
+            System.out.println("Reindexed " + rewritten + " accounts");
+            return;
+        }
+        boolean sharded = shardCount.isPresent();
+        injector.getInstance(MetricsReporter.class).start();
+        if (sharded) {
+            injector.getInstance(ShardCoordinator.class).start();
+        }
+
+        if (sweepInterval.isPresent()) {
+            ScanDaemon daemon = injector.getInstance(ScanDaemon.class);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    daemon.stop(SHUTDOWN_TIMEOUT);
+                    shutDown(injector, sharded);
+                } catch (InterruptedException | IOException e) {
+                    System.err.println("Failed to shut down cleanly: " + e);
+                }
+            }, "scan-daemon-shutdown"));
+            daemon.start();
+            daemon.awaitTermination();
+            return;
+        }
+
+        try {
+            injector.getInstance(TwitterScanner.class).scan();
+        } finally {
+            shutDown(injector, sharded);
+        }
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    // Hands shards back, flushes the metrics, and lets replies still queued go out
+    private static void shutDown(Injector injector, boolean sharded) throws IOException {
+        if (sharded) {
+            injector.getInstance(ShardCoordinator.class).stop();
+        }
+        injector.getInstance(MetricsReporter.class).stop();
+        injector.getInstance(Key.get(ExecutorService.class, ScanExecutor.class)).shutdown();
+        injector.getInstance(Key.get(ScheduledExecutorService.class, ReplyExecutor.class)).shutdown();
     }
 }
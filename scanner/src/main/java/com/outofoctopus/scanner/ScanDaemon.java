@@ -0,0 +1,105 @@
+package com.outofoctopus.scanner;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.scanner.ScannerModule.SweepInterval;
+import com.outofoctopus.scanner.twitter.TwitterScanner;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import twitter4j.TwitterException;
+
+// Keeps sweeping for as long as the process runs, with the same scanner, and so the same
+// Datastore, KMS and Twitter clients and caches, for every sweep.
+//
+// Sweeps start an interval apart. One that overruns the interval is followed straight away by
+// the next, but sweeps never overlap: they all run one after another on a single thread.
+@Singleton
+public class ScanDaemon {
+    private final TwitterScanner scanner;
+    private final Metrics metrics;
+    private final Duration interval;
+    private ScheduledExecutorService executor;
+    private volatile boolean stopping;
+
+    @Inject
+    ScanDaemon(TwitterScanner scanner, Metrics metrics, @SweepInterval Duration interval) {
+        this.scanner = scanner;
+        this.metrics = metrics;
+        this.interval = interval;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        // Not a daemon thread: it's what keeps the process alive
+        ScheduledThreadPoolExecutor sweeps = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("scan-daemon-%d")
+                        .build());
+        // Stopping between sweeps drops the next one rather than waiting for it and running it
+        sweeps.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor = sweeps;
+        executor.execute(this::sweepAndReschedule);
+    }
+
+    // Runs no more sweeps, and waits up to the timeout for the one in progress to finish.
+    // Returns false if it was still running at the timeout.
+    public boolean stop(Duration timeout) throws InterruptedException {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            if (executor == null) {
+                return true;
+            }
+            stopping = true;
+            running = executor;
+        }
+        running.shutdown();
+        return running.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Blocks until the daemon has been stopped and its last sweep has finished
+    public void awaitTermination() throws InterruptedException {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = executor;
+        }
+        if (running != null) {
+            running.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sweepAndReschedule() {
+        if (stopping) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            scanner.scan();
+            metrics.increment("daemon.sweeps");
+        } catch (IOException | TwitterException | RuntimeException e) {
+            // The next sweep tries again; accounts that failed are picked up then
+            metrics.increment("daemon.sweeps.failed");
+            System.err.println("Sweep failed: " + e);
+        }
+        if (stopping) {
+            return;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        try {
+            executor.schedule(
+                    this::sweepAndReschedule,
+                    Math.max(0, interval.toMillis() - elapsed),
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped while sweeping
+        }
+    }
+}
@@ -1,14 +1,135 @@
 package com.outofoctopus.scanner;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
+import com.google.inject.BindingAnnotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
 import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
+// Leaves metrics to the MetricsModule installed alongside it, which picks where they're exported
 public class ScannerModule extends AbstractModule {
 
     private static final String PROJECT_NAME = "outofoctopus";
+    // Account processing is dominated by network calls, so run several accounts per core
+    private static final int DEFAULT_SCAN_CONCURRENCY = 4 * Runtime.getRuntime().availableProcessors();
+    private static final int SCAN_PAGE_SIZE = 500;
+    // Posting replies is network bound too, but needs fewer threads than preparing them
+    private static final int REPLY_WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final Duration DEFAULT_SWEEP_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration MAX_REPLY_LATENCY = Duration.ofMinutes(15);
+    // Well within the maximum reply latency, so accounts put off by a long sweep are still in time
+    private static final Duration SWEEP_BUDGET = Duration.ofMinutes(5);
+
+    private final int scanConcurrency;
+    private final ExecutorService scanExecutor;
+    private final Duration sweepInterval;
+
+    public ScannerModule() {
+        this(DEFAULT_SCAN_CONCURRENCY);
+    }
+
+    public ScannerModule(int scanConcurrency) {
+        this(scanConcurrency, newScanExecutor(scanConcurrency));
+    }
+
+    public ScannerModule(Duration sweepInterval) {
+        this(DEFAULT_SCAN_CONCURRENCY, newScanExecutor(DEFAULT_SCAN_CONCURRENCY), sweepInterval);
+    }
+
+    public ScannerModule(int scanConcurrency, ExecutorService scanExecutor) {
+        this(scanConcurrency, scanExecutor, DEFAULT_SWEEP_INTERVAL);
+    }
+
+    // Allows the caller to supply their own executor e.g. one thread per task.
+    // At most scanConcurrency accounts are processed at once whatever the executor.
+    public ScannerModule(int scanConcurrency, ExecutorService scanExecutor, Duration sweepInterval) {
+        checkArgument(scanConcurrency > 0, "Scan concurrency must be positive, got %s", scanConcurrency);
+        checkArgument(!sweepInterval.isNegative(), "Sweep interval must not be negative, got %s", sweepInterval);
+        this.scanConcurrency = scanConcurrency;
+        this.scanExecutor = scanExecutor;
+        this.sweepInterval = sweepInterval;
+    }
 
     @Override
     public void configure() {
         bind(Clock.class).toInstance(Clock.systemUTC());
+        bind(Integer.class).annotatedWith(ScanConcurrency.class).toInstance(scanConcurrency);
+        bind(ExecutorService.class).annotatedWith(ScanExecutor.class).toInstance(scanExecutor);
+        bind(Integer.class).annotatedWith(ScanPageSize.class).toInstance(SCAN_PAGE_SIZE);
+        bind(ScheduledExecutorService.class).annotatedWith(ReplyExecutor.class).toInstance(newReplyExecutor());
+        bind(Duration.class).annotatedWith(SweepInterval.class).toInstance(sweepInterval);
+        bind(Duration.class).annotatedWith(MaxReplyLatency.class).toInstance(MAX_REPLY_LATENCY);
+        bind(Duration.class).annotatedWith(SweepBudget.class).toInstance(SWEEP_BUDGET);
     }
+
+    private static ExecutorService newScanExecutor(int threads) {
+        return Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("twitter-scan-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    private static ScheduledExecutorService newReplyExecutor() {
+        return Executors.newScheduledThreadPool(
+                REPLY_WORKERS,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("twitter-reply-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    // Maximum number of accounts processed at the same time
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface ScanConcurrency {}
+
+    // Executor on which individual accounts are processed
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface ScanExecutor {}
+
+    // Number of accounts fetched from the database at a time
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface ScanPageSize {}
+
+    // Executor on which replies are posted and retried
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface ReplyExecutor {}
+
+    // Time between the starts of successive sweeps when running as a daemon
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface SweepInterval {}
+
+    // Longest a quiet account may go between polls, and so the longest a mention may wait for a reply
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface MaxReplyLatency {}
+
+    // Time after which a sweep takes on no more accounts, leaving them to the next one
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface SweepBudget {}
 }
@@ -0,0 +1,14 @@
+package com.outofoctopus.scanner.shard;
+
+// A lone scanner, which owns every account
+public class AllShards implements ShardAssignment {
+    @Override
+    public boolean owns(String handle) {
+        return true;
+    }
+
+    @Override
+    public String getScannerId() {
+        return "all";
+    }
+}
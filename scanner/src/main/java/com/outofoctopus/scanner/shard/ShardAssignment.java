@@ -0,0 +1,13 @@
+package com.outofoctopus.scanner.shard;
+
+import com.google.inject.ImplementedBy;
+
+// Decides which accounts this scanner is responsible for. Unless sharding is set up, that's all of them.
+@ImplementedBy(AllShards.class)
+public interface ShardAssignment {
+    boolean owns(String handle);
+
+    // Names this scanner's share of the accounts, e.g. to keep its progress through a sweep under.
+    // Scanners restarted with the same id pick up where the last one left off.
+    String getScannerId();
+}
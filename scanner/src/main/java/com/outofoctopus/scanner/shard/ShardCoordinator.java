@@ -0,0 +1,176 @@
+package com.outofoctopus.scanner.shard;
+
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.db.ShardLease;
+import com.outofoctopus.db.ShardLeaseDAO;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.scanner.shard.ShardModule.LeaseDuration;
+import com.outofoctopus.scanner.shard.ShardModule.ShardCount;
+import com.outofoctopus.scanner.shard.ShardModule.WorkerId;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Shares the accounts out between scanner workers. Each account belongs to a shard by a stable
+// hash of its handle, and each shard to whichever worker holds its lease in Datastore.
+//
+// Every heartbeat a worker renews its leases, hands back any beyond its fair share of the shards
+// (so that newly started workers get some), and takes free or expired shards up to its share, so
+// the shards of a worker that dies are taken over once its leases run out. A worker stops
+// treating a shard as its own a third of the lease before the lease actually runs out, which
+// leaves room for a missed heartbeat or clock skew before another worker can take it over.
+@Singleton
+public class ShardCoordinator implements ShardAssignment {
+    private final ShardLeaseDAO dao;
+    private final Metrics metrics;
+    private final Clock clock;
+    private final int shardCount;
+    private final String workerId;
+    private final Duration leaseDuration;
+    private final ConcurrentMap<Integer, Instant> owned; // shard -> when we stop treating it as ours
+    private ScheduledExecutorService executor;
+
+    @Inject
+    ShardCoordinator(
+            ShardLeaseDAO dao,
+            Metrics metrics,
+            Clock clock,
+            @ShardCount int shardCount,
+            @WorkerId String workerId,
+            @LeaseDuration Duration leaseDuration) {
+        this.dao = dao;
+        this.metrics = metrics;
+        this.clock = clock;
+        this.shardCount = shardCount;
+        this.workerId = workerId;
+        this.leaseDuration = leaseDuration;
+        this.owned = new ConcurrentHashMap<>();
+    }
+
+    static int shardOf(String handle, int shardCount) {
+        return Math.floorMod(Hashing.murmur3_32().hashString(handle, StandardCharsets.UTF_8).asInt(), shardCount);
+    }
+
+    @Override
+    public boolean owns(String handle) {
+        Instant ownedUntil = owned.get(shardOf(handle, shardCount));
+        return ownedUntil != null && clock.instant().isBefore(ownedUntil);
+    }
+
+    @Override
+    public String getScannerId() {
+        return workerId;
+    }
+
+    ImmutableSet<Integer> getOwnedShards() {
+        Instant now = clock.instant();
+        ImmutableSet.Builder<Integer> shards = ImmutableSet.builder();
+        owned.forEach((shard, ownedUntil) -> {
+            if (now.isBefore(ownedUntil)) {
+                shards.add(shard);
+            }
+        });
+        return shards.build();
+    }
+
+    // Takes a first share of the shards straight away, then keeps them up to date in the background
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        heartbeatQuietly();
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("shard-heartbeat-%d")
+                        .setDaemon(true)
+                        .build());
+        long interval = leaseDuration.dividedBy(3).toMillis();
+        executor.scheduleWithFixedDelay(this::heartbeatQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Gives every shard back, so other workers can take them over without waiting for the leases
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (Integer shard : ImmutableList.copyOf(owned.keySet())) {
+            owned.remove(shard);
+            dao.release(shard, workerId);
+        }
+        dao.deregisterWorker(workerId);
+    }
+
+    synchronized void heartbeat() {
+        Instant start = clock.instant();
+        Timestamp now = toTimestamp(start);
+        Timestamp expiresAt = toTimestamp(start.plus(leaseDuration));
+        Instant ownedUntil = start.plus(leaseDuration).minus(leaseDuration.dividedBy(3));
+
+        dao.registerWorker(workerId, expiresAt);
+        ImmutableSet<String> workers = ImmutableSet.<String>builder()
+                .addAll(dao.getLiveWorkers(now))
+                .add(workerId)
+                .build();
+        int fairShare = (shardCount + workers.size() - 1) / workers.size();
+        Map<Integer, ShardLease> leases = new HashMap<>();
+        for (ShardLease lease : dao.getLeases()) {
+            leases.put(lease.getShard(), lease);
+        }
+
+        for (Integer shard : ImmutableList.copyOf(owned.keySet())) {
+            if (owned.size() > fairShare) {
+                // Stop using it before giving it up, so there's never a moment two workers own it
+                owned.remove(shard);
+                dao.release(shard, workerId);
+                metrics.increment("shards.released");
+            } else if (dao.acquire(shard, workerId, expiresAt, now)) {
+                owned.put(shard, ownedUntil);
+            } else {
+                owned.remove(shard);
+                metrics.increment("shards.lost");
+            }
+        }
+
+        // Start looking at a different shard on each worker, so they don't all race for the same ones
+        int first = Math.floorMod(workerId.hashCode(), shardCount);
+        for (int i = 0; i < shardCount && owned.size() < fairShare; i++) {
+            int shard = (first + i) % shardCount;
+            ShardLease lease = leases.get(shard);
+            if (owned.containsKey(shard) || (lease != null && !lease.isExpired(now))) {
+                continue;
+            }
+            if (dao.acquire(shard, workerId, expiresAt, now)) {
+                owned.put(shard, ownedUntil);
+                metrics.increment("shards.acquired");
+            }
+        }
+    }
+
+    // A failed heartbeat mustn't stop later ones; leases it couldn't renew lapse by themselves
+    private void heartbeatQuietly() {
+        try {
+            heartbeat();
+        } catch (RuntimeException e) {
+            metrics.increment("shards.heartbeat_failed");
+        }
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return Timestamp.ofTimeSecondsAndNanos(instant.getEpochSecond(), instant.getNano());
+    }
+}
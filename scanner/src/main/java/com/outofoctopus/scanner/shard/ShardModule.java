@@ -0,0 +1,56 @@
+package com.outofoctopus.scanner.shard;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.BindingAnnotation;
+import com.outofoctopus.db.ShardLeaseDAOModule;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.time.Duration;
+
+// Splits the accounts between every scanner started with the same shard count
+public class ShardModule extends AbstractModule {
+
+    private static final Duration LEASE_DURATION = Duration.ofSeconds(30);
+
+    private final int shardCount;
+    private final String workerId;
+
+    // The worker id must be unique to this scanner, e.g. its host name and process id
+    public ShardModule(int shardCount, String workerId) {
+        checkArgument(shardCount > 0, "Shard count must be positive, got %s", shardCount);
+        this.shardCount = shardCount;
+        this.workerId = workerId;
+    }
+
+    @Override
+    public void configure() {
+        install(new ShardLeaseDAOModule());
+        bind(ShardAssignment.class).to(ShardCoordinator.class);
+        bind(Integer.class).annotatedWith(ShardCount.class).toInstance(shardCount);
+        bind(String.class).annotatedWith(WorkerId.class).toInstance(workerId);
+        bind(Duration.class).annotatedWith(LeaseDuration.class).toInstance(LEASE_DURATION);
+    }
+
+    // Number of shards the accounts are split into; every scanner must agree on it
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface ShardCount {}
+
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface WorkerId {}
+
+    // How long a shard stays owned without being renewed
+    @BindingAnnotation
+    @Target({ FIELD, PARAMETER, METHOD })
+    @Retention(RUNTIME)
+    public @interface LeaseDuration {}
+}
@@ -0,0 +1,60 @@
+package com.outofoctopus.scanner.twitter;
+
+import com.google.cloud.Timestamp;
+import com.google.inject.Inject;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import com.outofoctopus.scanner.ScannerModule.MaxReplyLatency;
+import com.outofoctopus.scanner.ScannerModule.SweepInterval;
+import java.time.Duration;
+
+// Decides how soon an account's mentions are next fetched, from how often it has been mentioned
+// lately. Accounts that are being mentioned are polled every sweep. Each poll of a quiet account
+// that finds nothing doubles the time until the next, up to the maximum reply latency, so the API
+// calls made per hour follow the mentions rather than the number of accounts.
+class PollScheduler {
+    // Weight of the latest poll in the mention rate; earlier polls count for less and less
+    private static final double RATE_SMOOTHING = 0.5;
+    private static final double SECONDS_PER_HOUR = 3600.0;
+
+    private final Duration minInterval;
+    private final Duration maxInterval;
+
+    @Inject
+    PollScheduler(@SweepInterval Duration minInterval, @MaxReplyLatency Duration maxInterval) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval.compareTo(minInterval) < 0 ? minInterval : maxInterval;
+    }
+
+    // The account's polling fields, updated for a poll at `now` that found `mentions` new mentions
+    TwitterAccount afterPoll(TwitterAccount account, int mentions, Timestamp now) {
+        long sincePolled = account.hasLastPolledAt()
+                ? now.getSeconds() - account.getLastPolledAt().getSeconds()
+                : minInterval.getSeconds();
+        double observedRate = mentions * SECONDS_PER_HOUR / Math.max(sincePolled, 1);
+        double rate = account.hasMentionRate()
+                ? RATE_SMOOTHING * observedRate + (1 - RATE_SMOOTHING) * account.getMentionRate()
+                : observedRate;
+
+        Duration previous = account.hasPollIntervalSeconds()
+                ? Duration.ofSeconds(account.getPollIntervalSeconds())
+                : minInterval;
+        Duration interval;
+        // Busy accounts stay on every sweep even through the odd quiet poll
+        if (mentions > 0 || rate * previous.getSeconds() / SECONDS_PER_HOUR >= 1) {
+            interval = minInterval;
+        } else {
+            interval = Duration.ofSeconds(Math.max(previous.getSeconds(), 1) * 2);
+        }
+        if (interval.compareTo(maxInterval) > 0) {
+            interval = maxInterval;
+        }
+
+        return account.toBuilder()
+                .setMentionRate(rate)
+                .setPollIntervalSeconds(interval.getSeconds())
+                .setLastPolledAt(now.toProto())
+                .setNextPollAt(Timestamp.ofTimeSecondsAndNanos(now.getSeconds() + interval.getSeconds(), now.getNanos())
+                        .toProto())
+                .build();
+    }
+}
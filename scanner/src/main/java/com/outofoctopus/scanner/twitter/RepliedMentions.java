@@ -0,0 +1,135 @@
+package com.outofoctopus.scanner.twitter;
+
+import com.google.cloud.Timestamp;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.db.RepliedMentionDAO;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// Remembers which mentions have been replied to, so that overlapping sweeps, retries and restarts
+// don't answer a mention twice. Records are kept in Datastore until the end of the away period
+// the reply was sent in. In front of them is a Bloom filter per account, loaded from the account's
+// records when first needed, which can tell that a mention was never replied to (the common case)
+// without a Datastore read. Only mentions the filter might have seen are looked up.
+//
+// A filter only learns of replies recorded by this scanner after it was loaded (and the listing
+// it's loaded from can lag the latest writes a little), so filters are reloaded every so often in
+// case the account was processed elsewhere in the meantime, e.g. by another scanner that held its
+// shard.
+@Singleton
+class RepliedMentions {
+    private static final int EXPECTED_MENTIONS = 1_000; // per account, before false positives grow
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int MAX_ACCOUNTS = 10_000;
+    private static final Duration FILTER_TTL = Duration.ofMinutes(10);
+    private static final Duration PURGE_INTERVAL = Duration.ofHours(1);
+
+    private final RepliedMentionDAO dao;
+    private final Metrics metrics;
+    private final Clock clock;
+    private final Cache<String, BloomFilter<Long>> filters;
+    private final AtomicLong nextPurgeMillis = new AtomicLong(Long.MIN_VALUE);
+
+    @Inject
+    RepliedMentions(RepliedMentionDAO dao, Metrics metrics, Clock clock) {
+        this(dao, metrics, clock, FILTER_TTL);
+    }
+
+    RepliedMentions(RepliedMentionDAO dao, Metrics metrics, Clock clock, Duration filterTtl) {
+        this.dao = dao;
+        this.metrics = metrics;
+        this.clock = clock;
+        this.filters = CacheBuilder.newBuilder()
+                .maximumSize(MAX_ACCOUNTS)
+                .expireAfterWrite(filterTtl.toNanos(), TimeUnit.NANOSECONDS)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return TimeUnit.MILLISECONDS.toNanos(clock.millis());
+                    }
+                })
+                .build();
+    }
+
+    // The given mentions of the account that have already been replied to. If the records can't
+    // be read, nothing counts as replied to; Twitter turning down the repeat tweet is then the
+    // last line of defence.
+    ImmutableSet<Long> alreadyReplied(String handle, Collection<Long> mentionIds) {
+        try {
+            BloomFilter<Long> filter = filter(handle);
+            List<Long> candidates = mentionIds.stream().filter(filter::mightContain).collect(Collectors.toList());
+            metrics.add("replies.dedup.filtered", mentionIds.size() - candidates.size());
+            if (candidates.isEmpty()) {
+                return ImmutableSet.of();
+            }
+            metrics.add("replies.dedup.lookups", candidates.size());
+            return dao.getReplied(handle, candidates, TwitterProcessor.currentTime(clock));
+        } catch (RuntimeException e) {
+            metrics.increment("replies.dedup.errors");
+            return ImmutableSet.of();
+        }
+    }
+
+    // Records are kept until the account's away period is over, after which it sends no replies
+    void recordReplied(TwitterAccount account, Collection<Long> mentionIds) {
+        if (mentionIds.isEmpty()) {
+            return;
+        }
+        try {
+            dao.recordReplied(account.getHandle(), mentionIds, Timestamp.fromProto(account.getActiveUntil()));
+        } catch (RuntimeException e) {
+            metrics.increment("replies.dedup.errors");
+        }
+        BloomFilter<Long> filter = filters.getIfPresent(account.getHandle());
+        if (filter != null) {
+            mentionIds.forEach(filter::put);
+        }
+    }
+
+    // Deletes expired records, at most once per purge interval however often it's called
+    void evictExpired() {
+        long now = clock.millis();
+        long due = nextPurgeMillis.get();
+        if (now < due || !nextPurgeMillis.compareAndSet(due, now + PURGE_INTERVAL.toMillis())) {
+            return;
+        }
+        try {
+            metrics.add("replies.dedup.expired", dao.deleteExpired(TwitterProcessor.currentTime(clock)));
+        } catch (RuntimeException e) {
+            metrics.increment("replies.dedup.errors");
+        }
+    }
+
+    private BloomFilter<Long> filter(String handle) {
+        try {
+            return filters.get(handle, () -> {
+                ImmutableSet<Long> replied = dao.getAllReplied(handle);
+                BloomFilter<Long> filter = BloomFilter.create(
+                        Funnels.longFunnel(), Math.max(EXPECTED_MENTIONS, 2 * replied.size()), FALSE_POSITIVE_RATE);
+                replied.forEach(filter::put);
+                return filter;
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
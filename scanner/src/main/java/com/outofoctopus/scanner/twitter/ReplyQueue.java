@@ -0,0 +1,270 @@
+package com.outofoctopus.scanner.twitter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
+import com.outofoctopus.scanner.ScannerModule.ReplyExecutor;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import twitter4j.Status;
+import twitter4j.StatusUpdate;
+import twitter4j.TwitterException;
+
+// Posts replies on a pool of its own, so that preparing replies for the next account never waits
+// on Twitter. Transient failures (network errors, Twitter being over capacity) are retried with
+// jittered exponential backoff. Those that run out of attempts, and spent rate limits, fail the
+// reply and leave it for the next scan. Replies Twitter turns down for good (e.g. the mention was
+// deleted, or its author blocked the account) are rejected and never tried again.
+//
+// Replies are keyed on the account and the id of the mention they reply to. Submitting a reply
+// that is already queued or was recently sent or rejected returns the existing outcome instead of
+// posting again, so mentions fetched a second time after a partial failure are only replied to once.
+@Singleton
+class ReplyQueue {
+    private static final int MAX_ATTEMPTS = 4;
+    private static final Duration BASE_BACKOFF = Duration.ofSeconds(1);
+    private static final int CAPACITY = 10_000; // replies queued before submitters have to wait
+    private static final Duration SENT_RETENTION = Duration.ofDays(1);
+    // Well above the replies that can be queued at once, so that none still in flight is forgotten
+    private static final long MAX_REMEMBERED = 100_000;
+    private static final int DUPLICATE_STATUS = 187; // Twitter error code for a repeated tweet
+    // Twitter error codes for replies that would be turned down however often they were sent: the
+    // account is blocked by the mention's author (136), the mention is gone or can't be seen (144,
+    // 179, 385), its author limits who can reply (433), or the reply is too long (186). Anything
+    // else, including bad credentials (401) and the daily tweet limit (185), may pass later.
+    private static final ImmutableSet<Integer> PERMANENT_ERRORS = ImmutableSet.of(136, 144, 179, 186, 385, 433);
+
+    private final ScheduledExecutorService executor;
+    private final int maxAttempts;
+    private final Duration baseBackoff;
+    private final Semaphore capacity;
+    private final Random random;
+    private final Metrics metrics;
+    private final Cache<ReplyKey, CompletableFuture<ReplyOutcome>> replies;
+
+    // Posts one reply as the account it belongs to. Throws ReplyDroppedException to give up on the
+    // reply without posting it, when it's no longer this scanner's to send.
+    interface ReplySender {
+        Status send(StatusUpdate reply) throws TwitterException;
+    }
+
+    static final class ReplyDroppedException extends RuntimeException {
+        ReplyDroppedException(String message) {
+            super(message);
+        }
+    }
+
+    @Inject
+    ReplyQueue(@ReplyExecutor ScheduledExecutorService executor, Metrics metrics) {
+        this(executor, MAX_ATTEMPTS, BASE_BACKOFF, CAPACITY, new Random(), metrics);
+    }
+
+    ReplyQueue(
+            ScheduledExecutorService executor,
+            int maxAttempts,
+            Duration baseBackoff,
+            int capacity,
+            Random random,
+            Metrics metrics) {
+        this.executor = executor;
+        this.metrics = metrics;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoff = baseBackoff;
+        this.capacity = new Semaphore(capacity);
+        this.random = random;
+        this.replies = CacheBuilder.newBuilder()
+                .maximumSize(MAX_REMEMBERED)
+                .expireAfterWrite(SENT_RETENTION.toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    // Queues the reply, blocking only if the queue is full. The returned future always completes
+    // normally; failures are reported in the outcome.
+    CompletableFuture<ReplyOutcome> submit(String handle, StatusUpdate reply, ReplySender sender) {
+        ReplyKey key = new ReplyKey(handle, reply.getInReplyToStatusId());
+        CompletableFuture<ReplyOutcome> outcome = new CompletableFuture<>();
+        CompletableFuture<ReplyOutcome> existing = replies.asMap().putIfAbsent(key, outcome);
+        if (existing != null) {
+            return existing;
+        }
+
+        capacity.acquireUninterruptibly();
+        Timer timer = metrics.start("replies.latency");
+        outcome.whenComplete((result, e) -> {
+            timer.close();
+            capacity.release();
+            if (result.isSent()) {
+                metrics.increment("replies.sent");
+            } else if (result.isDropped()) {
+                metrics.increment("replies.dropped");
+            } else {
+                metrics.increment(result.canRetry() ? "replies.failed" : "replies.rejected");
+            }
+            // Failed replies are forgotten so that the next scan can try them again
+            if (result.canRetry()) {
+                replies.asMap().remove(key, outcome);
+            }
+        });
+        try {
+            executor.execute(() -> attempt(key, reply, sender, 1, outcome));
+        } catch (RejectedExecutionException e) {
+            outcome.complete(ReplyOutcome.failed(key, e, 0));
+        }
+        return outcome;
+    }
+
+    private void attempt(
+            ReplyKey key,
+            StatusUpdate reply,
+            ReplySender sender,
+            int attempt,
+            CompletableFuture<ReplyOutcome> outcome) {
+        try {
+            outcome.complete(ReplyOutcome.sent(key, sender.send(reply), attempt));
+        } catch (TwitterException e) {
+            if (e.getErrorCode() == DUPLICATE_STATUS) {
+                metrics.increment("replies.duplicates");
+                outcome.complete(ReplyOutcome.sent(key, null, attempt));
+            } else if (isTransient(e) && attempt < maxAttempts) {
+                metrics.increment("replies.retries");
+                executor.schedule(
+                        () -> attempt(key, reply, sender, attempt + 1, outcome),
+                        backoffMillis(attempt),
+                        TimeUnit.MILLISECONDS);
+            } else if (isPermanent(e)) {
+                outcome.complete(ReplyOutcome.rejected(key, e, attempt));
+            } else {
+                outcome.complete(ReplyOutcome.failed(key, e, attempt));
+            }
+        } catch (ReplyDroppedException e) {
+            outcome.complete(ReplyOutcome.failed(key, e, attempt));
+        } catch (RuntimeException e) {
+            // Includes the retry being rejected because the executor is shutting down
+            outcome.complete(ReplyOutcome.failed(key, e, attempt));
+        }
+    }
+
+    // Rate limits aren't retried here: their windows are longer than any sensible backoff
+    private static boolean isTransient(TwitterException e) {
+        return !e.exceededRateLimitation() && (e.isCausedByNetworkIssue() || e.getStatusCode() >= 500);
+    }
+
+    // Twitter turned the reply down, and would do so again whenever it was sent
+    private static boolean isPermanent(TwitterException e) {
+        return PERMANENT_ERRORS.contains(e.getErrorCode());
+    }
+
+    // Equal jitter: half the exponential delay, plus a random amount up to the other half
+    private long backoffMillis(int attempt) {
+        long delay = baseBackoff.toMillis() << (attempt - 1);
+        long half = delay / 2;
+        return half + (half == 0 ? 0 : (long) (random.nextDouble() * half));
+    }
+
+    static final class ReplyKey {
+        private final String handle;
+        private final long inReplyToStatusId;
+
+        ReplyKey(String handle, long inReplyToStatusId) {
+            this.handle = handle;
+            this.inReplyToStatusId = inReplyToStatusId;
+        }
+
+        String getHandle() {
+            return handle;
+        }
+
+        long getInReplyToStatusId() {
+            return inReplyToStatusId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReplyKey)) {
+                return false;
+            }
+            ReplyKey other = (ReplyKey) o;
+            return inReplyToStatusId == other.inReplyToStatusId && handle.equals(other.handle);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(handle, inReplyToStatusId);
+        }
+    }
+
+    static final class ReplyOutcome {
+        private final ReplyKey key;
+        private final Optional<Status> status;
+        private final Optional<Exception> failure;
+        private final boolean permanent;
+        private final int attempts;
+
+        private ReplyOutcome(
+                ReplyKey key, Optional<Status> status, Optional<Exception> failure, boolean permanent, int attempts) {
+            this.key = key;
+            this.status = status;
+            this.failure = failure;
+            this.permanent = permanent;
+            this.attempts = attempts;
+        }
+
+        // status is empty if Twitter reported the reply had already been posted
+        static ReplyOutcome sent(ReplyKey key, Status status, int attempts) {
+            return new ReplyOutcome(key, Optional.ofNullable(status), Optional.empty(), false, attempts);
+        }
+
+        // Not sent this time, but worth trying again on a later scan
+        static ReplyOutcome failed(ReplyKey key, Exception failure, int attempts) {
+            return new ReplyOutcome(key, Optional.empty(), Optional.of(failure), false, attempts);
+        }
+
+        // Not sent, and never will be
+        static ReplyOutcome rejected(ReplyKey key, Exception failure, int attempts) {
+            return new ReplyOutcome(key, Optional.empty(), Optional.of(failure), true, attempts);
+        }
+
+        boolean isSent() {
+            return !failure.isPresent();
+        }
+
+        boolean canRetry() {
+            return failure.isPresent() && !permanent;
+        }
+
+        // Given up on by its sender rather than failing; left to whichever scanner now owns it
+        boolean isDropped() {
+            return failure.isPresent() && failure.get() instanceof ReplyDroppedException;
+        }
+
+        long getInReplyToStatusId() {
+            return key.getInReplyToStatusId();
+        }
+
+        Optional<Status> getStatus() {
+            return status;
+        }
+
+        Optional<Exception> getFailure() {
+            return failure;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+    }
+}
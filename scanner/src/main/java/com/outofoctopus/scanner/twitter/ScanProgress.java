@@ -0,0 +1,208 @@
+package com.outofoctopus.scanner.twitter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.outofoctopus.db.ScanCheckpoint;
+import com.outofoctopus.db.TwitterDAO.AccountQuery;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+// A sweep's way through the account queries, and the checkpoint that records it. Each page is
+// tracked from when it's fetched until every account on it that needed processing has finished,
+// so the checkpoint's cursor is the start of the earliest page with accounts still in flight, and
+// its completed accounts are those finished on that page and the ones after it.
+//
+// Accounts that failed, or were put off by a spent rate limit, finish too, but are kept for the
+// next sweep to retry unless they go through later in this one. Thread-safe, as accounts finish
+// on the scan and reply threads.
+final class ScanProgress {
+    // Keeps a checkpoint well inside Datastore's entity size limit. Accounts processed but left
+    // out are skipped after a restart anyway, as their next poll has moved on.
+    private static final int MAX_COMPLETED = 10_000;
+    // Likewise for the accounts to retry, which an outage can fail by the thousand. Those left out
+    // still come up in the next sweep's queries while they're due, just not ahead of the rest.
+    static final int MAX_RETRY = 10_000;
+
+    private final String sweepId;
+    private final ImmutableList<AccountQuery> queries;
+    private final Clock clock;
+    private final Deque<Page> pages = new ArrayDeque<>();
+    private final Map<String, Page> pending = new HashMap<>();
+    private final Set<String> retry = new LinkedHashSet<>();
+    // Finished before a restart, on the pages from the resumed cursor on
+    private final ImmutableSet<String> resumedCompleted;
+    private final AccountQuery resumedQuery;
+    private final Optional<String> resumedCursor;
+    private AccountQuery nextQuery; // where the page after the last one fetched starts
+    private Optional<String> nextCursor;
+    private boolean changed;
+
+    private ScanProgress(
+            String sweepId,
+            ImmutableList<AccountQuery> queries,
+            AccountQuery query,
+            Optional<String> cursor,
+            ImmutableSet<String> completed,
+            ImmutableSet<String> retry,
+            Clock clock) {
+        this.sweepId = sweepId;
+        this.queries = queries;
+        this.clock = clock;
+        this.resumedQuery = query;
+        this.resumedCursor = cursor;
+        this.resumedCompleted = completed;
+        this.nextQuery = query;
+        this.nextCursor = cursor;
+        this.retry.addAll(retry);
+    }
+
+    // A new sweep, from the start of the first query. Failures from the last sweep are carried
+    // over until they're retried.
+    static ScanProgress start(
+            String sweepId, ImmutableList<AccountQuery> queries, ImmutableSet<String> retry, Clock clock) {
+        return new ScanProgress(
+                sweepId, queries, queries.get(0), Optional.empty(), ImmutableSet.of(), retry, clock);
+    }
+
+    static ScanProgress resume(ScanCheckpoint checkpoint, ImmutableList<AccountQuery> queries, Clock clock) {
+        return new ScanProgress(
+                checkpoint.getSweepId(),
+                queries,
+                checkpoint.getQuery(),
+                checkpoint.getCursor(),
+                checkpoint.getCompleted(),
+                checkpoint.getRetry(),
+                clock);
+    }
+
+    String getSweepId() {
+        return sweepId;
+    }
+
+    // The queries still to page through, starting with the one the sweep is part way through
+    ImmutableList<AccountQuery> remainingQueries() {
+        return queries.subList(queries.indexOf(resumedQuery), queries.size());
+    }
+
+    // Where the given query starts: the checkpoint's cursor for the query it was part way
+    // through, and the beginning for the others
+    Optional<String> startCursor(AccountQuery query) {
+        return query == resumedQuery ? resumedCursor : Optional.empty();
+    }
+
+    synchronized ImmutableSet<String> getRetry() {
+        return ImmutableSet.copyOf(retry);
+    }
+
+    // How many of the accounts to retry a checkpoint has no room for
+    synchronized int retryOverflow() {
+        return Math.max(0, retry.size() - MAX_RETRY);
+    }
+
+    // Finished before the scanner restarted, so not to be processed again this sweep
+    boolean isCompleted(String handle) {
+        return resumedCompleted.contains(handle);
+    }
+
+    // Starts tracking the accounts carried over from the last sweep to retry, which until they're
+    // done hold the checkpoint at the start of the sweep
+    synchronized void retriesFetched(Collection<String> handles) {
+        track(new Page(queries.get(0), Optional.empty()), handles);
+        dropFinishedPages();
+    }
+
+    // Starts tracking a page, and the accounts on it that are going to be processed
+    synchronized void pageFetched(
+            AccountQuery query,
+            Optional<String> startCursor,
+            Optional<String> pageNextCursor,
+            Collection<String> handles) {
+        track(new Page(query, startCursor), handles);
+        if (pageNextCursor.isPresent()) {
+            nextQuery = query;
+            nextCursor = pageNextCursor;
+        } else {
+            int next = queries.indexOf(query) + 1;
+            nextQuery = next < queries.size() ? queries.get(next) : query;
+            nextCursor = Optional.empty();
+        }
+        dropFinishedPages();
+    }
+
+    // Marks the account finished for this sweep. retryNextSweep says whether it failed or was put
+    // off, rather than going through.
+    synchronized void finished(String handle, boolean retryNextSweep) {
+        Page page = pending.remove(handle);
+        if (page != null) {
+            page.pending.remove(handle);
+            page.done.add(handle);
+        }
+        if (retryNextSweep) {
+            retry.add(handle);
+        } else {
+            retry.remove(handle);
+        }
+        changed = true;
+        dropFinishedPages();
+    }
+
+    // Whether any account has finished since the last checkpoint was taken
+    synchronized boolean hasChanged() {
+        return changed;
+    }
+
+    synchronized ScanCheckpoint checkpoint(boolean finishedSweep) {
+        changed = false;
+        Page earliest = pages.peekFirst();
+        AccountQuery query = earliest != null ? earliest.query : nextQuery;
+        Optional<String> cursor = earliest != null ? earliest.startCursor : nextCursor;
+        ImmutableSet.Builder<String> completed = ImmutableSet.builder();
+        pages.forEach(page -> completed.addAll(page.done));
+        if (query == resumedQuery) {
+            completed.addAll(resumedCompleted);
+        }
+        return new ScanCheckpoint(
+                sweepId,
+                finishedSweep,
+                query,
+                cursor,
+                finishedSweep ? ImmutableSet.of() : ImmutableSet.copyOf(Iterables.limit(completed.build(), MAX_COMPLETED)),
+                ImmutableSet.copyOf(Iterables.limit(retry, MAX_RETRY)),
+                TwitterProcessor.currentTime(clock));
+    }
+
+    private void track(Page page, Collection<String> handles) {
+        for (String handle : handles) {
+            page.pending.add(handle);
+            pending.put(handle, page);
+        }
+        pages.addLast(page);
+    }
+
+    private void dropFinishedPages() {
+        while (!pages.isEmpty() && pages.peekFirst().pending.isEmpty()) {
+            pages.removeFirst();
+        }
+    }
+
+    private static final class Page {
+        private final AccountQuery query;
+        private final Optional<String> startCursor;
+        private final Set<String> pending = new HashSet<>();
+        private final Set<String> done = new HashSet<>();
+
+        private Page(AccountQuery query, Optional<String> startCursor) {
+            this.query = query;
+            this.startCursor = startCursor;
+        }
+    }
+}
@@ -1,25 +1,64 @@
 package com.outofoctopus.scanner.twitter;
 
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.outofoctopus.client.TwitterClient;
 import com.outofoctopus.db.TwitterDAO;
+import com.outofoctopus.db.TwitterDAO.TwitterDAOResult;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
 import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
-import twitter4j.TwitterException;
-
+import com.outofoctopus.scanner.shard.ShardAssignment;
+import com.outofoctopus.scanner.twitter.ReplyQueue.ReplyDroppedException;
+import com.outofoctopus.scanner.twitter.ReplyQueue.ReplyOutcome;
+import java.io.IOException;
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import twitter4j.Status;
+import twitter4j.StatusUpdate;
+import twitter4j.TwitterException;
 
+// Not thread-safe: the scanner uses a fresh processor, and so a fresh TwitterClient, for each account
 class TwitterProcessor {
+    // Tweet ids are snowflakes, whose top bits count milliseconds from this epoch
+    private static final long TWITTER_EPOCH_MILLIS = 1288834974657L;
+    private static final int SNOWFLAKE_TIME_SHIFT = 22;
 
     private final Clock clock;
     private final TwitterDAO dao;
     private final TwitterClient client;
+    private final ReplyQueue replyQueue;
+    private final RepliedMentions repliedMentions;
+    private final PollScheduler pollScheduler;
+    private final ShardAssignment shards;
+    private final Metrics metrics;
     private TwitterAccount account; // account being processed at present
 
     @Inject
-    TwitterProcessor(TwitterDAO dao, TwitterClient client, Clock clock) {
+    TwitterProcessor(
+            TwitterDAO dao,
+            TwitterClient client,
+            ReplyQueue replyQueue,
+            RepliedMentions repliedMentions,
+            PollScheduler pollScheduler,
+            ShardAssignment shards,
+            Metrics metrics,
+            Clock clock) {
         this.dao = dao;
+        this.pollScheduler = pollScheduler;
+        this.shards = shards;
+        this.metrics = metrics;
         this.clock = clock;
         this.client = client;
+        this.replyQueue = replyQueue;
+        this.repliedMentions = repliedMentions;
         this.account = null;
     }
 
@@ -28,42 +67,242 @@ class TwitterProcessor {
         return this;
     }
 
-    void process() throws TwitterException {
+    // Returns once the replies are prepared and queued. The returned future completes once they
+    // have all been posted or given up on, the ones posted have been recorded, and the account's
+    // mention cursor has been moved on.
+    CompletableFuture<Void> process() throws TwitterException, IOException {
+        try (Timer timer = metrics.start("scanner.account")) {
+            return prepareReplies();
+        }
+    }
+
+    private CompletableFuture<Void> prepareReplies() throws TwitterException, IOException {
+        Timestamp currentTime = currentTime(clock);
+
         // If no longer should be active -> set inactive and exit
-//        if (account.getActive() && Timestamp.fromProto(account.getActiveUntil()).compareTo(currentTime) <= 0) {
-//            updateDatastore(updateActive(account, false));
-//            return;
-//        }
-//
-//        // Switch it on if it is now past its start time and it is going to be active until later
-//        if (!account.getActive()
-//                && Timestamp.fromProto(account.getActiveFrom()).compareTo(currentTime) <= 0
-//                && Timestamp.fromProto(account.getActiveUntil()).compareTo(currentTime) >= 0) {
-//            updateDatastore(updateActive(account, true));
-//        }
-
-//        System.out.println("If you're happy and you know it");
-        System.out.println(account.getHandle());
-//        System.out.println(String.format("last tweet ID: %s", Long.toString(client.lastTweetSentId())));
-
-
-        // For active accounts,
-        // Find tweet number to start from -> where last left off -> should save it in datastore?
-        //  -> Last tweet sent by user?
-        //  -> Last one we replied to?
-        // Get all tweets since then that mention this user
-        // Check the user hasn't already replied...
-        // Send a reply to each of them
-        // Possibly: update the tweet number last considered...
-    }
-
-    private TwitterAccount updateActive(TwitterAccount account, boolean newActiveStatus) {
+        if (isDueToDeactivate(account, currentTime)) {
+            if (patchAccount(updateActive(account, false), TwitterAccount.newBuilder().setActive(false))
+                    == TwitterDAOResult.SUCCESS) {
+                metrics.increment("scanner.accounts.deactivated");
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Switch it on if it is now past its start time and it is going to be active until later.
+        // If that can't be stored, the account is left for the next scan.
+        if (!account.getActive()) {
+            if (!isDueToActivate(account, currentTime)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            TwitterAccount activated = activate(account);
+            if (patchAccount(activated, activeChanges(activated)) != TwitterDAOResult.SUCCESS) {
+                return CompletableFuture.completedFuture(null);
+            }
+            metrics.increment("scanner.accounts.activated");
+        }
+
+        // Reply to everything that mentioned the user since the last mention we dealt with, apart
+        // from mentions already replied to by an earlier or overlapping scan
+        client.authenticate(account);
+        resealTokens();
+        String handle = account.getHandle();
+        List<CompletableFuture<ReplyOutcome>> outcomes = new ArrayList<>();
+        AtomicInteger mentions = new AtomicInteger();
+        client.makeReplies(replies -> {
+            mentions.addAndGet(replies.size());
+            ImmutableSet<Long> answered = repliedMentions.alreadyReplied(
+                    account.getHandle(), Lists.transform(replies, StatusUpdate::getInReplyToStatusId));
+            for (StatusUpdate reply : replies) {
+                if (answered.contains(reply.getInReplyToStatusId())) {
+                    metrics.increment("replies.already_replied");
+                    continue;
+                }
+                outcomes.add(replyQueue.submit(handle, reply, update -> sendIfOwned(handle, update)));
+            }
+        });
+        // A schedule that isn't stored only means the account is polled again on its old one
+        TwitterDAOResult scheduled = dao.updatePollSchedule(
+                account.getHandle(), pollScheduler.afterPoll(account, mentions.get(), currentTime));
+        if (scheduled != TwitterDAOResult.SUCCESS) {
+            metrics.increment("scanner.accounts.poll_schedule_failed");
+        }
+
+        TwitterAccount processed = account;
+        long mentionCursor = client.getMentionCursor();
+        return CompletableFuture.allOf(outcomes.toArray(new CompletableFuture<?>[0]))
+                .thenRun(() -> {
+                    repliedMentions.recordReplied(processed, sentMentionIds(outcomes));
+                    // The cursor is the new owner's to move once the shard has gone to another
+                    // scanner, which replies to whatever was dropped here
+                    if (shards.owns(handle)) {
+                        updateMentionCursor(processed, cursorAfter(mentionCursor, outcomes));
+                    } else {
+                        metrics.increment("scanner.accounts.disowned");
+                    }
+                });
+    }
+
+    // Checked before every attempt, as replies can wait in the queue, and between retries, for
+    // longer than the shard's lease
+    private Status sendIfOwned(String handle, StatusUpdate reply) throws TwitterException {
+        if (!shards.owns(handle)) {
+            throw new ReplyDroppedException("Shard no longer owned for " + handle);
+        }
+        return client.sendReply(reply);
+    }
+
+    // The account with its active flag flipped, if its away period has just started or ended
+    static Optional<TwitterAccount> scheduleChange(TwitterAccount account, Timestamp currentTime) {
+        if (isDueToDeactivate(account, currentTime)) {
+            return Optional.of(updateActive(account, false));
+        }
+        if (isDueToActivate(account, currentTime)) {
+            return Optional.of(activate(account));
+        }
+        return Optional.empty();
+    }
+
+    // The write that stores the account's active flag, and on activation its mention cursor, and
+    // nothing else, made only if the account is still at the version it was read at
+    static TwitterAccount activePatch(TwitterAccount account) {
+        return patchOf(account, activeChanges(account));
+    }
+
+    private static TwitterAccount.Builder activeChanges(TwitterAccount account) {
+        TwitterAccount.Builder changes = TwitterAccount.newBuilder().setActive(account.getActive());
+        if (account.getActive() && account.hasLastProcessedMentionId()) {
+            changes.setLastProcessedMentionId(account.getLastProcessedMentionId());
+        }
+        return changes;
+    }
+
+    // Switches the account on, moving its mention cursor up to the start of the away period. The
+    // cursor otherwise still points into the last away period, and the mentions since then were
+    // made while the user was around, so mustn't be replied to.
+    private static TwitterAccount activate(TwitterAccount account) {
+        TwitterAccount.Builder activated = account.toBuilder().setActive(true);
+        long awayStart = firstMentionIdAt(Timestamp.fromProto(account.getActiveFrom()));
+        if (awayStart > 0
+                && (!account.hasLastProcessedMentionId() || account.getLastProcessedMentionId() < awayStart)) {
+            activated.setLastProcessedMentionId(awayStart);
+        }
+        return activated.build();
+    }
+
+    // The lowest id a tweet posted at the given time can have; not positive before Twitter's epoch
+    static long firstMentionIdAt(Timestamp time) {
+        long millis = TimeUnit.SECONDS.toMillis(time.getSeconds()) + TimeUnit.NANOSECONDS.toMillis(time.getNanos());
+        return millis <= TWITTER_EPOCH_MILLIS ? 0 : (millis - TWITTER_EPOCH_MILLIS) << SNOWFLAKE_TIME_SHIFT;
+    }
+
+    // The account as stored after a successful patch of it
+    static TwitterAccount written(TwitterAccount account) {
+        return account.hasVersion() ? account.toBuilder().setVersion(account.getVersion() + 1).build() : account;
+    }
+
+    private static TwitterAccount patchOf(TwitterAccount account, TwitterAccount.Builder changes) {
+        changes.setHandle(account.getHandle());
+        if (account.hasVersion()) {
+            changes.setVersion(account.getVersion());
+        }
+        return changes.build();
+    }
+
+    // Only needs the schedule fields of the account: active, active_from, active_until and
+    // next_poll_at. Active accounts are left alone until their next poll, unless due to deactivate.
+    static boolean needsProcessing(TwitterAccount schedule, Timestamp currentTime) {
+        if (!schedule.getActive()) {
+            return isDueToActivate(schedule, currentTime);
+        }
+        return isDueToDeactivate(schedule, currentTime)
+                || !schedule.hasNextPollAt()
+                || Timestamp.fromProto(schedule.getNextPollAt()).compareTo(currentTime) <= 0;
+    }
+
+    // When an account that needs processing became due: when its away period started or ended, or
+    // its next poll was due. Accounts never polled have been due all along.
+    static Timestamp dueAt(TwitterAccount schedule) {
+        if (!schedule.getActive()) {
+            return Timestamp.fromProto(schedule.getActiveFrom());
+        }
+        if (!schedule.hasNextPollAt()) {
+            return Timestamp.MIN_VALUE;
+        }
+        Timestamp activeUntil = Timestamp.fromProto(schedule.getActiveUntil());
+        Timestamp nextPollAt = Timestamp.fromProto(schedule.getNextPollAt());
+        return nextPollAt.compareTo(activeUntil) < 0 ? nextPollAt : activeUntil;
+    }
+
+    static Timestamp currentTime(Clock clock) {
+        return Timestamp.ofTimeMicroseconds(TimeUnit.MILLISECONDS.toMicros(clock.millis()));
+    }
+
+    private static boolean isDueToDeactivate(TwitterAccount account, Timestamp currentTime) {
+        return account.getActive() && Timestamp.fromProto(account.getActiveUntil()).compareTo(currentTime) <= 0;
+    }
+
+    private static boolean isDueToActivate(TwitterAccount account, Timestamp currentTime) {
+        return !account.getActive()
+                && Timestamp.fromProto(account.getActiveFrom()).compareTo(currentTime) <= 0
+                && Timestamp.fromProto(account.getActiveUntil()).compareTo(currentTime) > 0;
+    }
+
+    // Moves tokens still encrypted directly with KMS over to the local data key
+    private void resealTokens() throws IOException {
+        TwitterAccount resealed = client.resealTokens(account);
+        if (!resealed.equals(account)) {
+            patchAccount(resealed, TwitterAccount.newBuilder()
+                    .setAccessToken(resealed.getAccessToken())
+                    .setAccessTokenSecret(resealed.getAccessTokenSecret()));
+        }
+    }
+
+    // Stops just short of the oldest mention whose reply failed but can be retried, so the next scan
+    // fetches it again. Replies after it that did go out are recognised by the queue and not posted
+    // twice. Rejected replies would only be rejected again, so the cursor moves past them.
+    static long cursorAfter(long mentionCursor, List<CompletableFuture<ReplyOutcome>> outcomes) {
+        long cursor = mentionCursor;
+        for (CompletableFuture<ReplyOutcome> outcome : outcomes) {
+            ReplyOutcome result = outcome.join();
+            if (result.canRetry()) {
+                cursor = Math.min(cursor, result.getInReplyToStatusId() - 1);
+            }
+        }
+        return cursor;
+    }
+
+    static List<Long> sentMentionIds(List<CompletableFuture<ReplyOutcome>> outcomes) {
+        List<Long> sent = new ArrayList<>();
+        for (CompletableFuture<ReplyOutcome> outcome : outcomes) {
+            ReplyOutcome result = outcome.join();
+            if (result.isSent()) {
+                sent.add(result.getInReplyToStatusId());
+            }
+        }
+        return sent;
+    }
+
+    private void updateMentionCursor(TwitterAccount account, long mentionCursor) {
+        if (!account.hasLastProcessedMentionId() || mentionCursor > account.getLastProcessedMentionId()) {
+            dao.updateMentionCursor(account.getHandle(), mentionCursor);
+        }
+    }
+
+    private static TwitterAccount updateActive(TwitterAccount account, boolean newActiveStatus) {
         return account.toBuilder()
                 .setActive(newActiveStatus)
                 .build();
     }
 
-    private void updateDatastore(TwitterAccount account) {
-        dao.update(account);
+    // Writes only the changed fields, and only if nobody else has written the account since it was
+    // read, so that a concurrent change from the web UI or another worker is never overwritten.
+    // The processor carries on with the updated account, at its new version if it was stored.
+    private TwitterDAOResult patchAccount(TwitterAccount updated, TwitterAccount.Builder changes) {
+        TwitterDAOResult result = dao.patch(patchOf(account, changes));
+        if (result == TwitterDAOResult.CONFLICT) {
+            metrics.increment("scanner.accounts.conflicts");
+        }
+        account = result == TwitterDAOResult.SUCCESS ? written(updated) : updated;
+        return result;
     }
 }
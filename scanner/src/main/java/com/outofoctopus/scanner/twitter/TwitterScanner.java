@@ -1,30 +1,442 @@
 package com.outofoctopus.scanner.twitter;
 
-import com.google.common.collect.Iterables;
+import com.google.cloud.Timestamp;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.outofoctopus.client.RateLimitTracker;
+import com.outofoctopus.db.AccountPage;
+import com.outofoctopus.db.ScanCheckpoint;
+import com.outofoctopus.db.ScanCheckpointDAO;
 import com.outofoctopus.db.TwitterDAO;
+import com.outofoctopus.db.TwitterDAO.AccountQuery;
+import com.outofoctopus.db.TwitterDAO.TwitterDAOResult;
+import com.outofoctopus.metrics.Metrics;
+import com.outofoctopus.metrics.Metrics.Timer;
 import com.outofoctopus.proto.TwitterProtos.TwitterAccount;
+import com.outofoctopus.scanner.ScannerModule.ScanConcurrency;
+import com.outofoctopus.scanner.ScannerModule.ScanExecutor;
+import com.outofoctopus.scanner.ScannerModule.ScanPageSize;
+import com.outofoctopus.scanner.ScannerModule.SweepBudget;
+import com.outofoctopus.scanner.shard.ShardAssignment;
 import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 import twitter4j.TwitterException;
 
 public class TwitterScanner {
+    private static final ImmutableList<AccountQuery> SCAN_QUERIES =
+            ImmutableList.of(AccountQuery.ACTIVE, AccountQuery.TO_ACTIVATE);
+    // Older checkpoints are from a sweep long enough ago that starting afresh costs little, and
+    // their cursors are likely to have gone stale
+    private static final Duration MAX_RESUME_AGE = Duration.ofHours(1);
+    private static final Comparator<TwitterAccount> MOST_OVERDUE_FIRST =
+            Comparator.comparing(TwitterProcessor::dueAt).thenComparing(TwitterAccount::getHandle);
+    // How many pages of schedules are held to pick the most overdue accounts from. Deeper windows
+    // order more of the sweep, at the cost of holding more schedules in memory at once.
+    private static final int SCHEDULE_WINDOW_PAGES = 4;
+
+    private final Clock clock;
     private final TwitterDAO twitterDAO;
-    private final TwitterProcessor twitterProcessor;
+    private final Provider<TwitterProcessor> twitterProcessorProvider;
+    private final RateLimitTracker rateLimits;
+    private final RepliedMentions repliedMentions;
+    private final ScanCheckpointDAO checkpoints;
+    private final ShardAssignment shards;
+    private final Metrics metrics;
+    private final ExecutorService executor;
+    private final int concurrency;
+    private final int pageSize;
+    private final Duration sweepBudget;
 
     @Inject
-    TwitterScanner(TwitterDAO twitterDAO, TwitterProcessor twitterProcessor) {
+    TwitterScanner(
+            TwitterDAO twitterDAO,
+            Provider<TwitterProcessor> twitterProcessorProvider,
+            RateLimitTracker rateLimits,
+            RepliedMentions repliedMentions,
+            ScanCheckpointDAO checkpoints,
+            ShardAssignment shards,
+            Metrics metrics,
+            @ScanExecutor ExecutorService executor,
+            @ScanConcurrency int concurrency,
+            @ScanPageSize int pageSize,
+            @SweepBudget Duration sweepBudget,
+            Clock clock) {
+        this.clock = clock;
         this.twitterDAO = twitterDAO;
-        this.twitterProcessor = twitterProcessor;
+        this.twitterProcessorProvider = twitterProcessorProvider;
+        this.rateLimits = rateLimits;
+        this.repliedMentions = repliedMentions;
+        this.checkpoints = checkpoints;
+        this.shards = shards;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.pageSize = pageSize;
+        this.sweepBudget = sweepBudget;
     }
 
+    // Processes every account on the scan executor, each with its own processor (and so its own
+    // Twitter client and credentials). At most `concurrency` accounts are in flight at once.
+    // Schedules are read a page at a time, and full accounts fetched a batch at a time for those
+    // that need processing, so only a few pages of accounts are held at once however many there are.
+    //
+    // Accounts are taken in order of how long they have been due: since their away period started
+    // or ended, or their next poll was due. The order holds across the few pages of schedules read
+    // ahead, not the whole sweep. A sweep stops taking new accounts once its time budget is spent,
+    // so under load the longest any account waits stays bounded rather than growing with the
+    // backlog.
+    //
+    // Accounts whose Twitter rate limit is spent are set aside rather than failing the sweep, and
+    // retried at the end if their window has reset by then; otherwise they wait for the next sweep.
+    // When several scanners share the accounts, only those in shards this one owns are processed.
+    // Replies are posted in the background while later accounts are prepared, and the scan returns
+    // once they have all been posted. All accounts are attempted even if some fail; the first
+    // failure is then rethrown.
+    //
+    // Progress is checkpointed as each page of accounts finishes, so a scanner restarted partway
+    // through a sweep carries on from its last checkpoint rather than starting over. Accounts that
+    // failed, or were still waiting on their rate limit at the end, are recorded with the final
+    // checkpoint and retried first thing next sweep.
     public void scan() throws IOException, TwitterException {
-        List<TwitterAccount> activeAccounts = twitterDAO.getActiveAccounts();
-        List<TwitterAccount> accountsToActivate = twitterDAO.getAccountsToActivate();
-        for (TwitterAccount account : Iterables.concat(activeAccounts, accountsToActivate)) {
-            twitterProcessor.setAccount(account).process();
-            twitterProcessor.process();
+        try (Timer timer = metrics.start("scanner.sweep")) {
+            sweep();
+        }
+    }
+
+    private void sweep() throws IOException, TwitterException {
+        long budgetEnd = clock.millis() + sweepBudget.toMillis();
+        Semaphore permits = new Semaphore(concurrency);
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        Queue<TwitterAccount> deferred = new ConcurrentLinkedQueue<>();
+        Queue<CompletableFuture<Void>> sending = new ConcurrentLinkedQueue<>();
+        Optional<ScanCheckpoint> checkpoint = loadCheckpoint();
+        boolean resumed = checkpoint.isPresent() && isResumable(checkpoint.get());
+        ScanProgress progress = resumed
+                ? ScanProgress.resume(checkpoint.get(), SCAN_QUERIES, clock)
+                : ScanProgress.start(UUID.randomUUID().toString(), SCAN_QUERIES,
+                        checkpoint.map(ScanCheckpoint::getRetry).orElse(ImmutableSet.of()), clock);
+        if (resumed) {
+            metrics.increment("scanner.checkpoint.resumed");
+        }
+        try {
+            // A new sweep first retries the accounts the last one failed on, whether or not
+            // they're due, and doesn't process them again if they come up in the queries. A
+            // resumed sweep leaves its failures so far to the next one.
+            Collection<TwitterAccount> retries = resumed ? ImmutableList.of() : fetchRetries(progress);
+            Set<String> retried = retries.stream().map(TwitterAccount::getHandle).collect(Collectors.toSet());
+            for (TwitterAccount account : retries) {
+                submitOrDefer(account, permits, firstFailure, deferred, sending, progress);
+            }
+
+            // Schedules are read a page at a time into a window a few pages deep, from which the
+            // most overdue accounts are taken a batch at a time while later pages are read. Once the
+            // time budget has run out, the accounts left are put off to the next sweep, where they
+            // are the most overdue.
+            PriorityQueue<TwitterAccount> due = new PriorityQueue<>(MOST_OVERDUE_FIRST);
+            ScheduleReader schedules = new ScheduleReader(progress, retried);
+            int overBudget = 0;
+            while (schedules.hasMore() || !due.isEmpty()) {
+                while (due.size() < SCHEDULE_WINDOW_PAGES * pageSize && schedules.hasMore()) {
+                    due.addAll(schedules.nextPage());
+                }
+                List<String> batch = new ArrayList<>();
+                while (batch.size() < pageSize && !due.isEmpty()) {
+                    batch.add(due.poll().getHandle());
+                }
+                // Put off accounts are left pending rather than finished, so a checkpoint taken
+                // from here on doesn't count them as completed and a resumed sweep still takes them
+                if (clock.millis() >= budgetEnd) {
+                    overBudget += batch.size();
+                    continue;
+                }
+                for (TwitterAccount account : fetchAccounts(batch, progress)) {
+                    if (clock.millis() < budgetEnd) {
+                        submitOrDefer(account, permits, firstFailure, deferred, sending, progress);
+                    } else {
+                        overBudget++;
+                    }
+                }
+                saveCheckpoint(progress, false);
+            }
+            metrics.add("scanner.accounts.over_budget", overBudget);
+            awaitSubmitted(permits);
+
+            // Second chance for accounts whose rate limit window has reset during the sweep
+            // while there's time left
+            List<TwitterAccount> secondChances = ImmutableList.copyOf(deferred);
+            deferred.clear();
+            for (TwitterAccount account : secondChances) {
+                if (clock.millis() < budgetEnd) {
+                    submitOrDefer(account, permits, firstFailure, deferred, sending, progress);
+                } else {
+                    deferred.add(account);
+                }
+            }
+            awaitSubmitted(permits);
+            CompletableFuture.allOf(sending.toArray(new CompletableFuture<?>[0])).join();
+            saveCheckpoint(progress, true);
+            rateLimits.evictExpired();
+            repliedMentions.evictExpired();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning twitter accounts", e);
+        }
+
+        Throwable failure = firstFailure.get();
+        if (failure != null) {
+            Throwables.propagateIfPossible(failure, IOException.class, TwitterException.class);
+            throw new RuntimeException(failure);
+        }
+        metrics.add("scanner.accounts.deferred", deferred.size());
+    }
+
+    // Every permit is back once all submitted accounts have finished
+    private void awaitSubmitted(Semaphore permits) throws InterruptedException {
+        permits.acquire(concurrency);
+        permits.release(concurrency);
+    }
+
+    private Optional<ScanCheckpoint> loadCheckpoint() {
+        try {
+            return checkpoints.get(shards.getScannerId());
+        } catch (RuntimeException e) {
+            metrics.increment("scanner.checkpoint.load_failed");
+            return Optional.empty();
+        }
+    }
+
+    private boolean isResumable(ScanCheckpoint checkpoint) {
+        Timestamp oldest = Timestamp.ofTimeMicroseconds(
+                TimeUnit.MILLISECONDS.toMicros(clock.millis() - MAX_RESUME_AGE.toMillis()));
+        return !checkpoint.isFinished()
+                && SCAN_QUERIES.contains(checkpoint.getQuery())
+                && checkpoint.getUpdatedAt().compareTo(oldest) > 0;
+    }
+
+    // A checkpoint that can't be saved costs at most some repeated work after a restart, so the
+    // sweep carries on regardless
+    private void saveCheckpoint(ScanProgress progress, boolean finished) {
+        if (!finished && !progress.hasChanged()) {
+            return;
+        }
+        try {
+            checkpoints.save(shards.getScannerId(), progress.checkpoint(finished));
+            if (finished) {
+                metrics.add("scanner.checkpoint.retries_dropped", progress.retryOverflow());
+            }
+        } catch (RuntimeException e) {
+            metrics.increment("scanner.checkpoint.save_failed");
+        }
+    }
+
+    // Accounts no longer in this scanner's shards, gone, or only needing their schedule changed
+    // are done with as far as retrying goes
+    private Collection<TwitterAccount> fetchRetries(ScanProgress progress) {
+        List<String> owned = progress.getRetry().stream().filter(shards::owns).collect(Collectors.toList());
+        progress.retriesFetched(owned);
+        progress.getRetry().stream()
+                .filter(handle -> !owned.contains(handle))
+                .forEach(handle -> progress.finished(handle, false));
+        Collection<TwitterAccount> retries = fetchAccounts(owned, progress);
+        metrics.add("scanner.accounts.retried", retries.size());
+        return retries;
+    }
+
+    // Reads the schedules of the accounts due, a page at a time, through each query the sweep has
+    // left, and starts tracking each page as it's read
+    private final class ScheduleReader {
+        private final ScanProgress progress;
+        private final Set<String> retried;
+        private final Iterator<AccountQuery> queries;
+        private AccountQuery query;
+        private Optional<String> cursor;
+        private boolean more;
+
+        private ScheduleReader(ScanProgress progress, Set<String> retried) {
+            this.progress = progress;
+            this.retried = retried;
+            this.queries = progress.remainingQueries().iterator();
+            nextQuery();
+        }
+
+        private boolean hasMore() {
+            return more;
+        }
+
+        private List<TwitterAccount> nextPage() {
+            AccountPage schedules;
+            try {
+                schedules = twitterDAO.getSchedulePage(query, cursor, pageSize);
+            } catch (RuntimeException e) {
+                if (!cursor.isPresent() || !cursor.equals(progress.startCursor(query))) {
+                    throw e;
+                }
+                // The checkpoint's cursor is no longer accepted, so the query starts over;
+                // accounts finished before the restart are still skipped
+                metrics.increment("scanner.checkpoint.invalid_cursor");
+                cursor = Optional.empty();
+                schedules = twitterDAO.getSchedulePage(query, cursor, pageSize);
+            }
+            List<TwitterAccount> pageDue = dueSchedules(schedules, progress, retried);
+            progress.pageFetched(query, cursor, schedules.getNextCursor(),
+                    pageDue.stream().map(TwitterAccount::getHandle).collect(Collectors.toList()));
+            cursor = schedules.getNextCursor();
+            if (!cursor.isPresent()) {
+                nextQuery();
+            }
+            return pageDue;
+        }
+
+        private void nextQuery() {
+            more = queries.hasNext();
+            if (more) {
+                query = queries.next();
+                cursor = progress.startCursor(query);
+            }
+        }
+    }
+
+    private List<TwitterAccount> dueSchedules(AccountPage schedules, ScanProgress progress, Set<String> retried) {
+        Timestamp currentTime = TwitterProcessor.currentTime(clock);
+        return schedules.getAccounts().stream()
+                .filter(schedule -> shards.owns(schedule.getHandle()))
+                .filter(schedule -> !progress.isCompleted(schedule.getHandle()))
+                .filter(schedule -> !retried.contains(schedule.getHandle()))
+                .filter(schedule -> TwitterProcessor.needsProcessing(schedule, currentTime))
+                .collect(Collectors.toList());
+    }
+
+    // The given accounts that are to be processed, in the order given, once any due to activate
+    // or deactivate have been. The rest are finished with for this sweep.
+    private Collection<TwitterAccount> fetchAccounts(List<String> handles, ScanProgress progress) {
+        if (handles.isEmpty()) {
+            return ImmutableList.of();
+        }
+        Map<String, TwitterAccount> toProcess = applyScheduleChanges(
+                twitterDAO.getAccounts(handles).values(), TwitterProcessor.currentTime(clock))
+                .stream()
+                .collect(Collectors.toMap(TwitterAccount::getHandle, account -> account));
+        List<TwitterAccount> accounts = new ArrayList<>();
+        for (String handle : handles) {
+            if (toProcess.containsKey(handle)) {
+                accounts.add(toProcess.get(handle));
+            } else {
+                progress.finished(handle, false);
+            }
+        }
+        return accounts;
+    }
+
+    // Activates and deactivates the page's accounts whose away period has started or ended, in a
+    // single batch write of just their active flags. Each flag is only written if the account
+    // hasn't changed since it was read. Deactivated accounts need nothing more; activated ones go on
+    // to be processed. Accounts whose write failed or conflicted are left for the next sweep.
+    private List<TwitterAccount> applyScheduleChanges(Collection<TwitterAccount> accounts, Timestamp currentTime) {
+        List<TwitterAccount> toProcess = new ArrayList<>();
+        List<TwitterAccount> changed = new ArrayList<>();
+        for (TwitterAccount account : accounts) {
+            Optional<TwitterAccount> change = TwitterProcessor.scheduleChange(account, currentTime);
+            if (change.isPresent()) {
+                changed.add(change.get());
+            } else {
+                toProcess.add(account);
+            }
+        }
+        if (changed.isEmpty()) {
+            return toProcess;
+        }
+
+        ImmutableMap<String, TwitterDAOResult> results = twitterDAO.patchAll(
+                changed.stream().map(TwitterProcessor::activePatch).collect(Collectors.toList()));
+        for (TwitterAccount account : changed) {
+            if (results.get(account.getHandle()) != TwitterDAOResult.SUCCESS) {
+                metrics.increment("scanner.accounts.schedule_change_failed");
+            } else if (account.getActive()) {
+                metrics.increment("scanner.accounts.activated");
+                toProcess.add(TwitterProcessor.written(account));
+            } else {
+                metrics.increment("scanner.accounts.deactivated");
+            }
+        }
+        return toProcess;
+    }
+
+    private void submitOrDefer(
+            TwitterAccount account,
+            Semaphore permits,
+            AtomicReference<Throwable> firstFailure,
+            Queue<TwitterAccount> deferred,
+            Queue<CompletableFuture<Void>> sending,
+            ScanProgress progress) throws InterruptedException {
+        String handle = account.getHandle();
+        if (!rateLimits.isAvailable(handle)) {
+            deferred.add(account);
+            progress.finished(handle, true);
+            return;
+        }
+        metrics.increment("scanner.accounts.processed");
+        permits.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    // The shard may have moved to another scanner while this account was waiting
+                    if (!shards.owns(handle)) {
+                        metrics.increment("scanner.accounts.disowned");
+                        progress.finished(handle, false);
+                        return;
+                    }
+                    sending.add(twitterProcessorProvider.get().setAccount(account).process()
+                            .handle((done, e) -> {
+                                if (e != null) {
+                                    firstFailure.compareAndSet(null, e instanceof CompletionException ? e.getCause() : e);
+                                }
+                                progress.finished(handle, e != null);
+                                return null;
+                            }));
+                } catch (TwitterException e) {
+                    if (e.exceededRateLimitation()) {
+                        deferred.add(account);
+                    } else {
+                        metrics.increment("scanner.accounts.failed");
+                        firstFailure.compareAndSet(null, e);
+                    }
+                    progress.finished(handle, true);
+                } catch (Throwable e) {
+                    metrics.increment("scanner.accounts.failed");
+                    firstFailure.compareAndSet(null, e);
+                    progress.finished(handle, true);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
         }
-        System.out.println("And we're off to the races");
     }
 }
@@ -0,0 +1,93 @@
+package com.outofoctopus.scanner
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.Mockito.doAnswer
+import static org.mockito.Mockito.mock
+
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.scanner.twitter.TwitterScanner
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ScanDaemonTest extends GroovyTestCase {
+
+    private TwitterScanner scanner
+    private MetricsRegistry metrics
+    private AtomicInteger sweeps
+    private AtomicInteger inFlight
+    private AtomicInteger maxInFlight
+    private long sweepMillis
+    private CountDownLatch enoughSweeps
+
+    void setUp() {
+        super.setUp()
+        scanner = mock(TwitterScanner.class)
+        metrics = new MetricsRegistry()
+        sweeps = new AtomicInteger()
+        inFlight = new AtomicInteger()
+        maxInFlight = new AtomicInteger()
+        sweepMillis = 0
+        enoughSweeps = new CountDownLatch(3)
+        doAnswer({ invocation ->
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), { a, b -> Math.max(a, b) })
+            try {
+                Thread.sleep(sweepMillis)
+                if (sweeps.incrementAndGet() == 1) {
+                    throw new IOException("First sweep fails")
+                }
+            } finally {
+                inFlight.decrementAndGet()
+                enoughSweeps.countDown()
+            }
+            return null
+        }).when(scanner).scan()
+    }
+
+    void testKeepsSweepingAfterFailure() {
+        ScanDaemon daemon = new ScanDaemon(scanner, metrics, Duration.ofMillis(10))
+        daemon.start()
+        assertThat(enoughSweeps.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(daemon.stop(Duration.ofSeconds(5))).isTrue()
+
+        assertThat(metrics.snapshot().getCounter("daemon.sweeps.failed")).isEqualTo(1L)
+        assertThat(metrics.snapshot().getCounter("daemon.sweeps")).isAtLeast(2L)
+    }
+
+    void testOverrunningSweepsNeverOverlap() {
+        sweepMillis = 30
+        ScanDaemon daemon = new ScanDaemon(scanner, metrics, Duration.ofMillis(1))
+        daemon.start()
+        assertThat(enoughSweeps.await(5, TimeUnit.SECONDS)).isTrue()
+        daemon.stop(Duration.ofSeconds(5))
+
+        assertThat(maxInFlight.get()).isEqualTo(1)
+    }
+
+    void testStopWaitsForSweepInProgressAndRunsNoMore() {
+        sweepMillis = 200
+        ScanDaemon daemon = new ScanDaemon(scanner, metrics, Duration.ofMillis(1))
+        daemon.start()
+        Thread.sleep(50)
+
+        assertThat(daemon.stop(Duration.ofSeconds(5))).isTrue()
+        daemon.awaitTermination()
+        assertThat(inFlight.get()).isEqualTo(0)
+        int finished = sweeps.get()
+        Thread.sleep(300)
+        assertThat(sweeps.get()).isEqualTo(finished)
+    }
+
+    void testStopBetweenSweepsRunsNoMore() {
+        enoughSweeps = new CountDownLatch(1)
+        ScanDaemon daemon = new ScanDaemon(scanner, metrics, Duration.ofHours(1))
+        daemon.start()
+        assertThat(enoughSweeps.await(5, TimeUnit.SECONDS)).isTrue()
+        Thread.sleep(50)
+
+        // Idle until the next sweep an hour away, which is dropped rather than waited for
+        assertThat(daemon.stop(Duration.ofSeconds(1))).isTrue()
+        assertThat(sweeps.get()).isEqualTo(1)
+    }
+}
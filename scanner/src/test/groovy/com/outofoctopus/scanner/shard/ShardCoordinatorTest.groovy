@@ -0,0 +1,164 @@
+package com.outofoctopus.scanner.shard
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.google.common.collect.ImmutableList
+import com.google.common.collect.ImmutableSet
+import com.outofoctopus.db.ShardLease
+import com.outofoctopus.db.ShardLeaseDAO
+import com.outofoctopus.metrics.MetricsRegistry
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+class ShardCoordinatorTest extends GroovyTestCase {
+
+    private static final int SHARD_COUNT = 8
+    private static final Duration LEASE = Duration.ofSeconds(30)
+
+    private InMemoryShardLeaseDAO dao
+    private TestClock clock
+
+    void setUp() {
+        super.setUp()
+        dao = new InMemoryShardLeaseDAO()
+        clock = new TestClock()
+    }
+
+    void testLoneWorkerOwnsEveryShard() {
+        ShardCoordinator worker = newWorker("a")
+        worker.heartbeat()
+        assertThat(worker.getOwnedShards()).hasSize(SHARD_COUNT)
+        assertThat(worker.owns("anyone")).isTrue()
+    }
+
+    void testWorkersShareShardsWithoutOverlap() {
+        List<ShardCoordinator> workers = ["a", "b", "c"].collect { newWorker(it) }
+        // Workers that start later take their share as the earlier ones hand shards back
+        3.times { workers.each { it.heartbeat() } }
+
+        assertDisjointAndComplete(workers)
+        workers.each { assertThat(it.getOwnedShards().size()).isAtMost(3) }
+        (0..<100).each { i ->
+            assertThat(workers.count { it.owns("user" + i) }).isEqualTo(1)
+        }
+    }
+
+    void testShardsOfDeadWorkerTakenOver() {
+        List<ShardCoordinator> workers = ["a", "b"].collect { newWorker(it) }
+        3.times { workers.each { it.heartbeat() } }
+        ShardCoordinator dead = workers[1]
+        assertThat(dead.getOwnedShards()).isNotEmpty()
+
+        // The dead worker stops heartbeating; before its leases run out nobody else takes them
+        clock.advance(LEASE.dividedBy(2))
+        workers[0].heartbeat()
+        assertThat(workers[0].getOwnedShards()).hasSize(SHARD_COUNT / 2 as int)
+
+        // It would already have stopped using them itself by now
+        clock.advance(LEASE.dividedBy(3))
+        assertThat(dead.getOwnedShards()).isEmpty()
+
+        clock.advance(LEASE.dividedBy(3))
+        workers[0].heartbeat()
+        assertThat(workers[0].getOwnedShards()).hasSize(SHARD_COUNT)
+    }
+
+    void testStoppedWorkerHandsShardsOverImmediately() {
+        List<ShardCoordinator> workers = ["a", "b"].collect { newWorker(it) }
+        3.times { workers.each { it.heartbeat() } }
+
+        workers[1].stop()
+        workers[0].heartbeat()
+        assertThat(workers[0].getOwnedShards()).hasSize(SHARD_COUNT)
+        assertThat(workers[1].getOwnedShards()).isEmpty()
+    }
+
+    void testShardOfIsStableAndInRange() {
+        (0..<1000).each { i ->
+            int shard = ShardCoordinator.shardOf("user" + i, SHARD_COUNT)
+            assertThat(shard).isAtLeast(0)
+            assertThat(shard).isLessThan(SHARD_COUNT)
+            assertThat(ShardCoordinator.shardOf("user" + i, SHARD_COUNT)).isEqualTo(shard)
+        }
+    }
+
+    private ShardCoordinator newWorker(String id) {
+        return new ShardCoordinator(dao, new MetricsRegistry(), clock, SHARD_COUNT, id, LEASE)
+    }
+
+    private static void assertDisjointAndComplete(List<ShardCoordinator> workers) {
+        List<Integer> owned = workers.collectMany { it.getOwnedShards().toList() }
+        assertThat(owned).containsNoDuplicates()
+        assertThat(owned).containsExactlyElementsIn(0..<SHARD_COUNT)
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.parse("2018-01-01T00:00:00Z")
+
+        void advance(Duration duration) {
+            now = now.plus(duration)
+        }
+
+        @Override
+        ZoneId getZone() {
+            return ZoneOffset.UTC
+        }
+
+        @Override
+        Clock withZone(ZoneId zone) {
+            return this
+        }
+
+        @Override
+        Instant instant() {
+            return now
+        }
+    }
+
+    // Same semantics as the Datastore version, minus the transactions
+    private static class InMemoryShardLeaseDAO implements ShardLeaseDAO {
+        private final Map<Integer, ShardLease> leases = [:]
+        private final Map<String, Timestamp> workers = [:]
+
+        @Override
+        synchronized void registerWorker(String worker, Timestamp expiresAt) {
+            workers.put(worker, expiresAt)
+        }
+
+        @Override
+        synchronized void deregisterWorker(String worker) {
+            workers.remove(worker)
+        }
+
+        @Override
+        synchronized ImmutableSet<String> getLiveWorkers(Timestamp now) {
+            return ImmutableSet.copyOf(workers.findAll { worker, expiresAt -> expiresAt > now }.keySet())
+        }
+
+        @Override
+        synchronized ImmutableList<ShardLease> getLeases() {
+            return ImmutableList.copyOf(leases.values())
+        }
+
+        @Override
+        synchronized boolean acquire(int shard, String owner, Timestamp expiresAt, Timestamp now) {
+            ShardLease current = leases.get(shard)
+            if (current != null && current.getOwner() != owner && !current.isExpired(now)) {
+                return false
+            }
+            leases.put(shard, new ShardLease(shard, owner, expiresAt))
+            return true
+        }
+
+        @Override
+        synchronized void release(int shard, String owner) {
+            if (leases.get(shard)?.getOwner() == owner) {
+                leases.remove(shard)
+            }
+        }
+    }
+}
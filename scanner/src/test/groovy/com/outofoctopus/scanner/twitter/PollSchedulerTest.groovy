@@ -0,0 +1,90 @@
+package com.outofoctopus.scanner.twitter
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import java.time.Duration
+
+class PollSchedulerTest extends GroovyTestCase {
+
+    private static final Duration SWEEP = Duration.ofMinutes(1)
+    private static final Duration MAX_LATENCY = Duration.ofMinutes(15)
+    private static final long START = 1_500_000_000L
+
+    private PollScheduler scheduler = new PollScheduler(SWEEP, MAX_LATENCY)
+
+    void testMentionedAccountPolledEverySweep() {
+        TwitterAccount account = scheduler.afterPoll(newAccount(), 3, at(0))
+        assertThat(account.getPollIntervalSeconds()).isEqualTo(SWEEP.getSeconds())
+        assertThat(account.getNextPollAt()).isEqualTo(at(SWEEP.getSeconds()).toProto())
+        assertThat(account.getLastPolledAt()).isEqualTo(at(0).toProto())
+        assertThat(account.getMentionRate()).isWithin(0.001).of(180.0) // 3 a minute
+    }
+
+    void testQuietAccountBacksOffUpToMaxLatency() {
+        TwitterAccount account = newAccount()
+        long now = 0
+        List<Long> intervals = []
+        8.times {
+            account = scheduler.afterPoll(account, 0, at(now))
+            intervals.add(account.getPollIntervalSeconds())
+            now += account.getPollIntervalSeconds()
+        }
+        assertThat(intervals).containsExactly(120L, 240L, 480L, 900L, 900L, 900L, 900L, 900L).inOrder()
+        assertThat(account.getMentionRate()).isEqualTo(0.0d)
+    }
+
+    void testMentionResetsBackoff() {
+        TwitterAccount account = newAccount()
+        long now = 0
+        3.times {
+            account = scheduler.afterPoll(account, 0, at(now))
+            now += account.getPollIntervalSeconds()
+        }
+        account = scheduler.afterPoll(account, 1, at(now))
+        assertThat(account.getPollIntervalSeconds()).isEqualTo(SWEEP.getSeconds())
+    }
+
+    void testBusyAccountStaysHotThroughQuietPoll() {
+        TwitterAccount account = newAccount()
+        long now = 0
+        5.times {
+            account = scheduler.afterPoll(account, 10, at(now))
+            now += account.getPollIntervalSeconds()
+        }
+        account = scheduler.afterPoll(account, 0, at(now))
+        assertThat(account.getPollIntervalSeconds()).isEqualTo(SWEEP.getSeconds())
+        // Decays on repeated quiet polls until it backs off
+        now += account.getPollIntervalSeconds()
+        10.times {
+            account = scheduler.afterPoll(account, 0, at(now))
+            now += account.getPollIntervalSeconds()
+        }
+        assertThat(account.getPollIntervalSeconds()).isEqualTo(MAX_LATENCY.getSeconds())
+    }
+
+    void testNeedsProcessingOnlyWhenPollDue() {
+        TwitterAccount account = scheduler.afterPoll(newAccount(), 0, at(0))
+        assertThat(TwitterProcessor.needsProcessing(account, at(60))).isFalse()
+        assertThat(TwitterProcessor.needsProcessing(account, at(120))).isTrue()
+        assertThat(TwitterProcessor.needsProcessing(newAccount(), at(0))).isTrue()
+
+        // Deactivation doesn't wait for the next poll
+        TwitterAccount ending = account.toBuilder().setActiveUntil(at(60).toProto()).build()
+        assertThat(TwitterProcessor.needsProcessing(ending, at(60))).isTrue()
+    }
+
+    private static TwitterAccount newAccount() {
+        return TwitterAccount.newBuilder()
+                .setHandle("quiet")
+                .setActive(true)
+                .setActiveFrom(Timestamp.MIN_VALUE.toProto())
+                .setActiveUntil(Timestamp.ofTimeSecondsAndNanos(Timestamp.MAX_VALUE.getSeconds(), 0).toProto())
+                .build()
+    }
+
+    private static Timestamp at(long seconds) {
+        return Timestamp.ofTimeSecondsAndNanos(START + seconds, 0)
+    }
+}
@@ -0,0 +1,150 @@
+package com.outofoctopus.scanner.twitter
+
+import static com.google.common.truth.Truth.assertThat
+
+import com.google.cloud.Timestamp
+import com.google.common.collect.ImmutableSet
+import com.outofoctopus.db.RepliedMentionDAO
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+class RepliedMentionsTest extends GroovyTestCase {
+
+    private static final Duration FILTER_TTL = Duration.ofMinutes(10)
+    private static final TwitterAccount ACCOUNT = TwitterAccount.newBuilder()
+            .setHandle("octopus")
+            .setActiveUntil(Timestamp.parseTimestamp("2018-02-01T00:00:00Z").toProto())
+            .build()
+
+    private InMemoryRepliedMentionDAO dao
+    private TestClock clock
+    private MetricsRegistry metrics
+    private RepliedMentions replied
+
+    void setUp() {
+        super.setUp()
+        dao = new InMemoryRepliedMentionDAO()
+        clock = new TestClock()
+        metrics = new MetricsRegistry()
+        replied = new RepliedMentions(dao, metrics, clock, FILTER_TTL)
+    }
+
+    void testNewMentionsNeedNoLookup() {
+        dao.recordReplied("octopus", [5L], Timestamp.MAX_VALUE)
+        assertThat(replied.alreadyReplied("octopus", [1L, 2L, 3L])).isEmpty()
+        assertThat(dao.lookups).isEmpty()
+        assertThat(metrics.snapshot().getCounter("replies.dedup.filtered")).isEqualTo(3L)
+    }
+
+    void testRecordedMentionsFound() {
+        replied.alreadyReplied("octopus", [1L])
+        replied.recordReplied(ACCOUNT, [7L, 8L])
+
+        // Only the mentions the filter has seen are looked up
+        assertThat(replied.alreadyReplied("octopus", [6L, 7L, 8L, 9L])).containsExactly(7L, 8L)
+        assertThat(dao.lookups).containsExactly([7L, 8L])
+        assertThat(dao.expiries.get("octopus").get(7L)).isEqualTo(Timestamp.fromProto(ACCOUNT.getActiveUntil()))
+    }
+
+    void testFilterReloadedAfterTtl() {
+        replied.alreadyReplied("octopus", [1L])
+        // Recorded by another scanner, so this one's filter doesn't know about it yet
+        dao.recordReplied("octopus", [1L], Timestamp.MAX_VALUE)
+        assertThat(replied.alreadyReplied("octopus", [1L])).isEmpty()
+
+        clock.advance(FILTER_TTL)
+        assertThat(replied.alreadyReplied("octopus", [1L])).containsExactly(1L)
+        assertThat(dao.loads).isEqualTo(2)
+    }
+
+    void testFailuresTreatedAsNotReplied() {
+        dao.failing = true
+        assertThat(replied.alreadyReplied("octopus", [1L])).isEmpty()
+        replied.recordReplied(ACCOUNT, [1L])
+        assertThat(metrics.snapshot().getCounter("replies.dedup.errors")).isEqualTo(2L)
+    }
+
+    void testExpiredPurgedAtMostHourly() {
+        dao.recordReplied("octopus", [1L], Timestamp.parseTimestamp("2017-12-31T00:00:00Z"))
+        replied.evictExpired()
+        replied.evictExpired()
+        assertThat(dao.purges).isEqualTo(1)
+        assertThat(dao.getAllReplied("octopus")).isEmpty()
+
+        clock.advance(Duration.ofHours(1))
+        replied.evictExpired()
+        assertThat(dao.purges).isEqualTo(2)
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.parse("2018-01-01T00:00:00Z")
+
+        void advance(Duration duration) {
+            now = now.plus(duration)
+        }
+
+        @Override
+        ZoneId getZone() {
+            return ZoneOffset.UTC
+        }
+
+        @Override
+        Clock withZone(ZoneId zone) {
+            return this
+        }
+
+        @Override
+        Instant instant() {
+            return now
+        }
+    }
+
+    // Same semantics as the Datastore version, counting the reads made
+    private static class InMemoryRepliedMentionDAO implements RepliedMentionDAO {
+        private final Map<String, Map<Long, Timestamp>> expiries = [:]
+        private final List<List<Long>> lookups = []
+        private int loads
+        private int purges
+        private boolean failing
+
+        ImmutableSet<Long> getAllReplied(String handle) {
+            checkFailing()
+            loads++
+            return ImmutableSet.copyOf(expiries.getOrDefault(handle, [:]).keySet())
+        }
+
+        ImmutableSet<Long> getReplied(String handle, Iterable<Long> mentionIds, Timestamp now) {
+            checkFailing()
+            lookups.add(mentionIds.toList())
+            Map<Long, Timestamp> records = expiries.getOrDefault(handle, [:])
+            return ImmutableSet.copyOf(mentionIds.findAll { records.containsKey(it) && records.get(it) > now })
+        }
+
+        void recordReplied(String handle, Iterable<Long> mentionIds, Timestamp expiresAt) {
+            checkFailing()
+            mentionIds.each { expiries.computeIfAbsent(handle, { [:] }).put(it, expiresAt) }
+        }
+
+        int deleteExpired(Timestamp now) {
+            purges++
+            int deleted = 0
+            expiries.values().each { records ->
+                deleted += records.size()
+                records.values().removeIf { it < now }
+                deleted -= records.size()
+            }
+            return deleted
+        }
+
+        private void checkFailing() {
+            if (failing) {
+                throw new IllegalStateException("Datastore unavailable")
+            }
+        }
+    }
+}
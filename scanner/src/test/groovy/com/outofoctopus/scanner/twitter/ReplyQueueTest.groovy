@@ -0,0 +1,196 @@
+package com.outofoctopus.scanner.twitter
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.Mockito.mock
+
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.scanner.twitter.ReplyQueue.ReplyOutcome
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.atomic.AtomicInteger
+import twitter4j.Status
+import twitter4j.StatusUpdate
+import twitter4j.TwitterException
+
+class ReplyQueueTest extends GroovyTestCase {
+    private static final String HANDLE = "oooctopustest"
+    private static final int MAX_ATTEMPTS = 3
+
+    private ScheduledExecutorService executor
+    private ReplyQueue queue
+    private AtomicInteger calls
+    private MetricsRegistry metrics
+
+    void setUp() {
+        super.setUp()
+        executor = Executors.newScheduledThreadPool(2)
+        metrics = new MetricsRegistry()
+        queue = new ReplyQueue(executor, MAX_ATTEMPTS, Duration.ofMillis(2), 100, new Random(0), metrics)
+        calls = new AtomicInteger()
+    }
+
+    void tearDown() {
+        executor.shutdownNow()
+        super.tearDown()
+    }
+
+    void testSendsReply() {
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), { r -> sent() } as ReplyQueue.ReplySender).join()
+        assertThat(outcome.isSent()).isTrue()
+        assertThat(outcome.getStatus().isPresent()).isTrue()
+        assertThat(outcome.getAttempts()).isEqualTo(1)
+    }
+
+    void testRetriesTransientFailures() {
+        ReplyQueue.ReplySender flaky = { r ->
+            if (calls.incrementAndGet() < MAX_ATTEMPTS) {
+                throw new TwitterException("Over capacity", null, 503)
+            }
+            return sent()
+        } as ReplyQueue.ReplySender
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), flaky).join()
+        assertThat(outcome.isSent()).isTrue()
+        assertThat(outcome.getAttempts()).isEqualTo(MAX_ATTEMPTS)
+        assertThat(metrics.snapshot().getCounter("replies.retries")).isEqualTo((long) MAX_ATTEMPTS - 1)
+        assertThat(metrics.snapshot().getCounter("replies.sent")).isEqualTo(1L)
+    }
+
+    void testGivesUpAfterMaxAttempts() {
+        ReplyQueue.ReplySender down = { r ->
+            calls.incrementAndGet()
+            throw new TwitterException("Connection reset", new IOException(), -1)
+        } as ReplyQueue.ReplySender
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), down).join()
+        assertThat(outcome.isSent()).isFalse()
+        assertThat(calls.get()).isEqualTo(MAX_ATTEMPTS)
+    }
+
+    void testDoesNotRetryPermanentFailures() {
+        ReplyQueue.ReplySender forbidden = { r ->
+            calls.incrementAndGet()
+            throw twitterError(385, 403)
+        } as ReplyQueue.ReplySender
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), forbidden).join()
+        assertThat(outcome.isSent()).isFalse()
+        assertThat(outcome.canRetry()).isFalse()
+        assertThat(outcome.getFailure().get()).isInstanceOf(TwitterException.class)
+        assertThat(calls.get()).isEqualTo(1)
+
+        // Nor on a later scan
+        assertThat(queue.submit(HANDLE, reply(1), forbidden).join()).isSameAs(outcome)
+        assertThat(calls.get()).isEqualTo(1)
+        assertThat(metrics.snapshot().getCounter("replies.rejected")).isEqualTo(1L)
+    }
+
+    void testDroppedReplyNotSentOrRetried() {
+        ReplyQueue.ReplySender disowned = { r ->
+            calls.incrementAndGet()
+            throw new ReplyQueue.ReplyDroppedException("Shard lost")
+        } as ReplyQueue.ReplySender
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), disowned).join()
+        assertThat(outcome.isSent()).isFalse()
+        assertThat(outcome.isDropped()).isTrue()
+        assertThat(calls.get()).isEqualTo(1)
+        assertThat(metrics.snapshot().getCounter("replies.dropped")).isEqualTo(1L)
+        assertThat(metrics.snapshot().getCounter("replies.failed")).isEqualTo(0L)
+    }
+
+    void testFailuresThatMayPassLaterCanBeRetried() {
+        // Bad credentials, and the daily tweet limit
+        [new TwitterException("Unauthorized", null, 401), twitterError(185, 403)].each { TwitterException failure ->
+            ReplyQueue.ReplySender sender = { r -> throw failure } as ReplyQueue.ReplySender
+            ReplyOutcome outcome = queue.submit(HANDLE, reply(failure.getStatusCode()), sender).join()
+            assertThat(outcome.isSent()).isFalse()
+            assertThat(outcome.canRetry()).isTrue()
+        }
+        assertThat(metrics.snapshot().getCounter("replies.rejected")).isEqualTo(0L)
+    }
+
+    void testDoesNotRetryRateLimits() {
+        ReplyQueue.ReplySender limited = { r ->
+            calls.incrementAndGet()
+            throw new TwitterException("Too many", null, 429)
+        } as ReplyQueue.ReplySender
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), limited).join()
+        assertThat(outcome.isSent()).isFalse()
+        assertThat(outcome.canRetry()).isTrue()
+        assertThat(calls.get()).isEqualTo(1)
+    }
+
+    void testSameMentionOnlyRepliedToOnce() {
+        CountDownLatch release = new CountDownLatch(1)
+        ReplyQueue.ReplySender slow = { r ->
+            calls.incrementAndGet()
+            release.await()
+            return sent()
+        } as ReplyQueue.ReplySender
+        CompletableFuture<ReplyOutcome> first = queue.submit(HANDLE, reply(1), slow)
+        CompletableFuture<ReplyOutcome> inFlight = queue.submit(HANDLE, reply(1), slow)
+        release.countDown()
+        first.join()
+        CompletableFuture<ReplyOutcome> afterSent = queue.submit(HANDLE, reply(1), slow)
+
+        assertThat(inFlight).isSameAs(first)
+        assertThat(afterSent).isSameAs(first)
+        assertThat(calls.get()).isEqualTo(1)
+
+        // A different account replying to the same mention is a different reply
+        queue.submit("someoneelse", reply(1), slow).join()
+        assertThat(calls.get()).isEqualTo(2)
+    }
+
+    void testFailedReplyCanBeRetriedLater() {
+        ReplyQueue.ReplySender limited = { r -> throw new TwitterException("Too many", null, 429) } as ReplyQueue.ReplySender
+        assertThat(queue.submit(HANDLE, reply(1), limited).join().isSent()).isFalse()
+        assertThat(queue.submit(HANDLE, reply(1), { r -> sent() } as ReplyQueue.ReplySender).join().isSent()).isTrue()
+    }
+
+    void testDuplicateStatusCountsAsSent() {
+        ReplyQueue.ReplySender duplicate = { r ->
+            throw new TwitterException('{"errors":[{"code":187,"message":"Status is a duplicate."}]}', null, 403)
+        } as ReplyQueue.ReplySender
+        ReplyOutcome outcome = queue.submit(HANDLE, reply(1), duplicate).join()
+        assertThat(outcome.isSent()).isTrue()
+        assertThat(outcome.getStatus().isPresent()).isFalse()
+    }
+
+    void testCursorStopsBeforeOldestFailure() {
+        List<CompletableFuture<ReplyOutcome>> outcomes = [
+                CompletableFuture.completedFuture(ReplyOutcome.sent(new ReplyQueue.ReplyKey(HANDLE, 30), sent(), 1)),
+                CompletableFuture.completedFuture(ReplyOutcome.failed(new ReplyQueue.ReplyKey(HANDLE, 20), new IOException(), 1)),
+                CompletableFuture.completedFuture(ReplyOutcome.failed(new ReplyQueue.ReplyKey(HANDLE, 25), new IOException(), 1)),
+                CompletableFuture.completedFuture(ReplyOutcome.sent(new ReplyQueue.ReplyKey(HANDLE, 10), sent(), 1)),
+        ]
+        assertThat(TwitterProcessor.cursorAfter(30, outcomes)).isEqualTo(19L)
+        assertThat(TwitterProcessor.cursorAfter(30, outcomes.subList(0, 1))).isEqualTo(30L)
+    }
+
+    void testCursorMovesPastRejectedReplies() {
+        List<CompletableFuture<ReplyOutcome>> outcomes = [
+                CompletableFuture.completedFuture(ReplyOutcome.sent(new ReplyQueue.ReplyKey(HANDLE, 30), sent(), 1)),
+                CompletableFuture.completedFuture(ReplyOutcome.rejected(
+                        new ReplyQueue.ReplyKey(HANDLE, 20), new TwitterException("Blocked", null, 403), 1)),
+                CompletableFuture.completedFuture(ReplyOutcome.failed(
+                        new ReplyQueue.ReplyKey(HANDLE, 25), new TwitterException("Too many", null, 429), 1)),
+        ]
+        assertThat(TwitterProcessor.cursorAfter(30, outcomes)).isEqualTo(24L)
+        assertThat(TwitterProcessor.cursorAfter(30, outcomes.subList(0, 2))).isEqualTo(30L)
+    }
+
+    private static TwitterException twitterError(int code, int statusCode) {
+        return new TwitterException('{"errors":[{"code":' + code + ',"message":"Turned down"}]}', null, statusCode)
+    }
+
+    private static StatusUpdate reply(long inReplyTo) {
+        StatusUpdate reply = new StatusUpdate("Away")
+        reply.setInReplyToStatusId(inReplyTo)
+        return reply
+    }
+
+    private static Status sent() {
+        return mock(Status.class)
+    }
+}
@@ -1,25 +1,154 @@
 package com.outofoctopus.scanner.twitter
 
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.ArgumentMatchers.any
+import static org.mockito.ArgumentMatchers.anyLong
+import static org.mockito.Mockito.doAnswer
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.never
+import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.when
+
+import com.google.cloud.Timestamp
+import com.google.common.collect.ImmutableList
+import com.google.common.collect.ImmutableSet
+import com.outofoctopus.client.TwitterClient
+import com.outofoctopus.db.TwitterDAO
+import com.outofoctopus.db.TwitterDAO.TwitterDAOResult
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import com.outofoctopus.scanner.shard.ShardAssignment
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneOffset
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.atomic.AtomicBoolean
+import org.mockito.ArgumentCaptor
+import twitter4j.StatusUpdate
+
 class TwitterProcessorTest extends GroovyTestCase {
+
+    private static final Instant NOW = Instant.parse("2018-06-01T12:00:00Z")
+    private static final Timestamp AWAY_FROM = Timestamp.parseTimestamp("2018-06-01T09:00:00Z")
+    // Where the last away period, months earlier, left the cursor
+    private static final long STALE_CURSOR = 950_000_000_000_000_000L
+
+    private TwitterDAO dao
+    private TwitterClient client
+    private MetricsRegistry metrics
+    private ScheduledExecutorService replyExecutor
+    private AtomicBoolean owned
+    private TwitterProcessor processor
+
     void setUp() {
         super.setUp()
+        dao = mock(TwitterDAO.class)
+        client = mock(TwitterClient.class)
+        metrics = new MetricsRegistry()
+        replyExecutor = Executors.newSingleThreadScheduledExecutor()
+        owned = new AtomicBoolean(true)
+        RepliedMentions repliedMentions = mock(RepliedMentions.class)
+        when(repliedMentions.alreadyReplied(any(String.class), any(Collection.class))).thenReturn(ImmutableSet.of())
+        when(client.resealTokens(any(TwitterAccount.class))).thenAnswer({ it.getArgument(0) })
+        processor = new TwitterProcessor(
+                dao,
+                client,
+                new ReplyQueue(replyExecutor, 1, Duration.ofMillis(1), 10, new Random(0), metrics),
+                repliedMentions,
+                mock(PollScheduler.class),
+                [owns: { handle -> owned.get() }, getScannerId: { -> "scanner" }] as ShardAssignment,
+                metrics,
+                Clock.fixed(NOW, ZoneOffset.UTC))
     }
 
     void tearDown() {
+        replyExecutor.shutdownNow()
         super.tearDown()
     }
 
-    void testWoo() {
+    void testActivationMovesStaleCursorToStartOfAwayPeriod() {
+        when(dao.patch(any(TwitterAccount.class))).thenReturn(TwitterDAOResult.SUCCESS)
+        processor.setAccount(awayAccount().setLastProcessedMentionId(STALE_CURSOR).build()).process()
+
+        long awayStart = TwitterProcessor.firstMentionIdAt(AWAY_FROM)
+        assertThat(awayStart).isGreaterThan(STALE_CURSOR)
+        ArgumentCaptor<TwitterAccount> patch = ArgumentCaptor.forClass(TwitterAccount.class)
+        verify(dao).patch(patch.capture())
+        assertThat(patch.getValue()).isEqualTo(TwitterAccount.newBuilder()
+                .setHandle("octopus")
+                .setActive(true)
+                .setLastProcessedMentionId(awayStart)
+                .setVersion(3)
+                .build())
+
+        // Mentions are fetched from the start of the away period, not from the stale cursor
+        ArgumentCaptor<TwitterAccount> authenticated = ArgumentCaptor.forClass(TwitterAccount.class)
+        verify(client).authenticate(authenticated.capture())
+        assertThat(authenticated.getValue().getLastProcessedMentionId()).isEqualTo(awayStart)
+        assertThat(authenticated.getValue().getVersion()).isEqualTo(4L)
+    }
+
+    void testActivationKeepsCursorAlreadyInAwayPeriod() {
+        long recent = TwitterProcessor.firstMentionIdAt(AWAY_FROM) + 1000
+        assertThat(TwitterProcessor.activePatch(TwitterProcessor.scheduleChange(
+                awayAccount().setLastProcessedMentionId(recent).build(), Timestamp.of(Date.from(NOW))).get())
+                .getLastProcessedMentionId()).isEqualTo(recent)
+    }
+
+    void testAccountNotProcessedIfActivationConflicts() {
+        when(dao.patch(any(TwitterAccount.class))).thenReturn(TwitterDAOResult.CONFLICT)
+        processor.setAccount(awayAccount().build()).process()
+        verify(client, never()).authenticate(any(TwitterAccount.class))
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.activated")).isEqualTo(0L)
+    }
+
+    void testOnlyStoredDeactivationsCounted() {
+        TwitterAccount over = awayAccount()
+                .setActive(true)
+                .setActiveUntil(Timestamp.parseTimestamp("2018-06-01T11:00:00Z").toProto())
+                .build()
+        when(dao.patch(any(TwitterAccount.class))).thenReturn(TwitterDAOResult.CONFLICT, TwitterDAOResult.SUCCESS)
+        processor.setAccount(over).process()
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.deactivated")).isEqualTo(0L)
 
+        processor.setAccount(over).process()
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.deactivated")).isEqualTo(1L)
+        verify(client, never()).authenticate(any(TwitterAccount.class))
     }
 
-    // Check it switches off overdone account and changes nothing else
+    void testUnstoredPollScheduleCounted() {
+        when(dao.updatePollSchedule(any(String.class), any())).thenReturn(TwitterDAOResult.SUCCESS, TwitterDAOResult.NOT_FOUND)
+        processor.setAccount(awayAccount().setActive(true).build()).process().join()
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.poll_schedule_failed")).isEqualTo(0L)
 
-    // Check it switches on overdone account and saves it
+        processor.setAccount(awayAccount().setActive(true).build()).process().join()
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.poll_schedule_failed")).isEqualTo(1L)
+    }
 
-    // Given mock twitter API, check it compiles right messages
+    void testRepliesDroppedAndCursorLeftOnceShardLost() {
+        // The shard moves to another scanner while the replies are being prepared
+        doAnswer({ invocation ->
+            owned.set(false)
+            invocation.getArgument(0).accept(ImmutableList.of(new StatusUpdate("Away").inReplyToStatusId(42L)))
+            return null
+        }).when(client).makeReplies(any(TwitterClient.ReplyConsumer.class))
+        when(client.getMentionCursor()).thenReturn(42L)
+        processor.setAccount(awayAccount().setActive(true).build()).process().join()
 
-    // What if datastore throws exception?
+        verify(client, never()).sendReply(any(StatusUpdate.class))
+        verify(dao, never()).updateMentionCursor(any(String.class), anyLong())
+        assertThat(metrics.snapshot().getCounter("replies.dropped")).isEqualTo(1L)
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.disowned")).isEqualTo(1L)
+    }
 
-    // What if twitter client throws exception?
+    private static TwitterAccount.Builder awayAccount() {
+        return TwitterAccount.newBuilder()
+                .setHandle("octopus")
+                .setActive(false)
+                .setActiveFrom(AWAY_FROM.toProto())
+                .setActiveUntil(Timestamp.parseTimestamp("2018-06-08T00:00:00Z").toProto())
+                .setVersion(3)
+    }
 }
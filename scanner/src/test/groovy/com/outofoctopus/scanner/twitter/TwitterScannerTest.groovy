@@ -0,0 +1,460 @@
+package com.outofoctopus.scanner.twitter
+
+import static com.google.common.truth.Truth.assertThat
+import static org.mockito.ArgumentMatchers.any
+import static org.mockito.ArgumentMatchers.eq
+import static org.mockito.Mockito.doAnswer
+import static org.mockito.Mockito.inOrder
+import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.never
+import static org.mockito.Mockito.times
+import static org.mockito.Mockito.verify
+import static org.mockito.Mockito.when
+
+import com.google.cloud.Timestamp
+import com.google.common.collect.ImmutableList
+import com.google.common.collect.ImmutableMap
+import com.google.common.collect.ImmutableSet
+import com.google.common.util.concurrent.MoreExecutors
+import com.google.inject.Provider
+import com.outofoctopus.client.RateLimitTracker
+import com.outofoctopus.db.AccountPage
+import com.outofoctopus.db.ScanCheckpoint
+import com.outofoctopus.db.ScanCheckpointDAO
+import com.outofoctopus.db.TwitterDAO
+import com.outofoctopus.db.TwitterDAO.AccountQuery
+import com.outofoctopus.db.TwitterDAO.TwitterDAOResult
+import com.outofoctopus.metrics.MetricsRegistry
+import com.outofoctopus.proto.TwitterProtos.TwitterAccount
+import com.outofoctopus.scanner.shard.AllShards
+import com.outofoctopus.scanner.shard.ShardAssignment
+import com.outofoctopus.scanner.shard.ShardCoordinator
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import org.mockito.ArgumentCaptor
+import twitter4j.TwitterException
+
+class TwitterScannerTest extends GroovyTestCase {
+
+    private static final int CONCURRENCY = 3
+    private static final int ACCOUNT_COUNT = 20
+    private static final int PAGE_SIZE = 4
+
+    private ExecutorService executor
+    private TwitterDAO dao
+    private ConcurrentLinkedQueue<String> processed
+    private AtomicInteger inFlight
+    private AtomicInteger maxInFlight
+    private Set<String> failingHandles
+    private Set<String> rateLimitedHandles
+    private Set<String> failingWrites
+    private RateLimitTracker rateLimits
+    private MetricsRegistry metrics
+    private Map<String, TwitterAccount> accountsByHandle
+    private Set<String> failingFetches
+    private InMemoryScanCheckpointDAO checkpoints
+    private TestClock clock
+    private Duration processingTime
+
+    void setUp() {
+        super.setUp()
+        executor = Executors.newFixedThreadPool(10)
+        dao = mock(TwitterDAO.class)
+        processed = new ConcurrentLinkedQueue<>()
+        inFlight = new AtomicInteger()
+        maxInFlight = new AtomicInteger()
+        failingHandles = [] as Set
+        rateLimitedHandles = [] as Set
+        failingWrites = [] as Set
+        rateLimits = new RateLimitTracker()
+        metrics = new MetricsRegistry()
+        accountsByHandle = [:]
+        failingFetches = [] as Set
+        checkpoints = new InMemoryScanCheckpointDAO()
+        clock = new TestClock()
+        processingTime = Duration.ZERO
+
+        ImmutableList.Builder<TwitterAccount> active = ImmutableList.builder()
+        ImmutableList.Builder<TwitterAccount> toActivate = ImmutableList.builder()
+        for (int i = 0; i < ACCOUNT_COUNT; i++) {
+            TwitterAccount account = TwitterAccount.newBuilder()
+                    .setHandle("user" + i)
+                    .setActive(i % 2 == 0)
+                    .setActiveFrom(Timestamp.MIN_VALUE.toProto())
+                    .setActiveUntil(Timestamp.ofTimeSecondsAndNanos(Timestamp.MAX_VALUE.getSeconds(), 0).toProto())
+                    .setAccessToken("token" + i)
+                    .setVersion(i)
+                    .build()
+            accountsByHandle.put(account.getHandle(), account)
+            (account.getActive() ? active : toActivate).add(account)
+        }
+        when(dao.getAccounts(any(Iterable.class))).thenAnswer({ invocation ->
+            if (invocation.getArgument(0).any { handle -> failingFetches.remove(handle) }) {
+                throw new IllegalStateException("Datastore unavailable")
+            }
+            ImmutableMap.Builder<String, TwitterAccount> found = ImmutableMap.builder()
+            invocation.getArgument(0).each { handle -> found.put(handle, accountsByHandle.get(handle)) }
+            return found.build()
+        })
+        when(dao.patchAll(any(Iterable.class))).thenAnswer({ invocation ->
+            ImmutableMap.Builder<String, TwitterDAOResult> results = ImmutableMap.builder()
+            invocation.getArgument(0).each { TwitterAccount account ->
+                results.put(account.getHandle(),
+                        failingWrites.contains(account.getHandle()) ? TwitterDAOResult.ERROR_DO_NOT_RETRY : TwitterDAOResult.SUCCESS)
+            }
+            return results.build()
+        })
+        stubPages(AccountQuery.ACTIVE, active.build())
+        stubPages(AccountQuery.TO_ACTIVATE, toActivate.build())
+    }
+
+    void tearDown() {
+        executor.shutdownNow()
+        super.tearDown()
+    }
+
+    void testProcessesEveryAccountOnceWithinConcurrencyCap() {
+        newScanner().scan()
+
+        assertThat(processed).hasSize(ACCOUNT_COUNT)
+        assertThat(processed.toSet()).hasSize(ACCOUNT_COUNT)
+        assertThat(maxInFlight.get()).isAtMost(CONCURRENCY)
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.processed")).isEqualTo((long) ACCOUNT_COUNT)
+        assertThat(metrics.snapshot().getLatencies().get("scanner.sweep").getCount()).isEqualTo(1L)
+    }
+
+    void testFailureDoesNotStopOtherAccounts() {
+        failingHandles.add("user3")
+        try {
+            newScanner().scan()
+            fail("Expected scan to rethrow the account failure")
+        } catch (TwitterException e) {
+            assertThat(e.getMessage()).contains("user3")
+        }
+        assertThat(processed).hasSize(ACCOUNT_COUNT - 1)
+    }
+
+    void testRateLimitedAccountDeferredNotFailed() {
+        rateLimitedHandles.add("user4")
+        newScanner().scan()
+        // Its window hasn't reset by the end of the sweep, so it waits for the next one
+        assertThat(processed).hasSize(ACCOUNT_COUNT - 1)
+        assertThat(processed).doesNotContain("user4")
+
+        newScanner().scan()
+        assertThat(processed).hasSize(2 * ACCOUNT_COUNT - 2)
+        assertThat(processed).doesNotContain("user4")
+    }
+
+    void testScheduleChangesWrittenInOneBatchPerPage() {
+        newScanner().scan()
+
+        // Every account is equally overdue, so they're fetched in handle order: each of the five
+        // pages of them has some accounts due to activate
+        ArgumentCaptor<Iterable<TwitterAccount>> batches = ArgumentCaptor.forClass(Iterable.class)
+        verify(dao, times(5)).patchAll(batches.capture())
+        verify(dao, never()).update(any(TwitterAccount.class))
+        verify(dao, never()).updateAll(any(Iterable.class))
+        List<TwitterAccount> activated = batches.getAllValues().collectMany { it.toList() }
+        assertThat(activated.collect { it.getHandle() } as Set).hasSize(ACCOUNT_COUNT / 2 as int)
+        assertThat(activated.every { it.getActive() }).isTrue()
+        assertThat(processed).hasSize(ACCOUNT_COUNT)
+    }
+
+    void testScheduleChangesOnlyWriteActiveFlagAtVersionRead() {
+        newScanner().scan()
+
+        ArgumentCaptor<Iterable<TwitterAccount>> batches = ArgumentCaptor.forClass(Iterable.class)
+        verify(dao, times(5)).patchAll(batches.capture())
+        batches.getAllValues().collectMany { it.toList() }.each { TwitterAccount patch ->
+            TwitterAccount read = accountsByHandle.get(patch.getHandle())
+            assertThat(patch).isEqualTo(TwitterAccount.newBuilder()
+                    .setHandle(read.getHandle())
+                    .setActive(true)
+                    .setVersion(read.getVersion())
+                    .build())
+        }
+    }
+
+    void testAccountNotProcessedIfActivationFails() {
+        failingWrites.add("user1")
+        newScanner().scan()
+        assertThat(processed).hasSize(ACCOUNT_COUNT - 1)
+        assertThat(processed).doesNotContain("user1")
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.schedule_change_failed")).isEqualTo(1L)
+    }
+
+    void testShardedScannersSplitAccounts() {
+        ShardAssignment evens = [
+                owns: { handle -> ShardCoordinator.shardOf(handle, 2) == 0 },
+                getScannerId: { -> "evens" }] as ShardAssignment
+        ShardAssignment odds = [
+                owns: { handle -> ShardCoordinator.shardOf(handle, 2) == 1 },
+                getScannerId: { -> "odds" }] as ShardAssignment
+        newScanner(evens).scan()
+        newScanner(odds).scan()
+
+        assertThat(processed).hasSize(ACCOUNT_COUNT)
+        assertThat(processed.toSet()).hasSize(ACCOUNT_COUNT)
+    }
+
+    void testFailedAccountsRetriedNextSweep() {
+        failingHandles.add("user3")
+        shouldFail(TwitterException) { newScanner().scan() }
+        ScanCheckpoint first = checkpoints.get("all").get()
+        assertThat(first.isFinished()).isTrue()
+        assertThat(first.getRetry()).containsExactly("user3")
+
+        failingHandles.clear()
+        processed.clear()
+        newScanner().scan()
+        // Retried up front, and not again when its page comes round
+        assertThat(processed).hasSize(ACCOUNT_COUNT)
+        assertThat(processed.toSet()).hasSize(ACCOUNT_COUNT)
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.retried")).isEqualTo(1L)
+        assertThat(checkpoints.get("all").get().getRetry()).isEmpty()
+        assertThat(checkpoints.get("all").get().getSweepId()).isNotEqualTo(first.getSweepId())
+    }
+
+    void testCheckpointKeepsOnlySoManyRetries() {
+        ScanProgress progress = ScanProgress.start(
+                "outage", ImmutableList.of(AccountQuery.ACTIVE), ImmutableSet.of(), clock)
+        (0..ScanProgress.MAX_RETRY).each { progress.finished("failed" + it, true) }
+
+        ScanCheckpoint saved = progress.checkpoint(true)
+        assertThat(saved.getRetry()).hasSize(ScanProgress.MAX_RETRY)
+        assertThat(saved.getRetry()).contains("failed0")
+        assertThat(progress.retryOverflow()).isEqualTo(1)
+    }
+
+    void testResumesFromCheckpoint() {
+        // Partway through the active accounts (user0, user2, ...), with one on the next page done
+        checkpoints.save("all", checkpoint(AccountQuery.ACTIVE, Optional.of("4"), ["user8"], Duration.ofMinutes(5)))
+        newScanner().scan()
+
+        assertThat(processed).containsExactlyElementsIn(
+                ["user10", "user12", "user14", "user16", "user18"] + (0..<ACCOUNT_COUNT).findAll { it % 2 == 1 }.collect { "user" + it })
+        assertThat(checkpoints.get("all").get().getSweepId()).isEqualTo("crashed")
+        assertThat(checkpoints.get("all").get().isFinished()).isTrue()
+        assertThat(metrics.snapshot().getCounter("scanner.checkpoint.resumed")).isEqualTo(1L)
+    }
+
+    void testStaleCheckpointStartsNewSweep() {
+        checkpoints.save("all", checkpoint(AccountQuery.TO_ACTIVATE, Optional.of("4"), [], Duration.ofHours(2)))
+        newScanner().scan()
+        assertThat(processed).hasSize(ACCOUNT_COUNT)
+        assertThat(checkpoints.get("all").get().getSweepId()).isNotEqualTo("crashed")
+    }
+
+    void testRejectedCursorRestartsQuery() {
+        checkpoints.save("all", checkpoint(AccountQuery.TO_ACTIVATE, Optional.of("not a cursor"), ["user1"], Duration.ofMinutes(5)))
+        newScanner().scan()
+        assertThat(processed).hasSize(ACCOUNT_COUNT / 2 - 1 as int)
+        assertThat(processed).doesNotContain("user1")
+        assertThat(metrics.snapshot().getCounter("scanner.checkpoint.invalid_cursor")).isEqualTo(1L)
+    }
+
+    void testRestartAfterCrashContinuesFromLastCheckpoint() {
+        // One account at a time, so every account submitted before a checkpoint has finished
+        executor.shutdownNow()
+        executor = MoreExecutors.newDirectExecutorService()
+        // Accounts are taken in handle order, so the second batch starts with user12
+        failingFetches.add("user12")
+        shouldFail(IllegalStateException) { newScanner().scan() }
+        ScanCheckpoint saved = checkpoints.get("all").get()
+        assertThat(saved.isFinished()).isFalse()
+        assertThat(saved.getQuery()).isEqualTo(AccountQuery.ACTIVE)
+        assertThat(saved.getCursor()).isEqualTo(Optional.empty())
+        assertThat(saved.getCompleted()).containsExactly("user0", "user1", "user10", "user11")
+        assertThat(processed).hasSize(PAGE_SIZE)
+
+        processed.clear()
+        newScanner().scan()
+        assertThat(processed).hasSize(ACCOUNT_COUNT - PAGE_SIZE)
+        assertThat(processed).containsNoneOf("user0", "user1", "user10", "user11")
+        assertThat(checkpoints.get("all").get().getSweepId()).isEqualTo(saved.getSweepId())
+    }
+
+    void testMostOverdueAccountsFirst() {
+        executor.shutdownNow()
+        executor = MoreExecutors.newDirectExecutorService()
+        stubPages(AccountQuery.ACTIVE, ImmutableList.of(
+                schedule("recent", true, Duration.ofMinutes(1)),
+                schedule("late", true, Duration.ofHours(1)),
+                schedule("never", true, null)))
+        // Its away period started 20 minutes ago
+        stubPages(AccountQuery.TO_ACTIVATE, ImmutableList.of(schedule("opening", false, Duration.ofMinutes(20))))
+        newScanner().scan()
+
+        assertThat(processed).containsExactly("never", "late", "opening", "recent").inOrder()
+    }
+
+    void testSweepStopsTakingAccountsOnceOverBudget() {
+        executor.shutdownNow()
+        executor = MoreExecutors.newDirectExecutorService()
+        processingTime = Duration.ofMinutes(1)
+        newScanner(new AllShards(), Duration.ofMinutes(5)).scan()
+
+        assertThat(processed).hasSize(5)
+        assertThat(metrics.snapshot().getCounter("scanner.accounts.over_budget")).isEqualTo((long) ACCOUNT_COUNT - 5)
+        // Put off accounts are left due rather than being queued to retry
+        assertThat(checkpoints.get("all").get().getRetry()).isEmpty()
+    }
+
+    void testOverBudgetAccountsLeftForResumedSweep() {
+        executor.shutdownNow()
+        executor = MoreExecutors.newDirectExecutorService()
+        processingTime = Duration.ofMinutes(1)
+        newScanner(new AllShards(), Duration.ofMinutes(5)).scan()
+        List<String> firstRun = ImmutableList.copyOf(processed)
+        checkpoints.history.each { assertThat(firstRun).containsAllIn(it.getCompleted()) }
+
+        // Restarted from the last checkpoint before the sweep finished, the put off accounts are
+        // still to be processed
+        checkpoints.save("all", checkpoints.history.findAll { !it.isFinished() }.last())
+        processed.clear()
+        processingTime = Duration.ZERO
+        newScanner().scan()
+        assertThat(ImmutableSet.copyOf(firstRun + ImmutableList.copyOf(processed))).hasSize(ACCOUNT_COUNT)
+    }
+
+    void testSchedulesReadAheadOnlyAFewPages() {
+        executor.shutdownNow()
+        executor = MoreExecutors.newDirectExecutorService()
+        newScanner().scan()
+
+        // The last page isn't read until the first batch of accounts has been taken off the window
+        def inOrder = inOrder(dao)
+        inOrder.verify(dao).getAccounts(any(Iterable.class))
+        inOrder.verify(dao).getSchedulePage(AccountQuery.TO_ACTIVATE, Optional.of("8"), PAGE_SIZE)
+        assertThat(processed).hasSize(ACCOUNT_COUNT)
+    }
+
+    private ScanCheckpoint checkpoint(AccountQuery query, Optional<String> cursor, List<String> completed, Duration age) {
+        return new ScanCheckpoint("crashed", false, query, cursor, ImmutableSet.copyOf(completed), ImmutableSet.of(), ago(age))
+    }
+
+    private Timestamp ago(Duration duration) {
+        return Timestamp.ofTimeMicroseconds((clock.millis() - duration.toMillis()) * 1000)
+    }
+
+    // An account due for `overdue`: an active one since its next poll, an inactive one since its
+    // away period started. Active accounts never polled have no next poll.
+    private TwitterAccount schedule(String handle, boolean active, Duration overdue) {
+        TwitterAccount.Builder account = TwitterAccount.newBuilder()
+                .setHandle(handle)
+                .setActive(active)
+                .setActiveFrom(active ? Timestamp.MIN_VALUE.toProto() : ago(overdue).toProto())
+                .setActiveUntil(Timestamp.ofTimeSecondsAndNanos(Timestamp.MAX_VALUE.getSeconds(), 0).toProto())
+        if (active && overdue != null) {
+            account.setNextPollAt(ago(overdue).toProto())
+        }
+        accountsByHandle.put(handle, account.build())
+        return account.build()
+    }
+
+    private TwitterScanner newScanner(ShardAssignment shards = new AllShards(), Duration budget = Duration.ofHours(1)) {
+        Provider<TwitterProcessor> processors = { -> newProcessor() } as Provider<TwitterProcessor>
+        return new TwitterScanner(
+                dao,
+                processors,
+                rateLimits,
+                mock(RepliedMentions.class),
+                checkpoints,
+                shards,
+                metrics,
+                executor,
+                CONCURRENCY,
+                PAGE_SIZE,
+                budget,
+                clock)
+    }
+
+    // Serves the account schedules in pages, using the index of the next account as the cursor
+    private void stubPages(AccountQuery query, ImmutableList<TwitterAccount> accounts) {
+        when(dao.getSchedulePage(eq(query), any(Optional.class), eq(PAGE_SIZE))).thenAnswer({ invocation ->
+            Optional<String> cursor = invocation.getArgument(1)
+            int start = cursor.map({ c -> Integer.parseInt(c) }).orElse(0)
+            int end = Math.min(start + PAGE_SIZE, accounts.size())
+            Optional<String> next = end < accounts.size() ? Optional.of(Integer.toString(end)) : Optional.empty()
+            return AccountPage.of(accounts.subList(start, end), next)
+        })
+    }
+
+    // Each processor gets its own mock, so shared state between accounts would show up as lost handles
+    private TwitterProcessor newProcessor() {
+        TwitterProcessor processor = mock(TwitterProcessor.class)
+        TwitterAccount[] current = new TwitterAccount[1]
+        when(processor.setAccount(any(TwitterAccount.class))).thenAnswer({ invocation ->
+            current[0] = invocation.getArgument(0)
+            return processor
+        })
+        doAnswer({ invocation ->
+            int now = inFlight.incrementAndGet()
+            maxInFlight.accumulateAndGet(now, { a, b -> Math.max(a, b) })
+            try {
+                Thread.sleep(5)
+                String handle = current[0].getHandle()
+                if (rateLimitedHandles.remove(handle)) {
+                    TwitterException e = new TwitterException("Rate limited " + handle, null, 429)
+                    rateLimits.record(handle, RateLimitTracker.Endpoint.MENTIONS_TIMELINE, e)
+                    throw e
+                }
+                if (failingHandles.contains(handle)) {
+                    throw new TwitterException("Failed to process " + handle)
+                }
+                processed.add(handle)
+                clock.advance(processingTime)
+            } finally {
+                inFlight.decrementAndGet()
+            }
+            return CompletableFuture.completedFuture(null)
+        }).when(processor).process()
+        return processor
+    }
+
+    private static class InMemoryScanCheckpointDAO implements ScanCheckpointDAO {
+        private final Map<String, ScanCheckpoint> saved = [:]
+        private final List<ScanCheckpoint> history = []
+
+        Optional<ScanCheckpoint> get(String scannerId) {
+            return Optional.ofNullable(saved.get(scannerId))
+        }
+
+        void save(String scannerId, ScanCheckpoint checkpoint) {
+            saved.put(scannerId, checkpoint)
+            history.add(checkpoint)
+        }
+    }
+
+    private static class TestClock extends Clock {
+        private volatile Instant now = Instant.parse("2018-01-01T00:00:00Z")
+
+        void advance(Duration duration) {
+            now = now.plus(duration)
+        }
+
+        @Override
+        ZoneId getZone() {
+            return ZoneOffset.UTC
+        }
+
+        @Override
+        Clock withZone(ZoneId zone) {
+            return this
+        }
+
+        @Override
+        Instant instant() {
+            return now
+        }
+    }
+}